@@ -0,0 +1,33 @@
+
+package fr.seki.dashboard.usb;
+
+import java.util.Arrays;
+import org.openjdk.jmh.Main;
+
+/**
+ * Runs the JMH benchmarks, writing the results as JSON to jmh-result.json
+ * unless another result format or file is given on the command line.
+ *
+ * @author seb
+ */
+public final class BenchmarkMain {
+
+    private BenchmarkMain() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String[] all = args;
+        if (!Arrays.asList(args).contains("-rf")) {
+            all = new String[args.length + 2];
+            all[0] = "-rf";
+            all[1] = "json";
+            System.arraycopy(args, 0, all, 2, args.length);
+        }
+        if (!Arrays.asList(all).contains("-rff")) {
+            all = Arrays.copyOf(all, all.length + 2);
+            all[all.length - 2] = "-rff";
+            all[all.length - 1] = "jmh-result.json";
+        }
+        Main.main(all);
+    }
+}
@@ -0,0 +1,66 @@
+
+package fr.seki.dashboard.usb;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Conversion of a 128x64 image to the bitmap layout, per image type.
+ *
+ * @author seb
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BitmapBenchmark {
+
+    @Param({"BYTE_BINARY", "INT_RGB", "INT_ARGB", "BYTE_GRAY", "3BYTE_BGR", "4BYTE_ABGR", "USHORT_565_RGB"})
+    public String type;
+
+    private BufferedImage image;
+    private int[] argb;
+    private final byte[] bitmap = new byte[FrameBuffer.SIZE];
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        int imageType = BufferedImage.class.getField("TYPE_" + type).getInt(null);
+        image = new BufferedImage(FrameBuffer.WIDTH, FrameBuffer.HEIGHT, imageType);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, FrameBuffer.WIDTH, FrameBuffer.HEIGHT);
+        g.setColor(Color.BLACK);
+        g.drawString("12:34", 10, 30);
+        g.fillOval(80, 10, 40, 40);
+        g.drawLine(0, 63, 127, 0);
+        g.dispose();
+        argb = image.getRGB(0, 0, FrameBuffer.WIDTH, FrameBuffer.HEIGHT, null, 0, FrameBuffer.WIDTH);
+    }
+
+    @Benchmark
+    public byte[] image() {
+        K8101Bitmap.pack(image, bitmap, 0);
+        return bitmap;
+    }
+
+    @Benchmark
+    public byte[] argb() {
+        K8101Bitmap.pack(argb, FrameBuffer.WIDTH, FrameBuffer.HEIGHT, bitmap, 0);
+        return bitmap;
+    }
+}
@@ -0,0 +1,94 @@
+
+package fr.seki.dashboard.usb;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of encoding one command of each kind, checksum included.
+ *
+ * @author seb
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodingBenchmark {
+
+    private K8101Encoder encoder;
+    private byte[] bitmap;
+    private ByteBuffer bitmapFrame;
+    private int x;
+
+    @Setup
+    public void setup() {
+        encoder = new K8101Encoder();
+        bitmap = new byte[K8101Encoder.BITMAP_SIZE];
+        new Random(42).nextBytes(bitmap);
+        bitmapFrame = new K8101Encoder().encodeBitmap(bitmap);
+    }
+
+    /* varies the arguments so that nothing is constant folded */
+    private int next() {
+        x = (x + 1) & 0x7f;
+        return x;
+    }
+
+    @Benchmark
+    public ByteBuffer beep() {
+        return encoder.encode(K8101.Command.beep, next() & 3);
+    }
+
+    @Benchmark
+    public ByteBuffer clearAll() {
+        return encoder.encode(K8101.Command.clearall);
+    }
+
+    @Benchmark
+    public ByteBuffer drawPixel() {
+        int v = next();
+        return encoder.encode(K8101.Command.drawpixel, v, v & 0x3f);
+    }
+
+    @Benchmark
+    public ByteBuffer drawLine() {
+        int v = next();
+        return encoder.encode(K8101.Command.drawline, v, 0, 127 - v, 63);
+    }
+
+    @Benchmark
+    public ByteBuffer drawRectangle() {
+        int v = next();
+        return encoder.encode(K8101.Command.drawrect, v & 0x3f, v & 0x1f, 20, 10);
+    }
+
+    @Benchmark
+    public ByteBuffer drawText() {
+        return encoder.encodeText("12:34 temp 21.5C", next(), 8, 100, K8101.TextSize.small);
+    }
+
+    @Benchmark
+    public ByteBuffer drawBitmap() {
+        bitmap[0] = (byte) next();
+        return encoder.encodeBitmap(bitmap);
+    }
+
+    /* the FINEST trace of a bitmap command */
+    @Benchmark
+    public String bytesToHex() {
+        return K8101.bytesToHex(bitmapFrame);
+    }
+}
@@ -0,0 +1,89 @@
+
+package fr.seki.dashboard.usb;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Diffing the off-screen buffer against the device, for typical amounts of
+ * change: a few pixels, a clock hand, a text area, the whole screen.
+ *
+ * @author seb
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameBufferBenchmark {
+
+    @Param({"pixels", "line", "area", "screen"})
+    public String change;
+
+    private FrameBuffer fb;
+    private Frame frame;
+    private boolean on;
+
+    @Setup
+    public void setup() {
+        fb = new FrameBuffer();
+        for (int y = 0; y < FrameBuffer.HEIGHT; y += 4) {
+            fb.drawLine(0, y, FrameBuffer.WIDTH - 1, FrameBuffer.HEIGHT - 1 - y);
+        }
+        fb.deviceCleared();
+        frame = new K8101Display("bench", new LoopbackTransport(0)).batch();
+        fb.appendTo(frame);
+        frame.commit();
+    }
+
+    private void modify() {
+        on = !on;
+        switch (change) {
+            case "pixels":
+                for (int i = 0; i < 8; i++) {
+                    fb.setPixel(i * 15, i * 7, on);
+                }
+                break;
+            case "line":
+                fb.setPixel(0, 0, on);
+                if (on) {
+                    fb.drawLine(64, 32, 100, 10);
+                } else {
+                    fb.eraseLine(64, 32, 100, 10);
+                }
+                break;
+            case "area":
+                for (int x = 10; x < 70; x += 3) {
+                    for (int y = 20; y < 36; y += 2) {
+                        fb.setPixel(x + (on ? 1 : 0), y, !fb.getPixel(x, y));
+                    }
+                }
+                break;
+            default:
+                byte[] bitmap = fb.toBitmap();
+                for (int i = 0; i < bitmap.length; i++) {
+                    bitmap[i] = (byte) ~bitmap[i];
+                }
+                fb.setBitmap(bitmap);
+        }
+    }
+
+    @Benchmark
+    public int diff() {
+        modify();
+        int bytes = fb.appendTo(frame);
+        frame.commit();
+        return bytes;
+    }
+}
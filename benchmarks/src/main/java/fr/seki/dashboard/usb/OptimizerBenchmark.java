@@ -0,0 +1,75 @@
+package fr.seki.dashboard.usb;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the peephole optimization on commit, and bytes left on the wire,
+ * for redundant streams: a row of pixels, a box of lines, drawings hidden by
+ * a clear, repeated settings.
+ *
+ * @author seb
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OptimizerBenchmark {
+
+    @Param({"pixels", "box", "overdraw", "settings"})
+    public String stream;
+
+    @Param({"true", "false"})
+    public boolean optimizing;
+
+    private K8101Display display;
+    private LoopbackTransport loopback;
+
+    @Setup
+    public void setup() {
+        loopback = new LoopbackTransport(0);
+        display = new K8101Display("bench", loopback);
+        display.setOptimizing(optimizing);
+    }
+
+    @Benchmark
+    public long commit() {
+        Frame frame = display.batch();
+        switch (stream) {
+            case "pixels":
+                for (int x = 0; x < 64; x++) {
+                    frame.drawPixel(x, 20);
+                }
+                break;
+            case "box":
+                for (int y = 10; y < 30; y++) {
+                    frame.drawLine(10, y, 50, y);
+                }
+                break;
+            case "overdraw":
+                for (int i = 0; i < 32; i++) {
+                    frame.drawLine(i, 0, 127 - i, 63);
+                }
+                frame.clearAll().drawText("done", 0, 0, 24, K8101.TextSize.big);
+                break;
+            default:
+                for (int i = 0; i < 16; i++) {
+                    frame.setContrast(20).setInverted(false).backlight(255);
+                }
+        }
+        frame.commit();
+        return loopback.byteCount();
+    }
+}
@@ -0,0 +1,113 @@
+
+package fr.seki.dashboard.usb;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end throughput of the driver, from the public drawing API to a
+ * loopback transport: the scores are commands/s, and the secondary bytes
+ * score is bytes/s. The device itself is not simulated, this measures the host side
+ * only.
+ *
+ * @author seb
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransportBenchmark {
+
+    private static final int BATCH = 32;
+
+    @Param({"sync", "async"})
+    public String mode;
+
+    private LoopbackTransport loopback;
+    private K8101Display display;
+    private byte[] bitmap;
+    private int x;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+
+        public long bytes;
+    }
+
+    @Setup
+    public void setup() {
+        loopback = new LoopbackTransport();
+        display = new K8101Display("bench", loopback);
+        if (mode.equals("async")) {
+            display.enableAsync(256, 4, K8101.Backpressure.block);
+        }
+        bitmap = new byte[FrameBuffer.SIZE];
+    }
+
+    @TearDown
+    public void tearDown() {
+        display.close();
+    }
+
+    private int next() {
+        x = (x + 1) & 0x3f;
+        return x;
+    }
+
+    /* bytes written by the invocation, the async queue may lag behind */
+    private void count(Bytes bytes, long before) {
+        bytes.bytes += loopback.byteCount() - before;
+    }
+
+    @Benchmark
+    public void line(Bytes bytes) {
+        long before = loopback.byteCount();
+        int v = next();
+        display.drawLine(v, 0, 127 - v, 63).join();
+        count(bytes, before);
+    }
+
+    @Benchmark
+    public void text(Bytes bytes) {
+        long before = loopback.byteCount();
+        display.drawText("Hello", next(), 10, 100, K8101.TextSize.big).join();
+        count(bytes, before);
+    }
+
+    @Benchmark
+    public void bitmap(Bytes bytes) {
+        long before = loopback.byteCount();
+        bitmap[0] = (byte) next();
+        display.drawBitmap(bitmap).join();
+        count(bytes, before);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void batch(Bytes bytes) {
+        long before = loopback.byteCount();
+        Frame frame = display.batch();
+        for (int i = 0; i < BATCH; i++) {
+            int v = next();
+            frame.drawPixel(v, v & 0x3f);
+        }
+        frame.commit().join();
+        count(bytes, before);
+    }
+}
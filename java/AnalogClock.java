@@ -0,0 +1,90 @@
+
+package fr.seki.dashboard.usb;
+
+import java.time.Clock;
+import java.time.LocalTime;
+
+/**
+ * Analog clock widget: 12 ticks in the background, an hour and a minute
+ * hand. An update erases the two hands and draws them at their new position,
+ * only when the minute changed; the dashboard wakes on the minute.
+ *
+ * @author seb
+ */
+public final class AnalogClock extends K8101Widget {
+
+    private static final int MINUTES = 60;
+
+    private final Clock clock;
+    private final int[] ticks;
+    private final int[] minuteHand;
+    private final int[] hourHand;
+    private int drawnMinute = -1;
+    private int drawnHour = -1;
+
+    public AnalogClock(int cx, int cy, int radius) {
+        this(cx, cy, radius, Clock.systemDefaultZone());
+    }
+
+    /**
+     * @param radius radius of the dial, the ticks are drawn inside
+     * @param clock the time shown
+     */
+    public AnalogClock(int cx, int cy, int radius, Clock clock) {
+        this.clock = clock;
+        this.ticks = K8101Dial.spokes(cx, cy, radius - 3, radius, 12, 90, 360);
+        this.minuteHand = K8101Dial.spokes(cx, cy, 0, radius * 4 / 5, MINUTES, 90, 360);
+        this.hourHand = K8101Dial.spokes(cx, cy, 0, radius / 2, MINUTES, 90, 360);
+    }
+
+    @Override
+    protected void decorate(FrameBuffer background) {
+        for (int i = 0; i < 12; i++) {
+            background.drawLine(ticks[4 * i], ticks[4 * i + 1], ticks[4 * i + 2], ticks[4 * i + 3]);
+        }
+    }
+
+    @Override
+    protected void draw(Frame frame) {
+        LocalTime now = LocalTime.now(clock);
+        drawnMinute = now.getMinute();
+        drawnHour = (now.getHour() % 12) * 5 + drawnMinute / 12;
+        hand(frame, hourHand, drawnHour, true);
+        hand(frame, minuteHand, drawnMinute, true);
+    }
+
+    @Override
+    protected boolean update(Frame frame) {
+        LocalTime now = LocalTime.now(clock);
+        int minute = now.getMinute();
+        int hour = (now.getHour() % 12) * 5 + minute / 12;
+        if (minute == drawnMinute && hour == drawnHour) {
+            return false;
+        }
+        // the hands cross at the center, both are drawn again
+        if (drawnMinute >= 0) {
+            hand(frame, hourHand, drawnHour, false);
+            hand(frame, minuteHand, drawnMinute, false);
+        }
+        drawnMinute = minute;
+        drawnHour = hour;
+        hand(frame, hourHand, hour, true);
+        hand(frame, minuteHand, minute, true);
+        return true;
+    }
+
+    private static void hand(Frame frame, int[] table, int position, boolean on) {
+        int i = 4 * position;
+        if (on) {
+            frame.drawLine(table[i], table[i + 1], table[i + 2], table[i + 3]);
+        } else {
+            frame.eraseLine(table[i], table[i + 1], table[i + 2], table[i + 3]);
+        }
+    }
+
+    @Override
+    protected long nextChange() {
+        long millis = clock.millis();
+        return 60000 - Math.floorMod(millis, 60000);
+    }
+}
@@ -0,0 +1,107 @@
+
+package fr.seki.dashboard.usb;
+
+/**
+ * Bar gauge widget: an outline in the background, filled left to right or
+ * bottom to top. An update only draws or erases the part of the bar between
+ * the previous and the new level.
+ *
+ * @author seb
+ */
+public final class BarGauge extends K8101Widget {
+
+    private final int x;
+    private final int y;
+    private final int width;
+    private final int height;
+    private final double min;
+    private final double max;
+    private final boolean vertical;
+    private final int length; // inside of the outline, in pixels
+    private volatile int level;
+    private int drawn = -1;
+
+    /**
+     * @param width width of the gauge, outline included
+     * @param height height of the gauge, outline included
+     * @param vertical fills from the bottom instead of from the left
+     */
+    public BarGauge(int x, int y, int width, int height, double min, double max, boolean vertical) {
+        if (width < 3 || height < 3 || !(max > min)) {
+            throw new IllegalArgumentException("the gauge must be at least 3x3 and max above min");
+        }
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.min = min;
+        this.max = max;
+        this.vertical = vertical;
+        this.length = (vertical ? height : width) - 2;
+    }
+
+    /**
+     * Sets the level of the bar, values out of range are clamped.
+     */
+    public void setValue(double value) {
+        double v = Math.min(max, Math.max(min, value));
+        int l = (int) Math.round((v - min) / (max - min) * length);
+        if (l != level) {
+            level = l;
+            changed();
+        }
+    }
+
+    @Override
+    protected void decorate(FrameBuffer background) {
+        background.drawRectangle(x, y, width - 1, height - 1, false);
+    }
+
+    @Override
+    protected void draw(Frame frame) {
+        drawn = level;
+        fill(frame, 0, drawn, true);
+    }
+
+    @Override
+    protected boolean update(Frame frame) {
+        int l = level;
+        if (l == drawn) {
+            return false;
+        }
+        if (l > drawn) {
+            fill(frame, drawn, l, true);
+        } else {
+            fill(frame, l, drawn, false);
+        }
+        drawn = l;
+        return true;
+    }
+
+    /* the part of the bar between levels from and to */
+    private void fill(Frame frame, int from, int to, boolean on) {
+        if (to <= from) {
+            return;
+        }
+        int rx;
+        int ry;
+        int rw;
+        int rh;
+        if (vertical) {
+            rx = x + 1;
+            ry = y + height - 1 - to;
+            rw = width - 2;
+            rh = to - from;
+        } else {
+            rx = x + 1 + from;
+            ry = y + 1;
+            rw = to - from;
+            rh = height - 2;
+        }
+        if (on) {
+            frame.drawRectangle(rx, ry, rw, rh, true);
+        } else {
+            frame.eraseRectangle(rx, ry, rw, rh, true);
+        }
+    }
+}
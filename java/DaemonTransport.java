@@ -0,0 +1,167 @@
+
+package fr.seki.dashboard.usb;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Transport to a {@link K8101Daemon} over its Unix domain socket: the
+ * commands are drawn into a layer of the shared board.
+ *
+ * On connection the layer is declared: its region, z-order and whether it is
+ * transparent. Button presses are forwarded by the daemon to every client.
+ *
+ * @author seb
+ */
+public final class DaemonTransport implements K8101Transport {
+
+    private static final Logger logger = Logger.getLogger(DaemonTransport.class.toString());
+
+    private final Path socket;
+    private final byte[] layer;
+    private SocketChannel channel;
+    private volatile Consumer<ByteBuffer> receiver;
+    private Thread reader;
+
+    /**
+     * A layer covering the whole screen, opaque, above the clients connected
+     * before.
+     */
+    public DaemonTransport(Path socket) {
+        this(socket, 0, 0, FrameBuffer.WIDTH, FrameBuffer.HEIGHT, 0, false);
+    }
+
+    /**
+     * @param z layers with a higher z are drawn above, -128 to 127
+     * @param transparent only the dark pixels of the layer are drawn
+     */
+    public DaemonTransport(Path socket, int x, int y, int width, int height, int z, boolean transparent) {
+        if (z < Byte.MIN_VALUE || z > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("z must fit in a byte");
+        }
+        this.socket = socket;
+        int[] args = {x, y, width, height, z, transparent ? 1 : 0};
+        int size = 6 + args.length;
+        layer = new byte[size];
+        layer[0] = (byte) 0xAA;
+        layer[1] = (byte) size;
+        layer[3] = K8101Daemon.LAYER;
+        int sum = size + K8101Daemon.LAYER;
+        for (int i = 0; i < args.length; i++) {
+            layer[4 + i] = (byte) args[i];
+            sum += args[i];
+        }
+        layer[size - 2] = (byte) sum;
+        layer[size - 1] = 0x55;
+    }
+
+    @Override
+    public synchronized boolean open() throws IOException {
+        if (channel == null) {
+            SocketChannel ch = SocketChannel.open(StandardProtocolFamily.UNIX);
+            try {
+                ch.connect(UnixDomainSocketAddress.of(socket));
+                ByteBuffer hello = ByteBuffer.wrap(layer);
+                while (hello.hasRemaining()) {
+                    ch.write(hello);
+                }
+            } catch (ConnectException | NoSuchFileException e) {
+                ch.close();
+                return false;
+            } catch (IOException ioe) {
+                ch.close();
+                throw ioe;
+            }
+            channel = ch;
+            logger.fine("Connected to " + socket);
+            if (receiver != null) {
+                startReader();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return channel != null;
+    }
+
+    @Override
+    public synchronized void write(ByteBuffer frames) throws IOException {
+        if (!open()) {
+            throw new NoSuchFileException(socket.toString());
+        }
+        ByteBuffer src = frames.duplicate();
+        try {
+            while (src.hasRemaining()) {
+                channel.write(src);
+            }
+        } catch (IOException ioe) {
+            close();
+            throw ioe;
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public synchronized boolean setReceiver(Consumer<ByteBuffer> receiver) {
+        this.receiver = receiver;
+        if (receiver != null && channel != null && reader == null) {
+            startReader();
+        }
+        return true;
+    }
+
+    private void startReader() {
+        SocketChannel ch = channel;
+        reader = new Thread(() -> read(ch), "K8101-daemon-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /* blocking reads of the button notifications, until the channel is closed */
+    private void read(SocketChannel ch) {
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        try {
+            while (ch.read(buf) >= 0) {
+                buf.flip();
+                Consumer<ByteBuffer> r = receiver;
+                if (r != null) {
+                    r.accept(buf);
+                }
+                buf.clear();
+            }
+        } catch (IOException ioe) {
+            logger.fine("Daemon connection lost: " + ioe);
+        }
+        synchronized (this) {
+            if (channel == ch) {
+                close();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ioe) {
+                logger.fine("Daemon close failed: " + ioe);
+            }
+            channel = null;
+            reader = null;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+
+package fr.seki.dashboard.usb;
+
+/**
+ * Dial gauge widget: a needle over a 270 degrees scale, from 7:30 for the
+ * minimum to 4:30 for the maximum, with 11 ticks in the background.
+ *
+ * The value is quantized to about one pixel of the needle end: setting a
+ * value that does not move the needle costs nothing.
+ *
+ * @author seb
+ */
+public final class DialGauge extends K8101Widget {
+
+    private static final int START = 225;
+    private static final int SWEEP = 270;
+
+    private final double min;
+    private final double max;
+    private final int steps;
+    private final int[] ticks;
+    private final int[] needle;
+    private volatile int position;
+    private int drawn = -1;
+
+    /**
+     * @param radius radius of the scale, the needle is a little shorter
+     */
+    public DialGauge(int cx, int cy, int radius, double min, double max) {
+        if (!(max > min)) {
+            throw new IllegalArgumentException("max must be above min");
+        }
+        this.min = min;
+        this.max = max;
+        // one position per pixel of the arc described by the needle end
+        this.steps = Math.max(1, (int) Math.round(Math.toRadians(SWEEP) * (radius - 4)));
+        this.ticks = K8101Dial.spokes(cx, cy, radius - 2, radius, 10, START, SWEEP);
+        this.needle = K8101Dial.spokes(cx, cy, 0, radius - 4, steps, START, SWEEP);
+    }
+
+    /**
+     * Moves the needle, values out of range are clamped.
+     */
+    public void setValue(double value) {
+        double v = Math.min(max, Math.max(min, value));
+        int p = (int) Math.round((v - min) / (max - min) * steps);
+        if (p != position) {
+            position = p;
+            changed();
+        }
+    }
+
+    @Override
+    protected void decorate(FrameBuffer background) {
+        for (int i = 0; i <= 10; i++) {
+            background.drawLine(ticks[4 * i], ticks[4 * i + 1], ticks[4 * i + 2], ticks[4 * i + 3]);
+        }
+    }
+
+    @Override
+    protected void draw(Frame frame) {
+        drawn = position;
+        int i = 4 * drawn;
+        frame.drawLine(needle[i], needle[i + 1], needle[i + 2], needle[i + 3]);
+    }
+
+    @Override
+    protected boolean update(Frame frame) {
+        int p = position;
+        if (p == drawn) {
+            return false;
+        }
+        if (drawn >= 0) {
+            int i = 4 * drawn;
+            frame.eraseLine(needle[i], needle[i + 1], needle[i + 2], needle[i + 3]);
+        }
+        draw(frame);
+        return true;
+    }
+}
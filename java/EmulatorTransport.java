@@ -0,0 +1,401 @@
+
+package fr.seki.dashboard.usb;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * A software K8101: the command stream is parsed and rendered into a 128x64
+ * model of the LCD that tests can inspect, without any hardware.
+ *
+ * The protocol is the one of the README, quirks included: line and rectangle
+ * commands announce 6 bytes too many, text and bitmap data are followed by a
+ * 0 not counted in the size. A command with a wrong checksum is dropped and
+ * shows "CHKSM" as the real board does, broken framing is skipped up to the
+ * next start byte. The last bitmap is kept and restored by clearfg, clearall
+ * blanks both the screen and the stored bitmap.
+ *
+ * By default the emulator runs at unlimited speed. Created with a baud rate,
+ * writes take the time the serial link would, plus a processing delay per
+ * command, so that throughput and latency measures are realistic.
+ *
+ * @author seb
+ */
+public final class EmulatorTransport implements K8101Transport {
+
+    private static final Logger logger = Logger.getLogger(EmulatorTransport.class.toString());
+
+    /* longest frame: a bitmap */
+    private static final int MAX_FRAME = K8101Encoder.MAX_FRAME;
+
+    private final long nanosPerByte;
+    private final long nanosPerCommand;
+    private final FrameBuffer screen = new FrameBuffer();
+    private final byte[] stored = new byte[FrameBuffer.SIZE];
+    private final byte[] frame = new byte[MAX_FRAME];
+    private int have;
+    private int need; // length of the frame being received, 0 until known
+    private boolean open;
+    private boolean inverted;
+    private int contrast;
+    private int backlight;
+    private long beeps;
+    private long commands;
+    private long errors;
+    private boolean checksumError;
+    private int settings; // bits of the settings received: contrast, backlight, invert
+    private long busyUntil;
+    private Consumer<ByteBuffer> receiver;
+
+    /**
+     * An emulator running at unlimited speed.
+     */
+    public EmulatorTransport() {
+        this(0, 0);
+    }
+
+    /**
+     * @param baud speed of the serial link (8N1: 10 bits per byte), 0 for
+     * unlimited
+     * @param processingMicros time the firmware takes for each command
+     */
+    public EmulatorTransport(int baud, long processingMicros) {
+        if (baud < 0 || processingMicros < 0) {
+            throw new IllegalArgumentException("baud and processingMicros must not be negative");
+        }
+        this.nanosPerByte = baud == 0 ? 0 : TimeUnit.SECONDS.toNanos(10) / baud;
+        this.nanosPerCommand = TimeUnit.MICROSECONDS.toNanos(processingMicros);
+    }
+
+    /**
+     * @return an emulator of the real link: 9600 bauds and 1 ms of
+     * processing per command
+     */
+    public static EmulatorTransport realistic() {
+        return new EmulatorTransport(9600, 1000);
+    }
+
+    @Override
+    public synchronized boolean open() {
+        open = true;
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void write(ByteBuffer frames) {
+        long delay;
+        synchronized (this) {
+            long before = commands + errors;
+            ByteBuffer src = frames.duplicate();
+            int length = src.remaining();
+            while (src.hasRemaining()) {
+                receive(src.get());
+            }
+            delay = length * nanosPerByte + (commands + errors - before) * nanosPerCommand;
+            if (delay > 0) {
+                // the link is busy until the previous writes are through
+                long now = System.nanoTime();
+                busyUntil = Math.max(busyUntil, now) + delay;
+                delay = busyUntil - now;
+            }
+        }
+        if (delay > 0) {
+            LockSupport.parkNanos(delay);
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public synchronized boolean setReceiver(Consumer<ByteBuffer> receiver) {
+        this.receiver = receiver;
+        return true;
+    }
+
+    /**
+     * Sends the notification of a press of the button, as the board does.
+     */
+    public void pressButton(boolean longPress) {
+        Consumer<ByteBuffer> r;
+        synchronized (this) {
+            r = receiver;
+        }
+        if (r != null) {
+            r.accept(ByteBuffer.wrap(longPress
+                    ? new byte[]{(byte) 0xFF, 0x05, (byte) 0xAA, (byte) 0xAF, 0x00}
+                    : new byte[]{(byte) 0xFF, 0x05, (byte) 0xFF, 0x04, 0x00}));
+        }
+    }
+
+    private void receive(byte b) {
+        if (have == 0 && b != (byte) 0xAA) {
+            return; // out of sync, wait for a start byte
+        }
+        frame[have++] = b;
+        if (have == 4) {
+            need = K8101Encoder.frameLength((frame[1] & 0xff) | (frame[2] & 0xff) << 8, frame[3]);
+            if (need < 6 || need > MAX_FRAME) {
+                logger.fine("bad frame size " + need);
+                errors++;
+                have = 0;
+            }
+        } else if (have > 4 && have == need) {
+            have = 0;
+            if (frame[need - 1] != 0x55) {
+                logger.fine("missing stop byte");
+                errors++;
+            } else if (!checksumOk()) {
+                logger.fine("bad checksum");
+                errors++;
+                checksumError = true;
+                K8101Font.BIG.drawText(screen, "CHKSM", 0, 0, FrameBuffer.WIDTH);
+            } else {
+                commands++;
+                checksumError = false;
+                execute(frame[3], need - 6);
+            }
+        }
+    }
+
+    private boolean checksumOk() {
+        int sum = 0;
+        for (int i = 1; i < need - 2; i++) {
+            sum += frame[i];
+        }
+        return (byte) sum == frame[need - 2];
+    }
+
+    private int arg(int i) {
+        return frame[4 + i] & 0xff;
+    }
+
+    private void execute(byte cmd, int args) {
+        switch (cmd) {
+            case 1: // bitmap, 1024 bytes and the extra 0
+                if (args != FrameBuffer.SIZE + 1) {
+                    errors++;
+                    return;
+                }
+                System.arraycopy(frame, 4, stored, 0, FrameBuffer.SIZE);
+                screen.setBitmap(stored);
+                break;
+            case 2: // clearall
+                Arrays.fill(stored, (byte) 0);
+                screen.clear();
+                break;
+            case 3: // clearfg
+                screen.setBitmap(stored);
+                break;
+            case 4: // bigtext
+            case 5: // smalltext
+                if (args < 4) {
+                    errors++;
+                    return;
+                }
+                K8101Font font = cmd == 4 ? K8101Font.BIG : K8101Font.SMALL;
+                font.drawText(screen, new String(frame, 7, args - 4, StandardCharsets.ISO_8859_1),
+                        arg(0), arg(1), arg(2));
+                break;
+            case 6:
+                beeps += arg(0);
+                break;
+            case 7:
+                screen.drawRectangle(arg(0), arg(1), arg(2), arg(3), true);
+                break;
+            case 8:
+                screen.eraseRectangle(arg(0), arg(1), arg(2), arg(3), true);
+                break;
+            case 9:
+                screen.drawPixel(arg(0), arg(1));
+                break;
+            case 16:
+                screen.erasePixel(arg(0), arg(1));
+                break;
+            case 17:
+                contrast = arg(0);
+                settings |= 1;
+                break;
+            case 18:
+                screen.drawLine(arg(0), arg(1), arg(2), arg(3));
+                break;
+            case 19:
+                screen.eraseLine(arg(0), arg(1), arg(2), arg(3));
+                break;
+            case 20:
+                backlight = arg(0);
+                settings |= 2;
+                break;
+            case 21:
+                inverted = arg(0) != 0;
+                settings |= 4;
+                break;
+            default:
+                logger.fine("unknown command " + cmd);
+                errors++;
+        }
+    }
+
+    /**
+     * @return the contrast received, -1 if none
+     */
+    synchronized int knownContrast() {
+        return (settings & 1) != 0 ? contrast : -1;
+    }
+
+    /**
+     * @return 1 if inverted, 0 if not, -1 if never set
+     */
+    synchronized int knownInverted() {
+        return (settings & 4) != 0 ? (inverted ? 1 : 0) : -1;
+    }
+
+    /**
+     * Appends the commands bringing a freshly powered board to the state of
+     * this one: the settings received, the stored bitmap, then the
+     * differences of the screen with it, so that clearfg still restores the
+     * stored bitmap.
+     */
+    synchronized void appendState(Frame frame) {
+        if ((settings & 1) != 0) {
+            frame.setContrast(contrast);
+        }
+        if ((settings & 4) != 0) {
+            frame.setInverted(inverted);
+        }
+        if ((settings & 2) != 0) {
+            frame.backlight(backlight);
+        }
+        boolean blank = true;
+        for (byte b : stored) {
+            if (b != 0) {
+                blank = false;
+                break;
+            }
+        }
+        if (blank) {
+            frame.clearAll();
+        } else {
+            frame.drawBitmap(stored);
+        }
+        screen.appendDiff(frame, stored);
+    }
+
+    /**
+     * @return the screen in the device bitmap layout, as drawn, before the
+     * inversion
+     */
+    public synchronized byte[] snapshot() {
+        return screen.toBitmap();
+    }
+
+    /**
+     * @return true if the pixel is dark on screen, inversion included
+     */
+    public synchronized boolean isDark(int x, int y) {
+        return screen.getPixel(x, y) != inverted;
+    }
+
+    /**
+     * @return the screen as seen, one line of '#' (dark) and '.' per row
+     */
+    public synchronized String toAscii() {
+        StringBuilder sb = new StringBuilder((FrameBuffer.WIDTH + 1) * FrameBuffer.HEIGHT);
+        for (int y = 0; y < FrameBuffer.HEIGHT; y++) {
+            for (int x = 0; x < FrameBuffer.WIDTH; x++) {
+                sb.append(isDark(x, y) ? '#' : '.');
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the screen as seen, black on white
+     */
+    public synchronized BufferedImage toImage() {
+        BufferedImage img = new BufferedImage(FrameBuffer.WIDTH, FrameBuffer.HEIGHT, BufferedImage.TYPE_BYTE_BINARY);
+        for (int y = 0; y < FrameBuffer.HEIGHT; y++) {
+            for (int x = 0; x < FrameBuffer.WIDTH; x++) {
+                img.setRGB(x, y, isDark(x, y) ? 0xff000000 : 0xffffffff);
+            }
+        }
+        return img;
+    }
+
+    public synchronized boolean isInverted() {
+        return inverted;
+    }
+
+    public synchronized int getContrast() {
+        return contrast;
+    }
+
+    public synchronized int getBacklight() {
+        return backlight;
+    }
+
+    /**
+     * @return the number of beeps requested so far
+     */
+    public synchronized long getBeeps() {
+        return beeps;
+    }
+
+    /**
+     * @return the number of commands executed so far
+     */
+    public synchronized long getCommands() {
+        return commands;
+    }
+
+    /**
+     * @return the number of commands rejected so far: framing, checksum or
+     * unknown command
+     */
+    public synchronized long getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return true if the last command had a wrong checksum
+     */
+    public synchronized boolean isChecksumError() {
+        return checksumError;
+    }
+
+    /**
+     * Powers the board off and on: blank screen, nothing stored, counters
+     * reset.
+     */
+    public synchronized void reset() {
+        screen.clear();
+        Arrays.fill(stored, (byte) 0);
+        have = 0;
+        inverted = false;
+        contrast = 0;
+        backlight = 0;
+        beeps = 0;
+        commands = 0;
+        errors = 0;
+        checksumError = false;
+        settings = 0;
+    }
+
+    @Override
+    public synchronized void close() {
+        open = false;
+    }
+}
@@ -0,0 +1,333 @@
+
+package fr.seki.dashboard.usb;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.swing.Icon;
+import org.usb4java.BufferUtils;
+
+/**
+ * Collects several commands and sends them together.
+ *
+ * The commands are encoded one after the other in a direct buffer and go
+ * out in a single bulk transfer (libusb cuts it into endpoint packets),
+ * instead of one transfer per primitive. When the firmware input buffer is a concern, the number of
+ * commands and bytes per transfer can be limited: the frame is then split on
+ * command boundaries. A command bigger than the byte limit (a bitmap) is sent
+ * alone. Before that, the commands are rewritten into fewer bytes by
+ * {@link K8101Optimizer}, unless a target display disables it.
+ *
+ * Obtained from {@link K8101#batch()} or {@link K8101Display#batch()}, or from
+ * {@link K8101Display#broadcast(java.util.Collection)} to send the same
+ * encoded bytes to several displays. A frame is not thread safe, and is
+ * empty again after {@link #commit()}.
+ *
+ * The direct buffers are taken from a pool when the first command is added
+ * and given back on commit, once every target has copied or written them:
+ * a frame per refresh does not allocate direct memory.
+ *
+ * @author seb
+ */
+public final class Frame {
+
+    private static final int POOLED = 32;
+    /* buffers of committed frames */
+    private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    private final K8101Display[] targets;
+    private final int maxCommands;
+    private final int maxBytes;
+    private ByteBuffer buf; // null until the first command
+    private ByteBuffer spare; // receives the optimized commands
+    private int[] ends = new int[16]; // end offset of each command in buf
+    private int count;
+    private boolean replacesBackground; // holds a bitmap or a clearall
+    private boolean clears; // holds a clearfg
+
+    Frame(K8101Display[] targets, int maxCommands, int maxBytes) {
+        if (maxCommands < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("limits must be positive");
+        }
+        this.targets = targets;
+        this.maxCommands = maxCommands;
+        this.maxBytes = maxBytes;
+    }
+
+    private static ByteBuffer acquire(int capacity) {
+        ByteBuffer b = pool.poll();
+        if (b != null) {
+            pooled.decrementAndGet();
+            if (b.capacity() >= capacity) {
+                return b.clear();
+            }
+        }
+        return BufferUtils.allocateByteBuffer(Math.max(128, capacity));
+    }
+
+    private static void release(ByteBuffer b) {
+        if (b != null && pooled.incrementAndGet() <= POOLED) {
+            pool.offer(b);
+        } else if (b != null) {
+            pooled.decrementAndGet();
+        }
+    }
+
+    /* makes room for a command of at most length bytes */
+    private ByteBuffer room(int length) {
+        if (buf == null) {
+            buf = acquire(length);
+        } else if (buf.remaining() < length) {
+            ByteBuffer bigger = acquire(Math.max(buf.capacity() * 2, buf.position() + length));
+            buf.flip();
+            bigger.put(buf);
+            release(buf);
+            buf = bigger;
+        }
+        return buf;
+    }
+
+    private Frame added() {
+        if (count == ends.length) {
+            ends = Arrays.copyOf(ends, count * 2);
+        }
+        ends[count++] = buf.position();
+        return this;
+    }
+
+    /**
+     * Appends the commands collected by another frame, which is left
+     * unchanged.
+     */
+    public Frame append(Frame other) {
+        if (other.count == 0) {
+            return this;
+        }
+        int base = buf == null ? 0 : buf.position();
+        room(other.buf.position()).put(other.buf.duplicate().flip());
+        for (int i = 0; i < other.count; i++) {
+            if (count == ends.length) {
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            ends[count++] = base + other.ends[i];
+        }
+        replacesBackground |= other.replacesBackground;
+        clears |= other.clears;
+        return this;
+    }
+
+    public Frame beep(int num) {
+        K8101Encoder.put(room(7), K8101.Command.beep, num);
+        return added();
+    }
+
+    public Frame backlight(int seconds) {
+        K8101Encoder.put(room(7), K8101.Command.backlight, seconds);
+        return added();
+    }
+
+    public Frame clearAll() {
+        K8101Encoder.put(room(6), K8101.Command.clearall);
+        replacesBackground = true;
+        return added();
+    }
+
+    public Frame clearForeground() {
+        K8101Encoder.put(room(6), K8101.Command.clearfg);
+        clears = true;
+        return added();
+    }
+
+    public Frame setContrast(int c) {
+        K8101Encoder.put(room(7), K8101.Command.contrast, c);
+        return added();
+    }
+
+    public Frame setInverted(boolean inv) {
+        K8101Encoder.put(room(7), K8101.Command.invert, inv ? 1 : 0);
+        return added();
+    }
+
+    public Frame drawPixel(int x, int y) {
+        K8101Encoder.put(room(8), K8101.Command.drawpixel, x, y);
+        return added();
+    }
+
+    public Frame erasePixel(int x, int y) {
+        K8101Encoder.put(room(8), K8101.Command.erasepixel, x, y);
+        return added();
+    }
+
+    public Frame drawLine(int x, int y, int x2, int y2) {
+        K8101Encoder.put(room(10), K8101.Command.drawline, x, y, x2, y2);
+        return added();
+    }
+
+    public Frame eraseLine(int x, int y, int x2, int y2) {
+        K8101Encoder.put(room(10), K8101.Command.eraseline, x, y, x2, y2);
+        return added();
+    }
+
+    public Frame drawRectangle(int x, int y, int width, int height, boolean plain) {
+        if (plain) {
+            K8101Encoder.put(room(10), K8101.Command.drawrect, x, y, width, height);
+            return added();
+        }
+        return drawLine(x, y, x + width, y)
+                .drawLine(x + width, y, x + width, y + height)
+                .drawLine(x + width, y + height, x, y + height)
+                .drawLine(x, y + height, x, y);
+    }
+
+    public Frame eraseRectangle(int x, int y, int width, int height, boolean plain) {
+        if (plain) {
+            K8101Encoder.put(room(10), K8101.Command.eraserect, x, y, width, height);
+            return added();
+        }
+        return eraseLine(x, y, x + width, y)
+                .eraseLine(x + width, y, x + width, y + height)
+                .eraseLine(x + width, y + height, x, y + height)
+                .eraseLine(x, y + height, x, y);
+    }
+
+    public Frame drawText(String txt, int x, int y, int width, K8101.TextSize size) {
+        K8101Encoder.putText(room(K8101Encoder.textLength(txt)), txt, x, y, width, size);
+        return added();
+    }
+
+    public Frame drawBitmap(Icon icon) {
+        return drawBitmap(K8101.iconImage(icon));
+    }
+
+    public Frame drawBitmap(BufferedImage img) {
+        K8101Encoder.putBitmap(room(K8101Encoder.MAX_FRAME), img);
+        replacesBackground = true;
+        return added();
+    }
+
+    public Frame drawBitmap(byte[] bitmap) {
+        K8101Encoder.putBitmap(room(K8101Encoder.MAX_FRAME), bitmap);
+        replacesBackground = true;
+        return added();
+    }
+
+    /**
+     * @return true if the frame holds a command replacing the bitmap that
+     * the firmware restores on clearfg
+     */
+    boolean replacesBackground() {
+        return replacesBackground;
+    }
+
+    /**
+     * @return the encoded commands, not to be kept after the next change
+     */
+    ByteBuffer frames() {
+        return buf == null ? ByteBuffer.allocate(0) : buf.slice(0, buf.position());
+    }
+
+    /**
+     * @return the number of commands collected so far
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return the number of encoded bytes collected so far
+     */
+    public int byteCount() {
+        return buf == null ? 0 : buf.position();
+    }
+
+    /**
+     * Sends the collected commands in as few transfers as the limits allow,
+     * then empties the frame.
+     *
+     * @return completes when every transfer of the frame has been accepted
+     * by every target
+     */
+    public CompletableFuture<Void> commit() {
+        if (count > 0 && optimizing()) {
+            optimize();
+        }
+        ArrayList<CompletableFuture<Void>> sent = new ArrayList<CompletableFuture<Void>>(targets.length);
+        int start = 0;
+        int first = 0;
+        for (int i = 0; i < count; i++) {
+            int end = ends[i];
+            boolean full = i - first >= maxCommands || end - start > maxBytes;
+            if (full && i > first) {
+                send(buf.slice(start, ends[i - 1] - start), sent);
+                start = ends[i - 1];
+                first = i;
+            }
+        }
+        if (count > first) {
+            send(buf.slice(start, buf.position() - start), sent);
+        }
+        if (replacesBackground) {
+            for (K8101Display target : targets) {
+                target.backgroundReplaced();
+            }
+        } else if (clears) {
+            for (K8101Display target : targets) {
+                target.screenCleared();
+            }
+        }
+        // every target has copied or written the commands
+        release(buf);
+        release(spare);
+        buf = null;
+        spare = null;
+        count = 0;
+        replacesBackground = false;
+        clears = false;
+        if (sent.size() == 1) {
+            return sent.get(0);
+        }
+        return CompletableFuture.allOf(sent.toArray(new CompletableFuture<?>[sent.size()]));
+    }
+
+    private boolean optimizing() {
+        for (K8101Display target : targets) {
+            if (!target.isOptimizing()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void optimize() {
+        if (spare == null || spare.capacity() < buf.capacity()) {
+            release(spare);
+            spare = acquire(buf.capacity());
+        }
+        spare.clear();
+        int contrast = targets.length == 1 ? targets[0].knownContrast() : -1;
+        int inverted = targets.length == 1 ? targets[0].knownInverted() : -1;
+        K8101Optimizer opt = K8101Optimizer.local();
+        int n = opt.optimize(buf, ends, count, spare, contrast, inverted);
+        if (ends.length < n) {
+            ends = new int[n];
+        }
+        for (int i = 0; i < n; i++) {
+            ends[i] = opt.end(i);
+        }
+        count = n;
+        ByteBuffer b = buf;
+        buf = spare;
+        spare = b;
+    }
+
+    private void send(ByteBuffer cmds, ArrayList<CompletableFuture<Void>> sent) {
+        for (K8101Display target : targets) {
+            sent.add(target.sendBatch(cmds));
+        }
+    }
+}
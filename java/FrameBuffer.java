@@ -0,0 +1,343 @@
+
+package fr.seki.dashboard.usb;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Off-screen copy of the display, in the native layout of the bitmap command:
+ * 8 bands of 8 lines, one byte per column per band, LSB on top.
+ *
+ * Drawing only changes the host-side buffer. {@link #flush()} compares it with
+ * the last frame known to be on the device and sends the cheapest command
+ * stream: pixels, lines and rectangles for the differences, or a full bitmap
+ * when those would weigh more. Note that a bitmap also replaces the image
+ * restored by {@link K8101#clearForeground()}.
+ *
+ * @author seb
+ */
+public final class FrameBuffer {
+
+    public static final int WIDTH = 128;
+    public static final int HEIGHT = 64;
+    public static final int SIZE = WIDTH * HEIGHT / 8;
+
+    /* encoded size of the commands, see K8101Encoder */
+    private static final int PIXEL_COST = 8;
+    private static final int LINE_COST = 10;
+    private static final int CLEAR_COST = 6;
+    private static final int BITMAP_COST = 6 + SIZE + 1;
+
+    private final byte[] pixels = new byte[SIZE];
+    private final byte[] device = new byte[SIZE];
+    private boolean deviceKnown;
+
+    /* scratch for the diff: rectangles still open on the previous line and
+       on the current one, sorted on x */
+    private int[] openX = new int[WIDTH];
+    private int[] openY = new int[WIDTH];
+    private int[] openW = new int[WIDTH];
+    private boolean[] openOn = new boolean[WIDTH];
+    private int[] nextX = new int[WIDTH];
+    private int[] nextY = new int[WIDTH];
+    private int[] nextW = new int[WIDTH];
+    private boolean[] nextOn = new boolean[WIDTH];
+
+    static int index(int x, int y) {
+        return (y >> 3) * WIDTH + x;
+    }
+
+    private static boolean get(byte[] buf, int x, int y) {
+        return (buf[index(x, y)] & 1 << (y & 7)) != 0;
+    }
+
+    private static boolean inside(int x, int y) {
+        return x >= 0 && x < WIDTH && y >= 0 && y < HEIGHT;
+    }
+
+    public boolean getPixel(int x, int y) {
+        return inside(x, y) && get(pixels, x, y);
+    }
+
+    /**
+     * Sets (on = dark) or clears a pixel, coordinates outside of the screen
+     * are ignored.
+     */
+    public void setPixel(int x, int y, boolean on) {
+        if (!inside(x, y)) {
+            return;
+        }
+        int i = index(x, y);
+        if (on) {
+            pixels[i] |= 1 << (y & 7);
+        } else {
+            pixels[i] &= ~(1 << (y & 7));
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(pixels, (byte) 0);
+    }
+
+    public void drawPixel(int x, int y) {
+        setPixel(x, y, true);
+    }
+
+    public void erasePixel(int x, int y) {
+        setPixel(x, y, false);
+    }
+
+    public void drawLine(int x, int y, int x2, int y2) {
+        line(x, y, x2, y2, true);
+    }
+
+    public void eraseLine(int x, int y, int x2, int y2) {
+        line(x, y, x2, y2, false);
+    }
+
+    /* Bresenham, both ends included */
+    private void line(int x, int y, int x2, int y2, boolean on) {
+        int dx = Math.abs(x2 - x);
+        int dy = -Math.abs(y2 - y);
+        int sx = x < x2 ? 1 : -1;
+        int sy = y < y2 ? 1 : -1;
+        int err = dx + dy;
+        while (true) {
+            setPixel(x, y, on);
+            if (x == x2 && y == y2) {
+                break;
+            }
+            int e2 = 2 * err;
+            if (e2 >= dy) {
+                err += dy;
+                x += sx;
+            }
+            if (e2 <= dx) {
+                err += dx;
+                y += sy;
+            }
+        }
+    }
+
+    /**
+     * Same conventions as {@link K8101#drawRectangle}: a plain rectangle covers
+     * width x height pixels, an outline joins (x, y) to (x + width, y + height).
+     */
+    public void drawRectangle(int x, int y, int width, int height, boolean plain) {
+        rectangle(x, y, width, height, plain, true);
+    }
+
+    public void eraseRectangle(int x, int y, int width, int height, boolean plain) {
+        rectangle(x, y, width, height, plain, false);
+    }
+
+    private void rectangle(int x, int y, int width, int height, boolean plain, boolean on) {
+        if (plain) {
+            for (int j = y; j < y + height; j++) {
+                for (int i = x; i < x + width; i++) {
+                    setPixel(i, j, on);
+                }
+            }
+        } else {
+            line(x, y, x + width, y, on);
+            line(x + width, y, x + width, y + height, on);
+            line(x + width, y + height, x, y + height, on);
+            line(x, y + height, x, y, on);
+        }
+    }
+
+    /**
+     * Replaces the whole buffer with a bitmap in the device layout.
+     */
+    public void setBitmap(byte[] bitmap) {
+        if (bitmap.length != SIZE) {
+            throw new IllegalArgumentException("bitmap must be " + SIZE + " bytes");
+        }
+        System.arraycopy(bitmap, 0, pixels, 0, SIZE);
+    }
+
+    /**
+     * @return a copy of the buffer in the device layout
+     */
+    public byte[] toBitmap() {
+        return pixels.clone();
+    }
+
+    /**
+     * Forgets what is on the device (replug, external drawing): the next
+     * flush redraws everything.
+     */
+    public void invalidate() {
+        deviceKnown = false;
+    }
+
+    /**
+     * Records that the device screen has been cleared by someone else.
+     */
+    public void deviceCleared() {
+        Arrays.fill(device, (byte) 0);
+        deviceKnown = true;
+    }
+
+    /**
+     * Sends the differences with the device in a single batch.
+     */
+    public CompletableFuture<Void> flush() {
+        return flush(K8101.display());
+    }
+
+    /**
+     * Sends the differences with the given display, which this buffer
+     * mirrors, in a single batch.
+     */
+    public CompletableFuture<Void> flush(K8101Display display) {
+        Frame frame = display.batch();
+        appendTo(frame);
+        return frame.commit();
+    }
+
+    /**
+     * Appends the cheapest command sequence updating the device to the frame,
+     * and assumes it will be sent.
+     *
+     * @return the number of bytes appended
+     */
+    public int appendTo(Frame frame) {
+        int before = frame.byteCount();
+        if (!deviceKnown) {
+            // blank screen plus drawing, or a full bitmap
+            Arrays.fill(device, (byte) 0);
+            if (CLEAR_COST + diff(null) < BITMAP_COST) {
+                frame.clearAll();
+                diff(frame);
+            } else {
+                frame.drawBitmap(pixels);
+            }
+        } else if (!Arrays.equals(pixels, device)) {
+            if (diff(null) < BITMAP_COST) {
+                diff(frame);
+            } else {
+                frame.drawBitmap(pixels);
+            }
+        }
+        System.arraycopy(pixels, 0, device, 0, SIZE);
+        deviceKnown = true;
+        return frame.byteCount() - before;
+    }
+
+    /**
+     * Appends the commands drawing this buffer over the given image, which is
+     * on the device. Never a bitmap, so that the image stays the one restored
+     * by clearfg.
+     *
+     * @return the number of bytes appended
+     */
+    int appendDiff(Frame frame, byte[] onDevice) {
+        System.arraycopy(onDevice, 0, device, 0, SIZE);
+        int cost = diff(frame);
+        System.arraycopy(pixels, 0, device, 0, SIZE);
+        deviceKnown = true;
+        return cost;
+    }
+
+    /**
+     * Covers the changed pixels with rectangles: horizontal runs of pixels
+     * changing to the same value, merged with identical runs of the lines
+     * below. Each rectangle becomes a pixel, a line or a plain rectangle
+     * command.
+     *
+     * @param frame receives the commands, or null to only compute the cost
+     * @return the encoded size of the commands
+     */
+    private int diff(Frame frame) {
+        int cost = 0;
+        int open = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            int next = 0;
+            int r = 0;
+            int x = 0;
+            while (x < WIDTH) {
+                boolean on = get(pixels, x, y);
+                if (on == get(device, x, y)) {
+                    x++;
+                    continue;
+                }
+                int start = x;
+                while (x < WIDTH && get(pixels, x, y) == on && get(device, x, y) != on) {
+                    x++;
+                }
+                int w = x - start;
+                // rectangles of the previous line left of this run are complete
+                while (r < open && openX[r] < start) {
+                    cost += emit(frame, openX[r], openY[r], openW[r], y - openY[r], openOn[r]);
+                    r++;
+                }
+                if (r < open && openX[r] == start && openW[r] == w && openOn[r] == on) {
+                    nextX[next] = start;
+                    nextY[next] = openY[r];
+                    r++;
+                } else {
+                    nextX[next] = start;
+                    nextY[next] = y;
+                }
+                nextW[next] = w;
+                nextOn[next] = on;
+                next++;
+            }
+            while (r < open) {
+                cost += emit(frame, openX[r], openY[r], openW[r], y - openY[r], openOn[r]);
+                r++;
+            }
+            swap();
+            open = next;
+        }
+        for (int r = 0; r < open; r++) {
+            cost += emit(frame, openX[r], openY[r], openW[r], HEIGHT - openY[r], openOn[r]);
+        }
+        return cost;
+    }
+
+    private void swap() {
+        int[] t = openX;
+        openX = nextX;
+        nextX = t;
+        t = openY;
+        openY = nextY;
+        nextY = t;
+        t = openW;
+        openW = nextW;
+        nextW = t;
+        boolean[] b = openOn;
+        openOn = nextOn;
+        nextOn = b;
+    }
+
+    private static int emit(Frame frame, int x, int y, int w, int h, boolean on) {
+        if (w == 1 && h == 1) {
+            if (frame != null) {
+                if (on) {
+                    frame.drawPixel(x, y);
+                } else {
+                    frame.erasePixel(x, y);
+                }
+            }
+            return PIXEL_COST;
+        }
+        if (frame != null) {
+            if (w == 1 || h == 1) {
+                if (on) {
+                    frame.drawLine(x, y, x + w - 1, y + h - 1);
+                } else {
+                    frame.eraseLine(x, y, x + w - 1, y + h - 1);
+                }
+            } else {
+                if (on) {
+                    frame.drawRectangle(x, y, w, h, true);
+                } else {
+                    frame.eraseRectangle(x, y, w, h, true);
+                }
+            }
+        }
+        return LINE_COST;
+    }
+}
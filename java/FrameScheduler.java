@@ -0,0 +1,211 @@
+
+package fr.seki.dashboard.usb;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Latest-wins scheduling of the updates of a display.
+ *
+ * Producers do not send their drawings, they submit them under a key (one per
+ * screen area: "clock", "cpu", ...). A pending update is replaced by the next
+ * one with the same key, and {@link #redraw(Consumer)} replaces every pending
+ * update. A scheduler thread sends what is pending as a single frame, at most
+ * maxFps times per second, and never before the previous frame has been
+ * accepted by the device: the pace follows the device throughput instead of
+ * the producers rate, and an update is never more than about two frame times
+ * old when it goes out, whatever the load. {@link #updateNow(String, Consumer)}
+ * skips the wait for alarms.
+ *
+ * The futures complete when the frame holding the update has been accepted,
+ * or normally when the update is superseded before being sent.
+ *
+ * @author seb
+ */
+public final class FrameScheduler {
+
+    private static final Logger logger = Logger.getLogger(FrameScheduler.class.toString());
+
+    /* key of full screen updates, sent before the areas updated after them */
+    private static final String SCREEN = "";
+
+    private static final class Update {
+        private final Frame frame;
+        private final CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+        private Update(Frame frame) {
+            this.frame = frame;
+        }
+    }
+
+    private final K8101Display display;
+    private final long minInterval;
+    private final LinkedHashMap<String, Update> pending = new LinkedHashMap<String, Update>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Thread scheduler;
+    private boolean urgent;
+    private volatile boolean running = true;
+    private volatile long frameNanos; // duration of the last frame, for monitoring
+
+    /**
+     * @param maxFps maximum number of frames sent per second
+     */
+    public FrameScheduler(K8101Display display, double maxFps) {
+        if (!(maxFps > 0)) {
+            throw new IllegalArgumentException("maxFps must be positive");
+        }
+        this.display = display;
+        this.minInterval = (long) (TimeUnit.SECONDS.toNanos(1) / maxFps);
+        this.scheduler = new Thread(this::run, "K8101-scheduler-" + display.getId());
+        this.scheduler.setDaemon(true);
+        this.scheduler.start();
+    }
+
+    /**
+     * Replaces the pending update of an area.
+     *
+     * @param drawing appends the commands of the update to the given frame,
+     * called in the calling thread
+     */
+    public CompletableFuture<Void> update(String key, Consumer<Frame> drawing) {
+        return submit(key, drawing, false, false);
+    }
+
+    /**
+     * Replaces the pending update of an area and sends it without waiting
+     * for the next frame time.
+     */
+    public CompletableFuture<Void> updateNow(String key, Consumer<Frame> drawing) {
+        return submit(key, drawing, true, false);
+    }
+
+    /**
+     * Replaces all the pending updates by a full screen one, e.g. starting
+     * with {@link Frame#clearAll()} or {@link Frame#drawBitmap(byte[])}.
+     */
+    public CompletableFuture<Void> redraw(Consumer<Frame> drawing) {
+        return submit(SCREEN, drawing, false, true);
+    }
+
+    private CompletableFuture<Void> submit(String key, Consumer<Frame> drawing, boolean now, boolean screen) {
+        if (key == null || (key.equals(SCREEN) && !screen)) {
+            throw new IllegalArgumentException("key must not be null nor empty");
+        }
+        Frame frame = display.batch();
+        drawing.accept(frame);
+        Update update = new Update(frame);
+        lock.lock();
+        try {
+            if (!running) {
+                return CompletableFuture.failedFuture(new IllegalStateException("scheduler closed"));
+            }
+            if (screen) {
+                for (Update superseded : pending.values()) {
+                    superseded.future.complete(null);
+                }
+                pending.clear();
+            } else {
+                Update superseded = pending.remove(key);
+                if (superseded != null) {
+                    superseded.future.complete(null);
+                }
+            }
+            // an area updated again goes after the others, so overlapping
+            // areas keep their drawing order
+            pending.put(key, update);
+            urgent |= now;
+            changed.signal();
+            return update.future;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the time the device took to accept the last frame, in
+     * nanoseconds
+     */
+    public long getFrameNanos() {
+        return frameNanos;
+    }
+
+    private void run() {
+        Frame frame = display.batch();
+        ArrayList<Update> sent = new ArrayList<Update>();
+        long due = System.nanoTime();
+        while (running) {
+            lock.lock();
+            try {
+                while (running && (pending.isEmpty() || (!urgent && due - System.nanoTime() > 0))) {
+                    if (pending.isEmpty()) {
+                        changed.await();
+                    } else {
+                        changed.awaitNanos(due - System.nanoTime());
+                    }
+                }
+                Iterator<Map.Entry<String, Update>> it = pending.entrySet().iterator();
+                while (it.hasNext()) {
+                    Update u = it.next().getValue();
+                    frame.append(u.frame);
+                    sent.add(u);
+                    it.remove();
+                }
+                urgent = false;
+            } catch (InterruptedException ie) {
+                break;
+            } finally {
+                lock.unlock();
+            }
+            if (sent.isEmpty()) {
+                continue;
+            }
+            long start = System.nanoTime();
+            Throwable failure = null;
+            try {
+                frame.commit().join();
+            } catch (RuntimeException re) {
+                failure = re.getCause() != null ? re.getCause() : re;
+                logger.log(Level.WARNING, "frame not sent", failure);
+            }
+            long end = System.nanoTime();
+            frameNanos = end - start;
+            // a slow device spaces the frames by its own duration
+            due = start + Math.max(minInterval, frameNanos);
+            for (Update u : sent) {
+                if (failure == null) {
+                    u.future.complete(null);
+                } else {
+                    u.future.completeExceptionally(failure);
+                }
+            }
+            sent.clear();
+        }
+    }
+
+    /**
+     * Stops the scheduler, pending updates are cancelled.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            running = false;
+            for (Update u : pending.values()) {
+                u.future.cancel(false);
+            }
+            pending.clear();
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
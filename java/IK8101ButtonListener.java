@@ -0,0 +1,17 @@
+
+package fr.seki.dashboard.usb;
+
+/**
+ * Receives the presses of the button of a display.
+ *
+ * Called from a dedicated dispatch thread, one event at a time in the order
+ * of the presses: a slow listener delays the next events, never the display.
+ *
+ * @author seb
+ */
+public interface IK8101ButtonListener {
+
+    void buttonShortPress(K8101Display display);
+
+    void buttonLongPress(K8101Display display);
+}
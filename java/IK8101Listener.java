@@ -0,0 +1,14 @@
+
+package fr.seki.dashboard.usb;
+
+/**
+ * Receives the hotplug events of the K8101 boards.
+ *
+ * @author seb
+ */
+public interface IK8101Listener {
+
+    void deviceAttached();
+
+    void deviceDetached();
+}
@@ -3,20 +3,19 @@ package fr.seki.dashboard.usb;
 
 import java.awt.Graphics;
 import java.awt.image.BufferedImage;
-import static java.lang.Math.cos;
-import static java.lang.Math.sin;
 import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
 import java.time.LocalTime;
-import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.Icon;
-import org.usb4java.BufferUtils;
 import org.usb4java.Context;
 import org.usb4java.Device;
 import org.usb4java.DeviceDescriptor;
-import org.usb4java.DeviceHandle;
 import org.usb4java.DeviceList;
 import org.usb4java.HotplugCallback;
 import org.usb4java.HotplugCallbackHandle;
@@ -24,26 +23,46 @@ import org.usb4java.LibUsb;
 import org.usb4java.LibUsbException;
 
 /**
+ * Entry point of the driver: the libusb context, its event handling thread
+ * and hotplug callback, and static drawing methods on the default display.
+ *
+ * All the static methods can be called from any thread. The context is
+ * created on first use and released by {@link #close()}; the attachment state
+ * is only written by the event handling thread, and the default display and
+ * the listeners are read without locking.
+ *
+ * Starting is lazy: the first command only initializes libusb and opens the
+ * board, so that a one-shot command costs a single enumeration. Hotplug is
+ * followed once something needs it (listeners, attachment state, asynchronous
+ * mode, buttons). Its registration enumerates the boards already plugged,
+ * which are kept with their bus/port path: sessions are then opened on them
+ * without scanning the devices again.
  *
  * @author seb
  */
-public class K8101 implements HotplugCallback {
+public class K8101 implements HotplugCallback, AutoCloseable {
 
-    private static Context ctx;
-    private static K8101 instance;
+    private static volatile Context ctx;
+    private static volatile K8101 instance;
     private static final Logger logger = Logger.getLogger(K8101.class.toString());
 
-    private static final int INTERFACE = 1;
-    private static final byte EP = 2;
-    private static final short VENDOR_ID = 0x10cf;
-    private static final short PRODUCT_ID = (short) 0x8101;
-    private static Device device;
-    private static ArrayList<IK8101Listener> listeners;
+    static final int INTERFACE = 1;
+    static final byte EP = 2;
+    static final short VENDOR_ID = 0x10cf;
+    static final short PRODUCT_ID = (short) 0x8101;
+    static final long TIMEOUT = 500L;
+    private static volatile boolean attached;
+    private static volatile K8101Display display;
+    private static final CopyOnWriteArrayList<IK8101Listener> listeners = new CopyOnWriteArrayList<IK8101Listener>();
     
     //usb events
     
     private static HotplugCallbackHandle callbackHandle;
-    private static EventHandlingThread thread;
+    private static volatile EventHandlingThread thread;
+    /* the boards plugged while watching, by arrival, with their bus/port path */
+    private static final LinkedHashMap<Device, String> boards = new LinkedHashMap<Device, String>();
+    private static volatile boolean watching;
+    private static boolean searched; // without hotplug
     
     /**
      * This is the event handling thread. libusb doesn't start threads by its
@@ -52,11 +71,19 @@ public class K8101 implements HotplugCallback {
      */
     private static class EventHandlingThread extends Thread {
 
+        private final Context context;
+
         /**
          * If thread should abort.
          */
         private volatile boolean abort;
 
+        private EventHandlingThread(Context context) {
+            super("K8101-events");
+            this.context = context;
+            setDaemon(true);
+        }
+
         /**
          * Aborts the event handling thread.
          */
@@ -70,8 +97,9 @@ public class K8101 implements HotplugCallback {
                 // Let libusb handle pending events. This blocks until events
                 // have been handled, a hotplug callback has been deregistered
                 // or the specified time of 1 second (Specified in
-                // Microseconds) has passed.
-                int result = LibUsb.handleEventsTimeout(null, 1000000);
+                // Microseconds) has passed. Completions of asynchronous
+                // transfers are dispatched from here as well.
+                int result = LibUsb.handleEventsTimeout(context, 1000000);
                 if (result != LibUsb.SUCCESS) {
                     throw new LibUsbException("Unable to handle events", result);
                 }
@@ -80,79 +108,208 @@ public class K8101 implements HotplugCallback {
     }
 
     private K8101() throws LibUsbException {
-        listeners = new ArrayList<IK8101Listener>();
-
         ctx = new Context();
         int result = LibUsb.init(ctx);
         if (result != LibUsb.SUCCESS) {
             throw new LibUsbException("Unable to initialize", result);
         }
-        logger.log(Level.INFO, "Libusb version " + LibUsb.getVersion());
-        LibUsb.setDebug(ctx, 1);
-        
-        if (LibUsb.hasCapability(LibUsb.CAP_SUPPORTS_DETACH_KERNEL_DRIVER)) {
-            logger.info("This platform supports kernel drivers detaching");
-        } else {
-            logger.info("Cannot detach kernel drivers on this platform");
-        } 
-
-        device = findDevice(VENDOR_ID, PRODUCT_ID);
-        if (device == null){
-            logger.log(Level.WARNING, "Device not found");
+        Integer level = Integer.getInteger("k8101.usb.debug");
+        if (level != null) {
+            LibUsb.setOption(ctx, LibUsb.OPTION_LOG_LEVEL, level);
         }
+        logger.fine("Libusb version " + LibUsb.getVersion() + ", kernel drivers detaching "
+                + (LibUsb.hasCapability(LibUsb.CAP_SUPPORTS_DETACH_KERNEL_DRIVER) ? "supported" : "not supported"));
+    }
 
-        if (LibUsb.hasCapability(LibUsb.CAP_HAS_HOTPLUG)) {
-            // Start the event handling thread
-            EventHandlingThread thread = new EventHandlingThread();
-            thread.start();
-
-            // Register the hotplug callback
-            callbackHandle = new HotplugCallbackHandle();
-            result = LibUsb.hotplugRegisterCallback(null,
+    /**
+     * Follows the hotplug events of the boards, if the platform reports them,
+     * or else looks for a board once.
+     */
+    static void watch() {
+        Context c = context();
+        synchronized (K8101.class) {
+            if (watching || searched || c != ctx) {
+                return;
+            }
+            if (!LibUsb.hasCapability(LibUsb.CAP_HAS_HOTPLUG)) {
+                attached = findDevice(VENDOR_ID, PRODUCT_ID);
+                if (!attached) {
+                    logger.log(Level.WARNING, "Device not found");
+                }
+                searched = true;
+                return;
+            }
+            startEventThread(c);
+            // called back here for the boards already plugged
+            HotplugCallbackHandle handle = new HotplugCallbackHandle();
+            int result = LibUsb.hotplugRegisterCallback(c,
                     LibUsb.HOTPLUG_EVENT_DEVICE_ARRIVED
                     | LibUsb.HOTPLUG_EVENT_DEVICE_LEFT,
                     LibUsb.HOTPLUG_ENUMERATE,
+                    VENDOR_ID,
+                    PRODUCT_ID,
                     LibUsb.HOTPLUG_MATCH_ANY,
-                    LibUsb.HOTPLUG_MATCH_ANY,
-                    LibUsb.HOTPLUG_MATCH_ANY,
-                    this, null, callbackHandle); //new Callback()
+                    instance, null, handle);
             if (result != LibUsb.SUCCESS) {
                 throw new LibUsbException("Unable to register hotplug callback",
                         result);
             }
+            callbackHandle = handle;
+            watching = true;
+            if (!attached) {
+                logger.log(Level.WARNING, "Device not found");
+            }
         }
-        
-        // for desctructor
-        // Unregister the hotplug callback and stop the event handling thread
-        //thread.abort();
-        //LibUsb.hotplugDeregisterCallback(null, callbackHandle);
-        //thread.join();
-        //
-        // Deinitialize the libusb context
-        //LibUsb.exit(null);
     }
 
+    /**
+     * @return true if the boards plugged are known from hotplug, see
+     * {@link #boards()}
+     */
+    static boolean isWatching() {
+        return watching;
+    }
+
+    /**
+     * Returns the boards plugged, known from hotplug. Each device is
+     * referenced once more, the caller unreferences them when done.
+     *
+     * @return the devices by arrival, with their bus/port path
+     */
+    static Map<Device, String> boards() {
+        synchronized (boards) {
+            LinkedHashMap<Device, String> copy = new LinkedHashMap<Device, String>(boards);
+            for (Device device : copy.keySet()) {
+                LibUsb.refDevice(device);
+            }
+            return copy;
+        }
+    }
+
+    static void unref(Map<Device, String> devices) {
+        for (Device device : devices.keySet()) {
+            LibUsb.unrefDevice(device);
+        }
+    }
+
+    /**
+     * @return the bus/port path of a device, cached for the known boards
+     */
+    static String path(Device device) {
+        String path;
+        synchronized (boards) {
+            path = boards.get(device);
+        }
+        return path != null ? path : UsbTransport.path(device);
+    }
+
+    /**
+     * Releases the driver: closes the displays, stops the event handling
+     * thread and deinitializes libusb. The next call to the driver starts it
+     * again.
+     */
     @Override
-    protected void finalize() throws Throwable {
-        // Unregister the hotplug callback and stop the event handling thread
-        thread.abort();
-        LibUsb.hotplugDeregisterCallback(null, callbackHandle);
-        thread.join();
-        //
-        // Deinitialize the libusb context
-        //LibUsb.exit(null);
+    public void close() {
+        K8101Display d;
+        EventHandlingThread t;
+        HotplugCallbackHandle h;
+        Context c;
+        synchronized (K8101.class) {
+            if (instance != this) {
+                return;
+            }
+            instance = null;
+            d = display;
+            display = null;
+            t = thread;
+            thread = null;
+            h = callbackHandle;
+            callbackHandle = null;
+            c = ctx;
+            ctx = null;
+            attached = false;
+            watching = false;
+            searched = false;
+        }
+        // outside of the lock: closing waits for transfers completed by the
+        // event handling thread, which may call back into the driver
+        if (d != null) {
+            d.close();
+        }
+        K8101Display.closeAll();
+        if (h != null) {
+            LibUsb.hotplugDeregisterCallback(c, h);
+        }
+        synchronized (boards) {
+            for (Device device : boards.keySet()) {
+                LibUsb.unrefDevice(device);
+            }
+            boards.clear();
+        }
+        if (t != null) {
+            t.abort();
+            if (t != Thread.currentThread()) {
+                try {
+                    t.join();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        LibUsb.exit(c);
+    }
+
+    /**
+     * Starts handling the libusb events, e.g. for asynchronous transfers, and
+     * follows hotplug.
+     */
+    static void startEventThread() {
+        Context c = context();
+        synchronized (K8101.class) {
+            if (c == ctx) {
+                startEventThread(c);
+            }
+        }
+        watch();
+    }
 
-        super.finalize(); //To change body of generated methods, choose Tools | Templates.
+    private static void startEventThread(Context c) {
+        if (thread == null) {
+            thread = new EventHandlingThread(c);
+            thread.start();
+        }
+    }
+
+    /**
+     * @return true when called from the libusb event handling thread
+     */
+    static boolean isEventThread() {
+        return Thread.currentThread() == thread;
     }
 
     public static K8101 getinstance() {
-        if (instance == null) {
-            instance = new K8101();
+        K8101 k = instance;
+        if (k == null) {
+            synchronized (K8101.class) {
+                k = instance;
+                if (k == null) {
+                    k = new K8101();
+                    instance = k;
+                }
+            }
         }
-        return instance;
+        return k;
+    }
+
+    /**
+     * @return the libusb context shared by all the displays
+     */
+    static Context context() {
+        getinstance();
+        return ctx;
     }
 
-    private static Device findDevice(int vendorId, int productId) {
+    private static boolean findDevice(int vendorId, int productId) {
         // Read the USB device list
         DeviceList list = new DeviceList();
         int result = LibUsb.getDeviceList(ctx, list);
@@ -169,74 +326,101 @@ public class K8101 implements HotplugCallback {
                     throw new LibUsbException("Unable to read device descriptor", result);
                 }
                 if (descriptor.idVendor() == vendorId && descriptor.idProduct() == productId) {
-                    LibUsb.freeDeviceList(list, true);
-                    return device;
+                    return true;
                 }
             }
         } finally {
             // Ensure the allocated device list is freed
-            if (list.getSize() > 0){
-                LibUsb.freeDeviceList(list, true);
-            }
+            LibUsb.freeDeviceList(list, true);
         }
 
-        System.out.println("Device not found");
-        return null;
+        logger.fine("Device not found");
+        return false;
     }
 
+    /**
+     * @return true if a board is plugged, the first call follows hotplug
+     */
     public static boolean isDeviceAttached() {
-        return device != null;
+        watch();
+        return attached;
     }
 
-    private static boolean showNumericTime = false;
+    private static volatile boolean showNumericTime = false;
     
     public static void showNumericTime(boolean show){
         showNumericTime = show;
     }
     
-    public static void drawClock() {
+    /* the clock of drawClock(), centered at (64, 34) */
+    private static final int[] CLOCK_TICKS = K8101Dial.spokes(64, 34, 28, 31, 12, 90, 360);
+    private static final int[] CLOCK_HOURS = K8101Dial.spokes(64, 34, 0, 15, 60, 90, 360);
+    private static final int[] CLOCK_MINUTES = K8101Dial.spokes(64, 34, 0, 25, 60, 90, 360);
+    /* what drawClock() left on the screen of clockDisplay */
+    private static K8101Display clockDisplay;
+    private static int clockClears;
+    private static int clockHour = -1;
+    private static int clockMinute = -1;
+    private static String clockText;
+
+    /**
+     * Draws the ticks and hands of a clock over the screen, in one batch. For
+     * a clock updated in place, see {@link AnalogClock}.
+     *
+     * While nothing wiped the screen since the previous call, only the hands
+     * and digits that changed are erased and drawn again, and nothing is
+     * sent within the same minute.
+     */
+    public static CompletableFuture<Void> drawClock() {
         LocalTime now = LocalTime.now();
         int hour = now.getHour();//calendar.get(Calendar.HOUR);        // gets hour in 12h format
         int minutes = now.getMinute(); //calendar.get(Calendar.MINUTE);
-
-        for (int tick : new int[]{0, 5, 10, 15, 20, 25, 30, 35, 40, 45, 50, 55}) {
-            drawHand(tick, 60, 31, 28);
-        }
-        //drawHand(hour, 12, 15); // this is drawing a "fixed" hand in front of the hour
-        drawHand(hour * 5 + (minutes * 5) / 60, 60, 15);
-        drawHand(minutes, 60, 25);
-        
-        if (showNumericTime){
-            String txt = String.format("%02d:%02d", hour, minutes);
-            drawText(txt, 0, 0, txt.length() * TextSize.big.getWidth(), TextSize.big);
+        int hourHand = (hour % 12) * 5 + minutes / 12;
+        String txt = showNumericTime ? String.format("%02d:%02d", hour, minutes) : null;
+
+        K8101Display d = display();
+        Frame frame = d.batch();
+        synchronized (K8101.class) {
+            if (d != clockDisplay || d.clears() != clockClears) {
+                for (int i = 0; i < 12; i++) {
+                    clockLine(frame, CLOCK_TICKS, i, true);
+                }
+            } else {
+                if (hourHand == clockHour && minutes == clockMinute && Objects.equals(txt, clockText)) {
+                    return CompletableFuture.completedFuture(null);
+                }
+                // the hands cross at the center, both are drawn again
+                clockLine(frame, CLOCK_HOURS, clockHour, false);
+                clockLine(frame, CLOCK_MINUTES, clockMinute, false);
+                if (clockText != null) {
+                    frame.eraseRectangle(0, 0, K8101Text.width(clockText, TextSize.big), TextSize.big.getHeight(), true);
+                }
+            }
+            clockLine(frame, CLOCK_HOURS, hourHand, true);
+            clockLine(frame, CLOCK_MINUTES, minutes, true);
+            if (txt != null) {
+                frame.drawText(txt, 0, 0, K8101Text.width(txt, TextSize.big), TextSize.big);
+            }
+            clockDisplay = d;
+            clockHour = hourHand;
+            clockMinute = minutes;
+            clockText = txt;
+            // a failed transfer closes the link, which changes the count again
+            clockClears = d.clears();
         }
+        return frame.commit();
     }
 
-    private static void drawHand(int value, int maxValue, int length, int... start) {
-        double angle = timeToAngle(value, maxValue);
-        int orix = 64; // X center of screen
-        int oriy = 34; // Y center of screen
-        int x1, y1;
-        
-        if (start.length > 0) {
-            x1 = (int) (orix + (start[0] * cos(angle)));
-            y1 = (int) (oriy - (start[0] * sin(angle)));
+    private static void clockLine(Frame frame, int[] table, int position, boolean on) {
+        int i = 4 * position;
+        if (on) {
+            frame.drawLine(table[i], table[i + 1], table[i + 2], table[i + 3]);
         } else {
-            x1 = orix;
-            y1 = oriy;
+            frame.eraseLine(table[i], table[i + 1], table[i + 2], table[i + 3]);
         }
-        int x2 = (int) (orix + (length * cos(angle)));
-        int y2 = (int) (oriy - (length * sin(angle)));
-        drawLine(x1, y1, x2, y2);
     }
 
-    private static double timeToAngle(int val, int full) {
-        double a = -((360 / full * val) - 90); // angle
-        a = a * 3.14159265358979 / 180; // convert radians 
-        return a;
-    }
-
-    private enum Command {
+    enum Command {
         backlight(20),
         beep(6),
         bigtext(4),
@@ -259,11 +443,24 @@ public class K8101 implements HotplugCallback {
             this.code = (byte) code;
         }
 
-        private int getCode() {
+        int getCode() {
             return code;
         }
     }
 
+    /**
+     * Behaviour of the asynchronous queue when it is full.
+     */
+    public enum Backpressure {
+        /* the caller waits for room in the queue */
+        block,
+        /* the oldest queued command is cancelled */
+        dropOldest,
+        /* a queued bitmap, clear or setting command of the same kind is
+           replaced, other commands wait */
+        coalesce
+    }
+
     public enum TextSize {
         /* text is 6x8 or 4x8 */
         small(4),
@@ -283,310 +480,162 @@ public class K8101 implements HotplugCallback {
         }
     }
 
-    /* a command is: AA, lsb(size), msb(size), cmd, [data,] chk, 55
-       thus Size it is 6 bytes + data (if any)
-       and checksum is SUM( size + command + params bytes, not including start & stop) modulo 256 
-     */
-    private static int[] makeText(String txt) {
-        int[] payload = new int[txt.length()];
-        for (int i = 0; i < txt.length(); i++) {
-            payload[i] = txt.charAt(i);
-        }
-        return payload;
-    }
-
-    private static byte checkSum(byte[] cmd) {
-        int sum = 0;
-        for (byte b : cmd) {
-            sum += b;
-        }
-        return (byte) (sum % 256);
-    }
-
-    private static byte[] makeCommand(Command cmd, int[] params) {
-        int length = 0;
-        switch (cmd) {
-            case bitmap:
-                length = 6 + 1024 + 1; //extra byte needed by µcontroller of k8101 
-                //possible off-by-one in device fw
-                break;
-            case bigtext:
-            case smalltext:
-                length = 6 + params.length + 1; //possible off-by-one in device fw
-                break;
-            case drawline:
-            case drawrect:
-            case eraseline:
-            case eraserect:
-                length = 6 + 4; // 4 args
-                break;
-            case drawpixel:
-            case erasepixel:
-                length = 6 + 2; // 2 args
-                break;
-            case beep:
-            case backlight:
-            case contrast:
-            case invert:
-                length = 6 + 1; // 1 arg
-                break;
-            case clearall:
-            case clearfg:
-                length = 6; // no arg
-                break;
-//            case read:
-        }
-        byte[] payload = new byte[length];
-        int size = params.length + 6;
-        payload[1] = (byte) (size & 0xff); //lsb
-        switch (cmd) {
-            case drawline:
-            case eraseline:
-            case drawrect:
-            case eraserect:
-                payload[1] += 6; // bug in PIC?
-        }
-
-        payload[2] = (byte) (size >> 8 & 0xff); //msb
-        payload[3] = (byte) cmd.getCode();
-        for (int i = 0; i < params.length; i++) {
-            payload[4 + i] = (byte) params[i];
-        }
-        payload[payload.length - 2] = checkSum(payload);
-        payload[0] = (byte) 0xAA;
-        payload[payload.length - 1] = (byte) 0x55;
-        return payload;
+    public static CompletableFuture<Void> beep(int num) {
+        return display().beep(num);
     }
 
-    public static void beep(int num) {
-        int[] params = {num};
-        byte[] cmd = makeCommand(Command.beep, params);
-        send(cmd);
+    public static CompletableFuture<Void> backlight(int seconds) {
+        return display().backlight(seconds);
     }
 
-    public static void backlight(int seconds) {
-        int[] params = {seconds};
-        byte[] cmd = makeCommand(Command.backlight, params);
-        send(cmd);
+    public static CompletableFuture<Void> clearAll() {
+        return display().clearAll();
     }
 
-    public static void clearAll() {
-        int[] params = {};
-        byte[] cmd = makeCommand(Command.clearall, params);
-        send(cmd);
+    public static CompletableFuture<Void> clearForeground() {
+        return display().clearForeground();
     }
 
-    public static void clearForeground() {
-        int[] params = {};
-        byte[] cmd = makeCommand(Command.clearfg, params);
-        send(cmd);
+    public static CompletableFuture<Void> setContrast(int c) {
+        return display().setContrast(c);
     }
 
-    public static void setContrast(int c) {
-        int[] params = {c};
-        byte[] cmd = makeCommand(Command.contrast, params);
-        send(cmd);
+    public static CompletableFuture<Void> setInverted(boolean inv) {
+        return display().setInverted(inv);
     }
 
-    public static void setInverted(boolean inv) {
-        int[] params = {0};
-        if (inv) {
-            params[0] = 1;
-        }
-        byte[] cmd = makeCommand(Command.invert, params);
-        send(cmd);
+    public static CompletableFuture<Void> drawPixel(int x, int y) {
+        return display().drawPixel(x, y);
     }
 
-    public static void drawPixel(int x, int y) {
-        int[] params = {x, y};
-        byte[] cmd = makeCommand(Command.drawpixel, params);
-        send(cmd);
+    public static CompletableFuture<Void> erasePixel(int x, int y) {
+        return display().erasePixel(x, y);
     }
 
-    public static void erasePixel(int x, int y) {
-        int[] params = {x, y};
-        byte[] cmd = makeCommand(Command.erasepixel, params);
-        send(cmd);
+    public static CompletableFuture<Void> drawLine(int x, int y, int x2, int y2) {
+        return display().drawLine(x, y, x2, y2);
     }
 
-    public static void drawLine(int x, int y, int x2, int y2) {
-        int[] params = {x, y, x2, y2};
-        byte[] cmd = makeCommand(Command.drawline, params);
-        send(cmd);
+    public static CompletableFuture<Void> eraseLine(int x, int y, int x2, int y2) {
+        return display().eraseLine(x, y, x2, y2);
     }
 
-    public static void eraseLine(int x, int y, int x2, int y2) {
-        int[] params = {x, y, x2, y2};
-        byte[] cmd = makeCommand(Command.eraseline, params);
-        send(cmd);
-    }
-
-    public static void drawRectangle(int x, int y, int width, int height, boolean plain){
-        if (plain){
-            drawPlainRectangle(x, y, width, height);
-        } else {
-            drawBox(x, y, width, height);
-        }
-    }
-    
-    public static void eraseRectangle(int x, int y, int width, int height, boolean plain){
-        if (plain){
-            erasePlainRectangle(x, y, width, height);
-        } else {
-            eraseBox(x, y, width, height);
-        }
-    }
-    
-    private static void drawBox(int x, int y, int width, int height){
-        drawLine(x, y, x + width, y);
-        drawLine(x + width, y, x + width, y + height);
-        drawLine(x + width, y + height, x, y + height);
-        drawLine(x, y + height, x, y);
-    }
-    
-    private static void eraseBox(int x, int y, int width, int height){
-        eraseLine(x, y, x + width, y);
-        eraseLine(x + width, y, x + width, y + height);
-        eraseLine(x + width, y + height, x, y + height);
-        eraseLine(x, y + height, x, y);
+    public static CompletableFuture<Void> drawRectangle(int x, int y, int width, int height, boolean plain){
+        return display().drawRectangle(x, y, width, height, plain);
     }
     
-    private static void drawPlainRectangle(int x, int y, int width, int height) {
-        int[] params = {x, y, width, height};
-        byte[] cmd = makeCommand(Command.drawrect, params);
-        send(cmd);
+    public static CompletableFuture<Void> eraseRectangle(int x, int y, int width, int height, boolean plain){
+        return display().eraseRectangle(x, y, width, height, plain);
     }
 
-    private static void erasePlainRectangle(int x, int y, int width, int height) {
-        int[] params = {x, y, width, height};
-        byte[] cmd = makeCommand(Command.eraserect, params);
-        send(cmd);
+    public static CompletableFuture<Void> drawText(String txt, int x, int y, int width, TextSize size) {
+        return display().drawText(txt, x, y, width, size);
     }
 
-    public static void drawText(String txt, int x, int y, int width, TextSize size) {
-        int[] params = new int[txt.length() + 3];
-        params[0] = x;
-        params[1] = y;
-        params[2] = width;
-        for (int i = 0; i < txt.length(); i++) {
-            params[3 + i] = (int) txt.charAt(i);
-        }
-        byte[] cmd;
-        if (size == TextSize.big) {
-            cmd = makeCommand(Command.bigtext, params);
-        } else {
-            cmd = makeCommand(Command.smalltext, params);
-        }
-        send(cmd);
+    public static CompletableFuture<Void> drawBitmap(Icon icon) {
+        return display().drawBitmap(icon);
     }
 
-
-    public static void drawBitmap(Icon icon) {
-        BufferedImage buf = new BufferedImage(
-                icon.getIconWidth(),
-                icon.getIconHeight(),
-                BufferedImage.TYPE_BYTE_BINARY);
+    static BufferedImage iconImage(Icon icon) {
+        BufferedImage buf = new BufferedImage(128, 64, BufferedImage.TYPE_BYTE_BINARY);
         Graphics gfx = buf.createGraphics();
         // paint the Icon to the BufferedImage.
         icon.paintIcon(null, gfx, 0, 0);
         gfx.dispose();
-
-        byte[] pixels = new byte[1024];
-        for (int band = 0; band <= 7; band++) {
-            for (int x = 0; x <= 127; x++) {
-                for (int bit = 0; bit <= 7; bit++) {
-                    int rgb = buf.getRGB(x, band * 8 + bit);
-                    int r = (rgb >> 16) & 0xff;
-                    int g = (rgb >> 8) & 0xff;
-                    int b = rgb & 0xff;
-                    boolean white = (r > 127) || (g > 127) || (b > 127);
-                    bitSet(band * 128 * 8 + x * 8 + bit, pixels, !white);
-                }
-            }
-        }
-        int[] intBuf = new int[1024];
-        for (int i = 0; i < intBuf.length; i++) {
-            intBuf[i] = pixels[i] & 0xff;
-        }
-        byte[] cmd = makeCommand(Command.bitmap, intBuf);
-        send(cmd);
+        return buf;
     }
 
-    private static boolean bitGet(int n, byte[] bitField) {
-        return (bitField[n >> 3] & 1 << (n & 0x7)) != 0; //or use n / 8 and n % 8
+    /**
+     * Sends an image, cropped to 128x64. A pixel is lit when none of its
+     * red, green and blue components is above 127.
+     */
+    public static CompletableFuture<Void> drawBitmap(BufferedImage img) {
+        return display().drawBitmap(img);
     }
 
-    private static void bitSet(int n, byte[] bitField, boolean value) {
-        if (value) {
-            bitField[n >> 3] |= 1 << (n & 0x7);
-        } else {
-            bitField[n >> 3] &= ~(1 << (n & 0x7));
-        }
+    /**
+     * Sends width x height ARGB pixels, cropped to 128x64.
+     */
+    public static CompletableFuture<Void> drawBitmap(int[] argb, int width, int height) {
+        return display().drawBitmap(argb, width, height);
     }
 
-    private static void send(byte[] cmd) {
-        DeviceHandle handle = new DeviceHandle();
-        try {
-            handle = LibUsb.openDeviceWithVidPid(ctx, VENDOR_ID, PRODUCT_ID);
-            if (handle == null) {
-                System.err.println("cannot open device");
-//                System.exit(1);
-                return;
-            }
-            System.out.println("Device open");
-//            DeviceDescriptor dd = new DeviceDescriptor();
-//            LibUsb.getDeviceDescriptor(device, dd);
-//            System.out.println(LibUsb.getStringDescriptor(handle, dd.iManufacturer()));
-//            System.out.println(LibUsb.getStringDescriptor(handle, dd.iProduct()));
-
-            if (1 == LibUsb.kernelDriverActive(handle, INTERFACE)) {
-                System.out.println("kernel driver is loaded");
-            } else {
-                System.out.println("kernel driver is NOT loaded");
-            }
+    /**
+     * Sends a bitmap already in the device layout (see README): 8 bands of
+     * 128 bytes, one byte per column, LSB on top.
+     */
+    public static CompletableFuture<Void> drawBitmap(byte[] bitmap) {
+        return display().drawBitmap(bitmap);
+    }
 
-            int result;
+    /**
+     * Selects the link to the default display, replacing the configured one.
+     */
+    public static synchronized void setTransport(K8101Transport t) {
+        if (display != null) {
+            display.close();
+        }
+        K8101Display d = new K8101Display("custom", t);
+        d.getMetrics().register();
+        display = d;
+    }
 
-            // Check if kernel driver must be detached
-            if (!LibUsb.hasCapability(LibUsb.CAP_SUPPORTS_DETACH_KERNEL_DRIVER)) {
-                System.out.println("cannot detach kernel drivers on this platform");
-            } else {
-                result = LibUsb.detachKernelDriver(handle, INTERFACE);
-                if (result != LibUsb.SUCCESS) {
-                    throw new LibUsbException("cannot detach driver", result);
+    /**
+     * The display driven by the static methods, chosen with the
+     * k8101.transport system property: "usb" (default) for the first board
+     * found by libusb, or any id accepted by {@link K8101Display#open(String)}
+     * such as "tty:/dev/ttyACM0" (with k8101.tty.coalesce bytes of write
+     * coalescing, 0 by default).
+     */
+    public static K8101Display display() {
+        K8101Display d = display;
+        if (d == null) {
+            synchronized (K8101.class) {
+                d = display;
+                if (d == null) {
+                    d = K8101Display.open(System.getProperty("k8101.transport", "usb"));
+                    display = d;
                 }
             }
+        }
+        return d;
+    }
 
-            result = LibUsb.claimInterface(handle, INTERFACE);
-            if (result != LibUsb.SUCCESS) {
-                throw new LibUsbException("cannot claim interface", result);
-            }
-            System.out.println("Interface claimed");
-
-            //byte[] cmd = {(byte) 0xaa, 07, 00, 06, 03, 0x10, 0x55};
-            // libusb wants a ByteBuffer but I provide a byte[], we need to convert
-            ByteBuffer buffer = BufferUtils.allocateByteBuffer(cmd.length);
-            buffer.put(cmd);
-            System.out.println(bytesToHex(cmd));
+    /**
+     * Switches to asynchronous mode: commands are queued and written by a
+     * dedicated thread with up to maxInFlight transfers pending on the bus.
+     * The futures returned by the drawing methods complete when the device
+     * has accepted the command.
+     *
+     * @param capacity number of commands that can wait in the queue
+     * @param maxInFlight number of transfers submitted to libusb at once
+     * @param policy what to do when the queue is full
+     */
+    public static void enableAsync(int capacity, int maxInFlight, Backpressure policy) {
+        display().enableAsync(capacity, maxInFlight, policy);
+    }
 
-            IntBuffer transferred = IntBuffer.allocate(1);//BufferUtils.allocateIntBuffer();
-            result = LibUsb.bulkTransfer(handle, EP, buffer, transferred, 500L);
-            if (result != LibUsb.SUCCESS) {
-                System.err.println("return was " + result);
-                throw new LibUsbException("cannot send data", result);
-            }
-            System.out.println(transferred.get() + " bytes sent to device");
+    /**
+     * Goes back to synchronous sending, commands still queued are cancelled.
+     */
+    public static void disableAsync() {
+        display().disableAsync();
+    }
 
-            LibUsb.releaseInterface(handle, INTERFACE);
-            System.out.println("Interface released");
+    /**
+     * Starts a batch of commands that will be sent together on
+     * {@link Frame#commit()}.
+     */
+    public static Frame batch() {
+        return display().batch();
+    }
 
-        } catch (LibUsbException lue){
-            lue.printStackTrace();
-        } finally {
-            if (handle != null)
-                LibUsb.close(handle);
-                System.out.println("Device closed");
-        }
+    /**
+     * Starts a batch of commands, split on commit in transfers of at most
+     * maxCommands commands and maxBytes bytes.
+     */
+    public static Frame batch(int maxCommands, int maxBytes) {
+        return display().batch(maxCommands, maxBytes);
     }
 
     private static final char[] HEX_ARRAY = "0123456789ABCDEF".toCharArray();
@@ -602,35 +651,62 @@ public class K8101 implements HotplugCallback {
         return new String(hexChars);
     }
 
+    static String bytesToHex(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytesToHex(bytes);
+    }
+
     @Override
     public int processEvent(Context context, Device device, int event, Object userData) {
-        DeviceDescriptor descriptor = new DeviceDescriptor();
-        int result = LibUsb.getDeviceDescriptor(device, descriptor);
-        if (result != LibUsb.SUCCESS) {
-            throw new LibUsbException("Unable to read device descriptor",
-                    result);
-        }
-        logger.log(Level.INFO, String.format("%s: %04x:%04x",
-                event == LibUsb.HOTPLUG_EVENT_DEVICE_ARRIVED ? "Connected" : "Disconnected",
-                descriptor.idVendor(), descriptor.idProduct()));
-        if (descriptor.idVendor() == VENDOR_ID && descriptor.idProduct() == PRODUCT_ID) {
-            if (event == LibUsb.HOTPLUG_EVENT_DEVICE_ARRIVED) {
-                this.device = device;
-                for (IK8101Listener listener : listeners) {
-                    listener.deviceAttached();
+        // only the boards are reported, see watch()
+        if (event == LibUsb.HOTPLUG_EVENT_DEVICE_ARRIVED) {
+            String path = UsbTransport.path(device);
+            synchronized (boards) {
+                if (boards.putIfAbsent(device, path) == null) {
+                    LibUsb.refDevice(device);
                 }
-            } else if (event == LibUsb.HOTPLUG_EVENT_DEVICE_LEFT) {
-                this.device = null;
-                for (IK8101Listener listener : listeners) {
-                    listener.deviceDetached();
+            }
+            logger.info("Connected: usb:" + path);
+            attached = true;
+            K8101Display.deviceArrived(device);
+            for (IK8101Listener listener : listeners) {
+                listener.deviceAttached();
+            }
+        } else if (event == LibUsb.HOTPLUG_EVENT_DEVICE_LEFT) {
+            logger.info("Disconnected: usb:" + path(device));
+            K8101Display.deviceLeft(device);
+            synchronized (boards) {
+                if (boards.remove(device) != null) {
+                    LibUsb.unrefDevice(device);
                 }
+                attached = !boards.isEmpty();
+            }
+            for (IK8101Listener listener : listeners) {
+                listener.deviceDetached();
             }
         }
         return 0;
     }
 
+    /**
+     * Registers a listener of the hotplug events, called from the event
+     * handling thread.
+     */
     public static void addListener(IK8101Listener l) {
-        listeners.add(l);
+        listeners.addIfAbsent(l);
+        watch();
+    }
+
+    public static void removeListener(IK8101Listener l) {
+        listeners.remove(l);
+    }
+
+    /**
+     * Registers a listener of the button of the default display.
+     */
+    public static void addButtonListener(IK8101ButtonListener l) {
+        display().addButtonListener(l);
     }
 
 }
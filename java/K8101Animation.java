@@ -0,0 +1,342 @@
+
+package fr.seki.dashboard.usb;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import org.w3c.dom.Node;
+
+/**
+ * Plays a sequence of images on a display at a given frame rate.
+ *
+ * The images come from a supplier (an animated GIF, a directory of images or
+ * any generator) and are scaled and dithered by {@link K8101Dither} on the
+ * common fork-join pool, at most lookAhead frames ahead of the one shown.
+ * Each frame goes through a {@link FrameBuffer}, so only the pixels that
+ * changed are sent. When the link falls behind, i.e. the previous frame has
+ * not been accepted when the next one is due, or the conversion is late, the
+ * frame is skipped: the animation keeps its pace instead of queuing.
+ *
+ * A looping animation is converted once, its bitmaps are then replayed.
+ *
+ * @author seb
+ */
+public final class K8101Animation implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(K8101Animation.class.toString());
+
+    private final K8101Display display;
+    private final Supplier<BufferedImage> source;
+    private final K8101Dither.Method method;
+    private final long interval;
+    private final int lookAhead;
+    private final boolean loop;
+    private final CompletableFuture<Void> done = new CompletableFuture<Void>();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private Thread player;
+    private volatile boolean running = true;
+
+    /**
+     * Plays the images once with Floyd-Steinberg dithering.
+     */
+    public K8101Animation(K8101Display display, Supplier<BufferedImage> source, double fps) {
+        this(display, source, K8101Dither.Method.floydSteinberg, fps,
+                2 * ForkJoinPool.getCommonPoolParallelism(), false);
+    }
+
+    /**
+     * @param source returns a new image on each call, null at the end
+     * @param fps frames shown per second
+     * @param lookAhead number of frames converted in advance
+     * @param loop replays the animation until closed
+     */
+    public K8101Animation(K8101Display display, Supplier<BufferedImage> source, K8101Dither.Method method,
+            double fps, int lookAhead, boolean loop) {
+        if (!(fps > 0) || lookAhead < 1) {
+            throw new IllegalArgumentException("fps and lookAhead must be positive");
+        }
+        this.display = display;
+        this.source = source;
+        this.method = method;
+        this.interval = (long) (TimeUnit.SECONDS.toNanos(1) / fps);
+        this.lookAhead = lookAhead;
+        this.loop = loop;
+    }
+
+    /**
+     * Starts playing in a thread of its own.
+     *
+     * @return completes when the last frame has been accepted, or when closed
+     */
+    public synchronized CompletableFuture<Void> start() {
+        if (player == null) {
+            player = new Thread(this::play, "K8101-animation-" + display.getId());
+            player.setDaemon(true);
+            player.start();
+        }
+        return done;
+    }
+
+    private void play() {
+        ArrayDeque<CompletableFuture<byte[]>> converting = new ArrayDeque<CompletableFuture<byte[]>>();
+        ArrayList<byte[]> bitmaps = new ArrayList<byte[]>();
+        FrameBuffer screen = new FrameBuffer();
+        CompletableFuture<Void> last = null;
+        boolean exhausted = false;
+        int replayed = 0;
+        long due = 0;
+        try {
+            while (running) {
+                while (!exhausted && converting.size() < lookAhead) {
+                    BufferedImage img = source.get();
+                    if (img == null) {
+                        exhausted = true;
+                    } else {
+                        converting.add(CompletableFuture.supplyAsync(() -> K8101Dither.toBitmap(img, method)));
+                    }
+                }
+                byte[] bitmap;
+                if (!converting.isEmpty()) {
+                    bitmap = converting.poll().join();
+                    if (loop) {
+                        bitmaps.add(bitmap);
+                    }
+                } else if (loop && !bitmaps.isEmpty()) {
+                    bitmap = bitmaps.get(replayed++ % bitmaps.size());
+                } else {
+                    break;
+                }
+                if (last == null) {
+                    // the clock starts with the first frame ready
+                    due = System.nanoTime();
+                }
+                long wait;
+                while (running && (wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                if (!running) {
+                    break;
+                }
+                long late = System.nanoTime() - due;
+                due += interval;
+                if ((last != null && !last.isDone()) || late > interval) {
+                    skipped.incrementAndGet();
+                    if (late > 4 * interval) {
+                        // far behind (a stall, a suspended host): start over
+                        // from now instead of skipping a burst of frames
+                        due = System.nanoTime() + interval;
+                    }
+                    continue;
+                }
+                screen.setBitmap(bitmap);
+                last = screen.flush(display);
+                sent.incrementAndGet();
+            }
+            if (last != null && running) {
+                last.join();
+            }
+            done.complete(null);
+        } catch (RuntimeException re) {
+            logger.log(Level.WARNING, "animation stopped", re);
+            done.completeExceptionally(re.getCause() != null ? re.getCause() : re);
+        } finally {
+            for (CompletableFuture<byte[]> f : converting) {
+                f.cancel(false);
+            }
+            running = false;
+        }
+    }
+
+    /**
+     * @return the number of frames sent so far
+     */
+    public long getFramesSent() {
+        return sent.get();
+    }
+
+    /**
+     * @return the number of frames skipped to keep the pace
+     */
+    public long getFramesSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * Stops playing, the current frame stays on the screen.
+     */
+    @Override
+    public synchronized void close() {
+        running = false;
+        if (player != null) {
+            LockSupport.unpark(player);
+        }
+        done.complete(null);
+    }
+
+    /**
+     * The images of a directory, in the order of their file names. Files that
+     * are not images are skipped.
+     */
+    public static Supplier<BufferedImage> directory(Path dir) throws IOException {
+        ArrayList<Path> files = new ArrayList<Path>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path p : ds) {
+                if (Files.isRegularFile(p)) {
+                    files.add(p);
+                }
+            }
+        }
+        Collections.sort(files);
+        Iterator<Path> it = files.iterator();
+        return () -> {
+            while (it.hasNext()) {
+                Path p = it.next();
+                try {
+                    BufferedImage img = ImageIO.read(p.toFile());
+                    if (img != null) {
+                        return img;
+                    }
+                } catch (IOException ioe) {
+                    throw new UncheckedIOException(ioe);
+                }
+            }
+            return null;
+        };
+    }
+
+    /**
+     * The frames of an animated GIF, composed as a browser would: each frame
+     * is drawn at its position over the previous ones, according to their
+     * disposal method.
+     */
+    public static Supplier<BufferedImage> gif(Path file) throws IOException {
+        Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("gif");
+        if (!readers.hasNext()) {
+            throw new IOException("no GIF reader");
+        }
+        ImageReader reader = readers.next();
+        ImageInputStream in = ImageIO.createImageInputStream(new File(file.toString()));
+        if (in == null) {
+            throw new IOException("cannot read " + file);
+        }
+        reader.setInput(in, true);
+        return new Supplier<BufferedImage>() {
+            private int index;
+            private BufferedImage canvas;
+            private BufferedImage previous;
+            private String disposal = "none";
+            private int[] area = new int[4];
+
+            @Override
+            public BufferedImage get() {
+                try {
+                    if (index < 0) {
+                        return null;
+                    }
+                    BufferedImage img;
+                    try {
+                        // read as a stream, the number of frames is not known
+                        img = reader.read(index);
+                    } catch (IndexOutOfBoundsException end) {
+                        close();
+                        return null;
+                    }
+                    Node meta = reader.getImageMetadata(index).getAsTree("javax_imageio_gif_image_1.0");
+                    if (canvas == null) {
+                        canvas = new BufferedImage(Math.max(img.getWidth(), screen(0)),
+                                Math.max(img.getHeight(), screen(1)), BufferedImage.TYPE_INT_ARGB);
+                    }
+                    Graphics2D g = canvas.createGraphics();
+                    try {
+                        // the disposal of the previous frame
+                        if (disposal.equals("restoreToBackgroundColor")) {
+                            g.setComposite(AlphaComposite.Clear);
+                            g.fillRect(area[0], area[1], area[2], area[3]);
+                            g.setComposite(AlphaComposite.SrcOver);
+                        } else if (disposal.equals("restoreToPrevious") && previous != null) {
+                            canvas.setData(previous.getRaster());
+                        }
+                        disposal = "none";
+                        area = new int[]{0, 0, img.getWidth(), img.getHeight()};
+                        for (Node n = meta.getFirstChild(); n != null; n = n.getNextSibling()) {
+                            if (n.getNodeName().equals("ImageDescriptor")) {
+                                area[0] = attribute(n, "imageLeftPosition");
+                                area[1] = attribute(n, "imageTopPosition");
+                            } else if (n.getNodeName().equals("GraphicControlExtension")) {
+                                disposal = n.getAttributes().getNamedItem("disposalMethod").getNodeValue();
+                            }
+                        }
+                        previous = disposal.equals("restoreToPrevious") ? copy(canvas) : null;
+                        g.drawImage(img, area[0], area[1], null);
+                    } finally {
+                        g.dispose();
+                    }
+                    index++;
+                    return copy(canvas);
+                } catch (IOException ioe) {
+                    close();
+                    throw new UncheckedIOException(ioe);
+                }
+            }
+
+            private int screen(int dimension) throws IOException {
+                IIOMetadata stream = reader.getStreamMetadata();
+                if (stream == null) {
+                    return 0;
+                }
+                Node root = stream.getAsTree("javax_imageio_gif_stream_1.0");
+                for (Node n = root.getFirstChild(); n != null; n = n.getNextSibling()) {
+                    if (n.getNodeName().equals("LogicalScreenDescriptor")) {
+                        return attribute(n, dimension == 0 ? "logicalScreenWidth" : "logicalScreenHeight");
+                    }
+                }
+                return 0;
+            }
+
+            private void close() {
+                index = -1;
+                reader.dispose();
+                try {
+                    in.close();
+                } catch (IOException ioe) {
+                    logger.log(Level.FINE, "cannot close " + file, ioe);
+                }
+            }
+        };
+    }
+
+    private static int attribute(Node n, String name) {
+        Node a = n.getAttributes().getNamedItem(name);
+        return a == null ? 0 : Integer.parseInt(a.getNodeValue());
+    }
+
+    private static BufferedImage copy(BufferedImage img) {
+        BufferedImage c = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        c.setData(img.getRaster());
+        return c;
+    }
+}
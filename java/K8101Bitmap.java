@@ -0,0 +1,251 @@
+
+package fr.seki.dashboard.usb;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.Arrays;
+
+/**
+ * Conversion of images to the 1024 bytes bitmap layout of the display.
+ *
+ * The image is first reduced to rows of packed pixels (MSB on the left, bit
+ * set for a dark pixel), read straight from the raster data when its type is
+ * known. Each block of 8x8 pixels is then transposed into 8 column bytes with
+ * a few shifts on a long. A pixel is light when one of its red, green or blue
+ * components is above 127, alpha is ignored. Pixels beyond 128x64 are cropped,
+ * missing ones are light.
+ *
+ * @author seb
+ */
+public final class K8101Bitmap {
+
+    private static final int WIDTH = FrameBuffer.WIDTH;
+    private static final int HEIGHT = FrameBuffer.HEIGHT;
+    private static final int SIZE = FrameBuffer.SIZE;
+    private static final int STRIDE = WIDTH / 8;
+
+    /* first linear gray level that is above 127 once converted to sRGB */
+    private static final int GRAY_LIGHT = grayThreshold();
+
+    private static final ThreadLocal<byte[]> rowsCache = ThreadLocal.withInitial(() -> new byte[SIZE]);
+    private static final ThreadLocal<int[]> lineCache = ThreadLocal.withInitial(() -> new int[WIDTH]);
+
+    private K8101Bitmap() {
+    }
+
+    /**
+     * Converts an image to a new bitmap.
+     */
+    public static byte[] toBitmap(BufferedImage img) {
+        byte[] bitmap = new byte[SIZE];
+        pack(img, bitmap, 0);
+        return bitmap;
+    }
+
+    /**
+     * Writes the bitmap of an image at dst[off .. off + 1023].
+     */
+    public static void pack(BufferedImage img, byte[] dst, int off) {
+        Raster raster = img.getRaster();
+        int w = Math.min(img.getWidth(), WIDTH);
+        int h = Math.min(img.getHeight(), HEIGHT);
+        // rasters of sub-images do not start at the beginning of their data
+        boolean plain = raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0
+                && raster.getParent() == null;
+
+        if (plain && img.getType() == BufferedImage.TYPE_BYTE_BINARY
+                && raster.getSampleModel() instanceof MultiPixelPackedSampleModel
+                && ((MultiPixelPackedSampleModel) raster.getSampleModel()).getPixelBitStride() == 1) {
+            MultiPixelPackedSampleModel sm = (MultiPixelPackedSampleModel) raster.getSampleModel();
+            byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+            int stride = sm.getScanlineStride();
+            int ink = inkBits((IndexColorModel) img.getColorModel());
+            if (ink >= 0 && w == WIDTH && h == HEIGHT && sm.getDataBitOffset() == 0) {
+                // already packed, transpose in place
+                transpose(data, 0, stride, ink == 0 ? 0xff : 0, dst, off);
+                return;
+            }
+            byte[] rows = rows();
+            if (ink >= 0) {
+                for (int y = 0; y < h; y++) {
+                    for (int i = 0; i < (w + 7) / 8; i++) {
+                        int b = data[y * stride + i] & 0xff;
+                        rows[y * STRIDE + i] = (byte) (ink == 1 ? b : ~b);
+                    }
+                    clipRow(rows, y, w);
+                }
+                transpose(rows, 0, STRIDE, 0, dst, off);
+                return;
+            }
+        } else if (plain && raster.getDataBuffer() instanceof DataBufferInt
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+                && (img.getType() == BufferedImage.TYPE_INT_RGB
+                || img.getType() == BufferedImage.TYPE_INT_ARGB
+                || img.getType() == BufferedImage.TYPE_INT_ARGB_PRE)) {
+            int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+            int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+            byte[] rows = rows();
+            for (int y = 0; y < h; y++) {
+                packRgbRow(data, y * stride, w, rows, y * STRIDE);
+            }
+            transpose(rows, 0, STRIDE, 0, dst, off);
+            return;
+        } else if (plain && raster.getDataBuffer() instanceof DataBufferByte
+                && raster.getSampleModel() instanceof PixelInterleavedSampleModel
+                && (img.getType() == BufferedImage.TYPE_BYTE_GRAY
+                || img.getType() == BufferedImage.TYPE_3BYTE_BGR
+                || img.getType() == BufferedImage.TYPE_4BYTE_ABGR
+                || img.getType() == BufferedImage.TYPE_4BYTE_ABGR_PRE)) {
+            PixelInterleavedSampleModel sm = (PixelInterleavedSampleModel) raster.getSampleModel();
+            byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+            int stride = sm.getScanlineStride();
+            int pixelStride = sm.getPixelStride();
+            // gray has one band, BGR three, ABGR four with alpha first
+            int first = img.getType() == BufferedImage.TYPE_BYTE_GRAY || img.getType() == BufferedImage.TYPE_3BYTE_BGR ? 0 : 1;
+            int bands = img.getType() == BufferedImage.TYPE_BYTE_GRAY ? 1 : 3;
+            byte[] rows = rows();
+            for (int y = 0; y < h; y++) {
+                int p = y * stride + first;
+                for (int x = 0; x < w; x++, p += pixelStride) {
+                    boolean dark;
+                    if (bands == 1) {
+                        dark = (data[p] & 0xff) < GRAY_LIGHT;
+                    } else {
+                        dark = ((data[p] | data[p + 1] | data[p + 2]) & 0x80) == 0;
+                    }
+                    if (dark) {
+                        rows[y * STRIDE + (x >> 3)] |= 0x80 >>> (x & 7);
+                    }
+                }
+            }
+            transpose(rows, 0, STRIDE, 0, dst, off);
+            return;
+        }
+
+        // any other image, one line of ARGB at a time
+        int[] line = lineCache.get();
+        byte[] rows = rows();
+        for (int y = 0; y < h; y++) {
+            img.getRGB(0, y, w, 1, line, 0, WIDTH);
+            packRgbRow(line, 0, w, rows, y * STRIDE);
+        }
+        transpose(rows, 0, STRIDE, 0, dst, off);
+    }
+
+    /**
+     * Writes the bitmap of width x height ARGB pixels (as returned by
+     * {@link BufferedImage#getRGB(int, int, int, int, int[], int, int)}) at
+     * dst[off .. off + 1023].
+     */
+    public static void pack(int[] argb, int width, int height, byte[] dst, int off) {
+        int w = Math.min(width, WIDTH);
+        int h = Math.min(height, HEIGHT);
+        byte[] rows = rows();
+        for (int y = 0; y < h; y++) {
+            packRgbRow(argb, y * width, w, rows, y * STRIDE);
+        }
+        transpose(rows, 0, STRIDE, 0, dst, off);
+    }
+
+    /**
+     * Writes the bitmap of 64 rows of 1 bit pixels, 16 bytes per row with the
+     * leftmost pixel in the MSB and a bit set for a dark pixel, at
+     * dst[off .. off + 1023].
+     */
+    public static void packRows(byte[] rows, byte[] dst, int off) {
+        if (rows.length < SIZE) {
+            throw new IllegalArgumentException("rows must be " + SIZE + " bytes");
+        }
+        transpose(rows, 0, STRIDE, 0, dst, off);
+    }
+
+    private static int grayThreshold() {
+        BufferedImage gray = new BufferedImage(256, 1, BufferedImage.TYPE_BYTE_GRAY);
+        for (int g = 0; g < 256; g++) {
+            gray.getRaster().setSample(g, 0, 0, g);
+        }
+        for (int g = 0; g < 256; g++) {
+            if ((gray.getRGB(g, 0) & 0x808080) != 0) {
+                return g;
+            }
+        }
+        return 256;
+    }
+
+    private static byte[] rows() {
+        byte[] rows = rowsCache.get();
+        Arrays.fill(rows, (byte) 0);
+        return rows;
+    }
+
+    private static void packRgbRow(int[] data, int start, int w, byte[] rows, int rowOff) {
+        for (int i = 0; i < STRIDE; i++) {
+            int b = 0;
+            int x = i * 8;
+            int n = Math.min(8, w - x);
+            for (int k = 0; k < n; k++) {
+                if ((data[start + x + k] & 0x808080) == 0) {
+                    b |= 0x80 >>> k;
+                }
+            }
+            rows[rowOff + i] = (byte) b;
+        }
+    }
+
+    private static void clipRow(byte[] rows, int y, int w) {
+        for (int x = w; x < WIDTH; x++) {
+            rows[y * STRIDE + (x >> 3)] &= ~(0x80 >>> (x & 7));
+        }
+    }
+
+    /**
+     * @return the value of the bits of dark pixels, or -1 if the palette has
+     * no single dark entry
+     */
+    private static int inkBits(IndexColorModel cm) {
+        if (cm.getMapSize() != 2) {
+            return -1;
+        }
+        boolean dark0 = (cm.getRGB(0) & 0x808080) == 0;
+        boolean dark1 = (cm.getRGB(1) & 0x808080) == 0;
+        if (dark0 == dark1) {
+            return -1;
+        }
+        return dark1 ? 1 : 0;
+    }
+
+    /**
+     * Turns rows of packed pixels into the column bytes of the display. For
+     * each band of 8 rows and each group of 8 columns, the 8 row bytes are
+     * loaded in a long and the 8x8 bit matrix is transposed (Hacker's Delight
+     * 7-3), giving one byte per column with the top row in the LSB.
+     */
+    private static void transpose(byte[] src, int srcOff, int stride, int flip, byte[] dst, int off) {
+        for (int band = 0; band < 8; band++) {
+            for (int i = 0; i < STRIDE; i++) {
+                long x = 0;
+                int p = srcOff + band * 8 * stride + i;
+                for (int r = 0; r < 8; r++) {
+                    x |= (long) ((src[p + r * stride] ^ flip) & 0xff) << (r * 8);
+                }
+                long t = (x ^ (x >>> 7)) & 0x00AA00AA00AA00AAL;
+                x = x ^ t ^ (t << 7);
+                t = (x ^ (x >>> 14)) & 0x0000CCCC0000CCCCL;
+                x = x ^ t ^ (t << 14);
+                t = (x ^ (x >>> 28)) & 0x00000000F0F0F0F0L;
+                x = x ^ t ^ (t << 28);
+                // byte k of x holds bit 7 - k of each row, i.e. column 7 - k
+                int d = off + band * WIDTH + i * 8;
+                for (int c = 0; c < 8; c++) {
+                    dst[d + c] = (byte) (x >>> ((7 - c) * 8));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+
+package fr.seki.dashboard.usb;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Turns the bytes read from a display into button events (see README):
+ * FF 05 FF 04 00 for a short press, FF 05 AA AF 00 for a long one.
+ *
+ * The parser is incremental, a notification may be split across reads, and
+ * resynchronizes on unexpected bytes. It runs in the reading thread of the
+ * transport, listeners are called from a shared dispatch thread so that the
+ * reading is never blocked.
+ *
+ * @author seb
+ */
+final class K8101Buttons implements Consumer<ByteBuffer> {
+
+    private static final Logger logger = Logger.getLogger(K8101Buttons.class.toString());
+
+    static final byte[] SHORT_PRESS = {(byte) 0xFF, 0x05, (byte) 0xFF, 0x04, 0x00};
+    static final byte[] LONG_PRESS = {(byte) 0xFF, 0x05, (byte) 0xAA, (byte) 0xAF, 0x00};
+
+    private static final ExecutorService dispatcher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "K8101-buttons");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final K8101Display display;
+    private final CopyOnWriteArrayList<IK8101ButtonListener> listeners = new CopyOnWriteArrayList<IK8101ButtonListener>();
+    private final byte[] received = new byte[SHORT_PRESS.length];
+    private int length;
+
+    K8101Buttons(K8101Display display) {
+        this.display = display;
+    }
+
+    /**
+     * @return true if this is the first listener
+     */
+    boolean add(IK8101ButtonListener l) {
+        listeners.add(l);
+        return listeners.size() == 1;
+    }
+
+    /**
+     * @return true if there is no listener left
+     */
+    boolean remove(IK8101ButtonListener l) {
+        return listeners.remove(l) && listeners.isEmpty();
+    }
+
+    @Override
+    public void accept(ByteBuffer data) {
+        while (data.hasRemaining()) {
+            received[length++] = data.get();
+            // drop leading bytes until what is left may start a notification
+            while (length > 0 && !startsWith(SHORT_PRESS) && !startsWith(LONG_PRESS)) {
+                System.arraycopy(received, 1, received, 0, --length);
+            }
+            if (length == received.length) {
+                length = 0;
+                dispatch(received[2] == SHORT_PRESS[2]);
+            }
+        }
+    }
+
+    private boolean startsWith(byte[] notification) {
+        for (int i = 0; i < length; i++) {
+            if (received[i] != notification[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void dispatch(boolean shortPress) {
+        logger.fine(display + (shortPress ? ": short press" : ": long press"));
+        dispatcher.execute(() -> {
+            for (IK8101ButtonListener l : listeners) {
+                try {
+                    if (shortPress) {
+                        l.buttonShortPress(display);
+                    } else {
+                        l.buttonLongPress(display);
+                    }
+                } catch (RuntimeException re) {
+                    logger.log(Level.WARNING, "button listener failed", re);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,197 @@
+
+package fr.seki.dashboard.usb;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records every transfer written by the displays into an append-only log,
+ * through a memory-mapped file: recording a transfer is a map lookup and a
+ * copy into the page cache, under a lock, so it can stay on in production.
+ * The data survives a crash of the JVM.
+ *
+ * The log starts with the magic "K8101CAP", a version (short) and the start
+ * time (long, epoch millis), followed by records, big-endian:
+ * <ul>
+ * <li>'D', display number (short), id length (short), id in UTF-8: first
+ * transfer of a display,</li>
+ * <li>'F', display number (short), nanoseconds since the start (long),
+ * length (int), the raw frames as sent.</li>
+ * </ul>
+ * The file grows by chunks, the unused end reads as zeros and is truncated on
+ * {@link #close()}. {@link K8101Replay} plays a log back, as well as files of
+ * raw frames such as serial_payloads/*.bin.
+ *
+ * @author seb
+ */
+public final class K8101Capture implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(K8101Capture.class.toString());
+
+    static final byte[] MAGIC = "K8101CAP".getBytes(StandardCharsets.US_ASCII);
+    static final short VERSION = 1;
+    static final int HEADER = MAGIC.length + 2 + 8;
+    static final byte DISPLAY = 'D';
+    static final byte FRAMES = 'F';
+    static final int FRAMES_HEADER = 1 + 2 + 8 + 4;
+
+    private static volatile K8101Capture active;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final int chunk;
+    private final long start = System.nanoTime();
+    private final HashMap<String, Short> numbers = new HashMap<String, Short>();
+    private MappedByteBuffer map;
+    private long mapStart; // file offset of the mapped region
+    private long records;
+    private long bytes;
+    private boolean closed;
+
+    private K8101Capture(Path file, int chunk) throws IOException {
+        this.file = file;
+        this.chunk = chunk;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, chunk);
+        } catch (IOException ioe) {
+            channel.close();
+            throw ioe;
+        }
+        map.put(MAGIC).putShort(VERSION).putLong(System.currentTimeMillis());
+    }
+
+    /**
+     * Starts recording the transfers of all displays, in chunks of 16 MB.
+     *
+     * @throws IllegalStateException if a capture is already running
+     */
+    public static K8101Capture start(Path file) throws IOException {
+        return start(file, 16 << 20);
+    }
+
+    /**
+     * @param chunkBytes how much the file grows at once
+     */
+    public static synchronized K8101Capture start(Path file, int chunkBytes) throws IOException {
+        if (chunkBytes < HEADER) {
+            throw new IllegalArgumentException("chunkBytes must be at least " + HEADER);
+        }
+        if (active != null) {
+            throw new IllegalStateException("capture already running to " + active.file);
+        }
+        K8101Capture capture = new K8101Capture(file, chunkBytes);
+        active = capture;
+        logger.info("capture started to " + file);
+        return capture;
+    }
+
+    /**
+     * @return the running capture, or null
+     */
+    public static K8101Capture active() {
+        return active;
+    }
+
+    /* called with every transfer about to be written */
+    static void record(String id, ByteBuffer frames) {
+        K8101Capture c = active;
+        if (c != null) {
+            c.append(id, frames);
+        }
+    }
+
+    private synchronized void append(String id, ByteBuffer frames) {
+        if (closed) {
+            return;
+        }
+        try {
+            Short number = numbers.get(id);
+            if (number == null) {
+                byte[] name = id.getBytes(StandardCharsets.UTF_8);
+                number = (short) numbers.size();
+                numbers.put(id, number);
+                room(5 + name.length).put(DISPLAY).putShort(number).putShort((short) name.length).put(name);
+            }
+            int length = frames.remaining();
+            MappedByteBuffer m = room(FRAMES_HEADER + length);
+            m.put(FRAMES).putShort(number).putLong(System.nanoTime() - start).putInt(length);
+            m.put(m.position(), frames, frames.position(), length);
+            m.position(m.position() + length);
+            records++;
+            bytes += length;
+        } catch (IOException ioe) {
+            logger.log(Level.WARNING, "capture stopped", ioe);
+            close();
+        }
+    }
+
+    /* makes sure length bytes can be put in the map, mapping the next region if needed */
+    private MappedByteBuffer room(int length) throws IOException {
+        if (map.remaining() < length) {
+            mapStart += map.position();
+            map = channel.map(FileChannel.MapMode.READ_WRITE, mapStart, Math.max(chunk, length));
+        }
+        return map;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * @return the number of transfers recorded
+     */
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    /**
+     * @return the number of bytes of frames recorded
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Stops recording and truncates the file to the recorded data.
+     */
+    @Override
+    public void close() {
+        synchronized (K8101Capture.class) {
+            if (active == this) {
+                active = null;
+            }
+        }
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            long size = mapStart + map.position();
+            map.force();
+            try {
+                channel.truncate(size);
+            } catch (IOException ioe) {
+                // e.g. Windows while the region is still mapped, the end reads as zeros
+                logger.log(Level.FINE, "cannot truncate " + file, ioe);
+            }
+            try {
+                channel.close();
+            } catch (IOException ioe) {
+                logger.log(Level.FINE, "cannot close " + file, ioe);
+            }
+            logger.info("capture to " + file + " stopped: " + records + " transfers, " + bytes + " bytes");
+        }
+    }
+}
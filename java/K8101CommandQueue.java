@@ -0,0 +1,341 @@
+
+package fr.seki.dashboard.usb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded queue of encoded commands drained by a single writer thread.
+ *
+ * The writer starts asynchronous writes on the transport so that up to
+ * {@code maxInFlight} commands are on the bus at once, and flushes the
+ * transport whenever the queue runs empty. With libusb, completions are
+ * delivered by the libusb event handling thread, which completes the future
+ * returned to the caller: dependent actions should use the {@code *Async}
+ * variants of {@link CompletableFuture} to avoid running on that thread.
+ *
+ * The writes are paced, and retried on timeout, by {@link K8101FlowControl}.
+ * A transfer is retried only if no transfer was started after it, and the
+ * writer holds the next commands back until the retry is over, so that the
+ * commands stay in order whatever {@code maxInFlight}.
+ *
+ * @author seb
+ */
+final class K8101CommandQueue {
+
+    private static final Logger logger = Logger.getLogger(K8101CommandQueue.class.toString());
+
+    private static final class Pending {
+        private final K8101Encoder copy;
+        private ByteBuffer cmd;
+        private final boolean single; // false for a batch of commands
+        private int from; // start of the frames, the transport moves the position on timeout
+        private final CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+        private Pending(K8101Encoder copy, ByteBuffer cmd, boolean single) {
+            this.copy = copy;
+            this.cmd = cmd;
+            this.single = single;
+        }
+    }
+
+    private final ArrayDeque<Pending> pending;
+    /* direct buffers holding the queued commands, reused once transferred */
+    private final ConcurrentLinkedQueue<K8101Encoder> buffers = new ConcurrentLinkedQueue<K8101Encoder>();
+    private final int capacity;
+    private final K8101.Backpressure policy;
+    private final Semaphore inFlight;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Condition noRetry = lock.newCondition();
+    private long started; // transfers started, numbers them
+    private int retrying; // transfers waiting for a retry, the writer waits for them
+    private final K8101Transport transport;
+    private final K8101Metrics metrics;
+    private final K8101FlowControl flow;
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    K8101CommandQueue(String name, int capacity, int maxInFlight, K8101.Backpressure policy, K8101Transport transport,
+            K8101Metrics metrics, K8101FlowControl flow) {
+        if (capacity < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException("capacity and maxInFlight must be positive");
+        }
+        this.pending = new ArrayDeque<Pending>(capacity);
+        this.capacity = capacity;
+        this.policy = policy;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.transport = transport;
+        this.metrics = metrics;
+        this.flow = flow;
+        this.writer = new Thread(this::drain, name);
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Queues a copy of an encoded command, applying the backpressure policy
+     * when the queue is full. Batches are never coalesced.
+     */
+    CompletableFuture<Void> enqueue(ByteBuffer cmd, boolean single) {
+        lock.lock();
+        try {
+            if (!running) {
+                return CompletableFuture.failedFuture(new IllegalStateException("queue closed"));
+            }
+            while (pending.size() >= capacity) {
+                if (policy == K8101.Backpressure.dropOldest) {
+                    Pending dropped = pending.pollFirst();
+                    release(dropped);
+                    metrics.dropped();
+                    dropped.future.cancel(false);
+                } else if (policy == K8101.Backpressure.coalesce && single) {
+                    if (coalesce(cmd)) {
+                        Pending superseded = findSameCommand(cmd);
+                        if (superseded != null) {
+                            superseded.cmd = superseded.copy.copyOf(cmd);
+                            metrics.dropped();
+                            return superseded.future;
+                        }
+                    }
+                    if (pending.size() >= capacity) {
+                        notFull.await();
+                    }
+                } else {
+                    notFull.await();
+                }
+                if (!running) {
+                    return CompletableFuture.failedFuture(new IllegalStateException("queue closed"));
+                }
+            }
+            K8101Encoder copy = buffers.poll();
+            if (copy == null) {
+                copy = new K8101Encoder();
+            }
+            Pending p = new Pending(copy, copy.copyOf(cmd), single);
+            pending.addLast(p);
+            notEmpty.signal();
+            return p.future;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(ie);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static boolean isSetting(byte code) {
+        return code == 17 || code == 20 || code == 21; // contrast, backlight, invert
+    }
+
+    /* drawn over the background: rectangles, pixels, lines and texts */
+    private static boolean isForeground(byte code) {
+        return code == 4 || code == 5 || code == 7 || code == 8 || code == 9 || code == 16 || code == 18
+                || code == 19;
+    }
+
+    private static boolean isScreen(byte code) {
+        return code == 1 || code == 2 || code == 3; // bitmap, clearall, clearfg
+    }
+
+    /**
+     * Makes room for cmd by dropping the queued commands it makes useless: a
+     * bitmap or clearall overwrites every drawing queued before it, a clearfg
+     * only the foreground, as it puts back the background set by a queued
+     * bitmap or clearall. The futures of the dropped commands complete
+     * normally as their visible effect is replaced.
+     *
+     * @return true if cmd may replace a queued setting of the same kind
+     */
+    private boolean coalesce(ByteBuffer cmd) {
+        byte code = cmd.get(3);
+        if (isScreen(code)) {
+            boolean background = code != 3;
+            Iterator<Pending> it = pending.iterator();
+            while (it.hasNext()) {
+                Pending p = it.next();
+                byte queued = p.cmd.get(3);
+                if (p.single && (isForeground(queued) || background && isScreen(queued))) {
+                    it.remove();
+                    release(p);
+                    metrics.dropped();
+                    p.future.complete(null);
+                }
+            }
+        }
+        return isSetting(code);
+    }
+
+    private Pending findSameCommand(ByteBuffer cmd) {
+        Iterator<Pending> it = pending.descendingIterator();
+        while (it.hasNext()) {
+            Pending p = it.next();
+            if (p.single && p.cmd.get(3) == cmd.get(3)) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Pending take() throws InterruptedException {
+        lock.lock();
+        try {
+            if (pending.isEmpty()) {
+                // idle: push what the transport may have coalesced
+                lock.unlock();
+                try {
+                    transport.flush();
+                } catch (IOException ioe) {
+                    logger.log(Level.WARNING, "flush failed", ioe);
+                } finally {
+                    lock.lock();
+                }
+            }
+            while (pending.isEmpty()) {
+                notEmpty.await();
+            }
+            Pending p = pending.pollFirst();
+            notFull.signal();
+            return p;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void drain() {
+        while (running) {
+            Pending p;
+            try {
+                p = take();
+            } catch (InterruptedException ie) {
+                break;
+            }
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException ie) {
+                // dequeued but never written
+                release(p);
+                p.future.cancel(false);
+                break;
+            }
+            long number;
+            try {
+                number = start();
+            } catch (InterruptedException ie) {
+                release(p);
+                inFlight.release();
+                p.future.cancel(false);
+                break;
+            }
+            flow.pace(p.cmd.remaining());
+            p.from = p.cmd.position();
+            metrics.sent(p.cmd);
+            write(p, 0, number);
+        }
+    }
+
+    /* waits for the retries, and numbers the next transfer */
+    private long start() throws InterruptedException {
+        lock.lock();
+        try {
+            while (retrying > 0) {
+                noRetry.await();
+            }
+            return ++started;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* the transfer may be retried if it is the last one started */
+    private boolean holdBack(long number) {
+        lock.lock();
+        try {
+            if (number != started) {
+                return false;
+            }
+            retrying++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void retried() {
+        lock.lock();
+        try {
+            retrying--;
+            noRetry.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* a transfer that timed out is written again later, from where it stopped, keeping its slot */
+    private void write(Pending p, int attempt, long number) {
+        long start = System.nanoTime();
+        transport.writeAsync(p.cmd).whenComplete((v, failure) -> {
+            flow.completed(p.cmd, start, failure);
+            if (failure != null && running && K8101FlowControl.retry(p.cmd, p.from, failure, attempt)
+                    && (attempt > 0 || holdBack(number))) {
+                metrics.retried();
+                K8101FlowControl.later(() -> write(p, attempt + 1, number), attempt);
+                return;
+            }
+            if (attempt > 0) {
+                retried();
+            }
+            metrics.completed(start, failure);
+            release(p);
+            inFlight.release();
+            if (failure == null) {
+                p.future.complete(null);
+            } else {
+                p.future.completeExceptionally(failure);
+            }
+        });
+    }
+
+    private void release(Pending p) {
+        buffers.offer(p.copy);
+    }
+
+    /**
+     * Stops the writer. Commands still queued are cancelled, transfers already
+     * submitted complete normally.
+     */
+    void close() {
+        lock.lock();
+        try {
+            running = false;
+            for (Pending p : pending) {
+                release(p);
+                p.future.cancel(false);
+            }
+            pending.clear();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        writer.interrupt();
+    }
+}
@@ -0,0 +1,380 @@
+
+package fr.seki.dashboard.usb;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shares one board between local processes: the daemon owns the display and
+ * serves clients on a Unix domain socket, with a single selector thread.
+ *
+ * Clients speak the protocol of the board (see README), usually through a
+ * {@link DaemonTransport}. Each client draws into its own layer, a software
+ * board, clipped to a region and stacked by z-order, either opaque or
+ * transparent (only its dark pixels show). The daemon composites the layers
+ * and sends the differences with what the board shows, at most maxFps times
+ * per second and once the previous frame has been accepted. Settings (beep,
+ * backlight, contrast, invert) go to the board as they are, and button
+ * presses are forwarded to every client.
+ *
+ * The region of a client is set by the daemon command {@code layer} (code
+ * {@value #LAYER}): x, y, width, height, z, flags (bit 0: transparent), in
+ * the usual framing. Without it a client covers the whole screen, opaque,
+ * above the clients connected before it. A layer command with a wrong
+ * checksum is ignored.
+ *
+ * Notifications to a client that does not read are kept in a small buffer,
+ * written as the socket takes them; once it is full the next ones are
+ * dropped.
+ *
+ * From the command line:
+ * {@code java fr.seki.dashboard.usb.K8101Daemon socket [display [maxFps]]}.
+ *
+ * @author seb
+ */
+public final class K8101Daemon implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(K8101Daemon.class.toString());
+
+    /* command code of the layer settings, not used by the firmware */
+    static final int LAYER = 0x30;
+    /* notifications kept for a client that does not read */
+    private static final int OUT_CAPACITY = 64 * K8101Buttons.SHORT_PRESS.length;
+
+    private static final class Client {
+        private final SocketChannel channel;
+        private final long order;
+        private final ByteBuffer in = ByteBuffer.allocate(4 * K8101Encoder.MAX_FRAME);
+        private final ByteBuffer out = ByteBuffer.allocate(OUT_CAPACITY);
+        private SelectionKey key;
+        private final EmulatorTransport layer = new EmulatorTransport();
+        private int x;
+        private int y;
+        private int width = FrameBuffer.WIDTH;
+        private int height = FrameBuffer.HEIGHT;
+        private int z;
+        private boolean transparent;
+
+        private Client(SocketChannel channel, long order) {
+            this.channel = channel;
+            this.order = order;
+        }
+    }
+
+    private static final Comparator<Client> STACKING = Comparator.<Client>comparingInt(c -> c.z)
+            .thenComparingLong(c -> c.order);
+
+    private final Path socket;
+    private final K8101Display display;
+    private final long minInterval;
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final ArrayList<Client> clients = new ArrayList<Client>();
+    private final ConcurrentLinkedQueue<byte[]> notifications = new ConcurrentLinkedQueue<byte[]>();
+    private final FrameBuffer screen = new FrameBuffer();
+    private final byte[] composite = new byte[FrameBuffer.SIZE];
+    private final IK8101ButtonListener buttons;
+    private long connections;
+    private boolean dirty;
+    private long nextFrame;
+    private CompletableFuture<Void> lastFrame;
+    private volatile boolean running = true;
+
+    /**
+     * Binds the socket, replacing a stale socket file, and takes the
+     * display. Clients are served by {@link #run()}.
+     */
+    public K8101Daemon(Path socket, K8101Display display, double maxFps) throws IOException {
+        if (!(maxFps > 0)) {
+            throw new IllegalArgumentException("maxFps must be positive");
+        }
+        this.socket = socket;
+        this.display = display;
+        this.minInterval = (long) (TimeUnit.SECONDS.toNanos(1) / maxFps);
+        Files.deleteIfExists(socket);
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException ioe) {
+            server.close();
+            selector.close();
+            throw ioe;
+        }
+        this.buttons = new IK8101ButtonListener() {
+            @Override
+            public void buttonShortPress(K8101Display d) {
+                forward(K8101Buttons.SHORT_PRESS);
+            }
+
+            @Override
+            public void buttonLongPress(K8101Display d) {
+                forward(K8101Buttons.LONG_PRESS);
+            }
+        };
+        display.addButtonListener(buttons);
+        screen.invalidate();
+        dirty = true;
+    }
+
+    private void forward(byte[] notification) {
+        notifications.add(notification);
+        selector.wakeup();
+    }
+
+    /**
+     * Serves the clients until {@link #close()}.
+     */
+    public void run() throws IOException {
+        try {
+            while (running) {
+                selector.select(this::ready, timeout());
+                byte[] n;
+                while ((n = notifications.poll()) != null) {
+                    for (Client c : new ArrayList<Client>(clients)) {
+                        send(c, n);
+                    }
+                }
+                refresh();
+            }
+        } finally {
+            shutdown();
+        }
+    }
+
+    /* how long the selector may sleep, 0 for ever */
+    private long timeout() {
+        if (!dirty) {
+            return 0;
+        }
+        if (lastFrame != null && !lastFrame.isDone()) {
+            return 1; // poll the device acceptance
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextFrame - System.nanoTime()));
+    }
+
+    private void ready(SelectionKey key) {
+        try {
+            if (key.isAcceptable()) {
+                SocketChannel channel = server.accept();
+                if (channel != null) {
+                    channel.configureBlocking(false);
+                    Client c = new Client(channel, connections++);
+                    c.key = channel.register(selector, SelectionKey.OP_READ, c);
+                    clients.add(c);
+                    dirty = true;
+                    logger.fine("client " + c.order + " connected");
+                }
+            } else {
+                Client c = (Client) key.attachment();
+                if (key.isReadable()) {
+                    read(c);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    flush(c);
+                }
+            }
+        } catch (IOException ioe) {
+            logger.log(Level.WARNING, "cannot accept a client", ioe);
+        }
+    }
+
+    private void read(Client c) {
+        int n;
+        try {
+            n = c.channel.read(c.in);
+        } catch (IOException ioe) {
+            n = -1;
+        }
+        if (n < 0) {
+            disconnect(c);
+            return;
+        }
+        ByteBuffer in = c.in;
+        in.flip();
+        while (in.remaining() >= 4) {
+            int pos = in.position();
+            int length = K8101Encoder.frameLength(in, pos);
+            if (in.get(pos) != (byte) 0xAA || length < 6 || length > K8101Encoder.MAX_FRAME) {
+                in.position(pos + 1); // out of sync, look for the next start byte
+                continue;
+            }
+            if (in.remaining() < length) {
+                break;
+            }
+            execute(c, in.slice(pos, length));
+            in.position(pos + length);
+        }
+        in.compact();
+    }
+
+    private void execute(Client c, ByteBuffer frame) {
+        int code = frame.get(3);
+        switch (code) {
+            case LAYER:
+                if (frame.remaining() == 6 + 6 && checksumOk(frame)) {
+                    c.x = Math.min(frame.get(4) & 0xff, FrameBuffer.WIDTH);
+                    c.y = Math.min(frame.get(5) & 0xff, FrameBuffer.HEIGHT);
+                    c.width = Math.min(frame.get(6) & 0xff, FrameBuffer.WIDTH - c.x);
+                    c.height = Math.min(frame.get(7) & 0xff, FrameBuffer.HEIGHT - c.y);
+                    c.z = frame.get(8);
+                    c.transparent = (frame.get(9) & 1) != 0;
+                    dirty = true;
+                }
+                break;
+            case 6: // beep
+            case 17: // contrast
+            case 20: // backlight
+            case 21: // invert
+                display.sendBatch(frame);
+                break;
+            default:
+                c.layer.write(frame);
+                dirty = true;
+        }
+    }
+
+    private static boolean checksumOk(ByteBuffer frame) {
+        int length = frame.remaining();
+        int sum = 0;
+        for (int i = 1; i < length - 2; i++) {
+            sum += frame.get(i);
+        }
+        return (byte) sum == frame.get(length - 2) && frame.get(length - 1) == 0x55;
+    }
+
+    private void send(Client c, byte[] data) {
+        if (c.out.remaining() < data.length) {
+            logger.fine("client " + c.order + " does not read, notification dropped");
+            return;
+        }
+        c.out.put(data);
+        flush(c);
+    }
+
+    /* writes what the socket takes, and waits for room for the rest */
+    private void flush(Client c) {
+        c.out.flip();
+        try {
+            c.channel.write(c.out);
+        } catch (IOException ioe) {
+            disconnect(c);
+            return;
+        }
+        c.out.compact();
+        c.key.interestOps(c.out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    private void disconnect(Client c) {
+        clients.remove(c);
+        try {
+            c.channel.close();
+        } catch (IOException ioe) {
+            logger.log(Level.FINE, "cannot close client " + c.order, ioe);
+        }
+        dirty = true;
+        logger.fine("client " + c.order + " disconnected");
+    }
+
+    /* composites the layers and sends the differences, when allowed */
+    private void refresh() {
+        long now = System.nanoTime();
+        if (!dirty || now - nextFrame < 0 || (lastFrame != null && !lastFrame.isDone())) {
+            return;
+        }
+        dirty = false;
+        nextFrame = now + minInterval;
+        clients.sort(STACKING);
+        Arrays.fill(composite, (byte) 0);
+        for (Client c : clients) {
+            if (c.width > 0 && c.height > 0) {
+                blend(c.layer.snapshot(), c);
+            }
+        }
+        screen.setBitmap(composite);
+        lastFrame = screen.flush(display);
+    }
+
+    /* draws the region of a layer over the composite, band by band */
+    private void blend(byte[] layer, Client c) {
+        int bottom = c.y + c.height;
+        for (int band = c.y >> 3; band <= (bottom - 1) >> 3; band++) {
+            int top = Math.max(c.y, band << 3) - (band << 3);
+            int end = Math.min(bottom, (band + 1) << 3) - (band << 3);
+            int mask = (0xff << top) & (0xff >> (8 - end));
+            int row = band * FrameBuffer.WIDTH;
+            for (int x = c.x; x < c.x + c.width; x++) {
+                int i = row + x;
+                if (c.transparent) {
+                    composite[i] |= layer[i] & mask;
+                } else {
+                    composite[i] = (byte) (composite[i] & ~mask | layer[i] & mask);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of clients connected
+     */
+    public int getClients() {
+        return clients.size();
+    }
+
+    public Path getSocket() {
+        return socket;
+    }
+
+    /**
+     * Stops {@link #run()}, disconnects the clients and removes the socket.
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void shutdown() throws IOException {
+        display.removeButtonListener(buttons);
+        for (Client c : new ArrayList<Client>(clients)) {
+            disconnect(c);
+        }
+        server.close();
+        selector.close();
+        Files.deleteIfExists(socket);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: K8101Daemon socket [display [maxFps]]");
+            System.exit(2);
+        }
+        K8101Display display = args.length > 1 ? K8101Display.open(args[1]) : K8101.display();
+        display.enableAsync(64, 4, K8101.Backpressure.block);
+        K8101Daemon daemon = new K8101Daemon(Paths.get(args[0]), display,
+                args.length > 2 ? Double.parseDouble(args[2]) : 25);
+        Runtime.getRuntime().addShutdownHook(new Thread(daemon::close));
+        logger.info("serving " + display + " on " + daemon.getSocket());
+        daemon.run();
+    }
+}
@@ -0,0 +1,161 @@
+
+package fr.seki.dashboard.usb;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A screen of {@link K8101Widget}s updated incrementally.
+ *
+ * The decoration of the widgets is composed into a background bitmap and
+ * sent once, as {@link LayeredScreen} does. Afterwards an update only holds
+ * the commands of the widgets whose state changed, e.g. erasing and drawing
+ * a needle: nothing at all is sent while nothing changes. The screen is
+ * drawn again in full when the display lost it (replug, clearAll, another
+ * bitmap).
+ *
+ * Once started, a dashboard updates itself: right after a widget changed, and
+ * when the next time driven change is due (the minute of a clock). All the
+ * dashboards share a single timer thread, and sleep between changes.
+ *
+ * @author seb
+ */
+public final class K8101Dashboard implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(K8101Dashboard.class.toString());
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "K8101-widgets");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final K8101Display display;
+    private final CopyOnWriteArrayList<K8101Widget> widgets = new CopyOnWriteArrayList<K8101Widget>();
+    private final AtomicBoolean pending = new AtomicBoolean();
+    private byte[] background;
+    private Object token = new Object();
+    private ScheduledFuture<?> wake;
+    private volatile boolean started;
+    private volatile boolean closed;
+
+    public K8101Dashboard(K8101Display display) {
+        this.display = display;
+    }
+
+    public K8101Display getDisplay() {
+        return display;
+    }
+
+    /**
+     * Adds a widget, the screen is drawn again in full.
+     */
+    public K8101Dashboard add(K8101Widget widget) {
+        widget.attach(this);
+        widgets.addIfAbsent(widget);
+        synchronized (this) {
+            background = null;
+        }
+        changed();
+        return this;
+    }
+
+    /**
+     * Starts updating the screen by itself, see above.
+     */
+    public void start() {
+        started = true;
+        changed();
+    }
+
+    /* a widget changed, coalesced into one update */
+    void changed() {
+        if (started && !closed && pending.compareAndSet(false, true)) {
+            timer.execute(this::tick);
+        }
+    }
+
+    private void tick() {
+        pending.set(false);
+        try {
+            refresh();
+        } catch (RuntimeException re) {
+            logger.log(Level.WARNING, "dashboard not updated", re);
+        }
+    }
+
+    /**
+     * Sends what changed since the last update, or the whole screen if the
+     * display lost it.
+     *
+     * @return completes when the update has been accepted
+     */
+    public synchronized CompletableFuture<Void> refresh() {
+        Frame frame = display.batch();
+        Object uploaded = null;
+        if (background == null || display.storedBackground() != token) {
+            if (background == null) {
+                FrameBuffer fb = new FrameBuffer();
+                for (K8101Widget w : widgets) {
+                    w.decorate(fb);
+                }
+                background = fb.toBitmap();
+                token = new Object();
+            }
+            frame.drawBitmap(background);
+            uploaded = token;
+            for (K8101Widget w : widgets) {
+                w.draw(frame);
+            }
+        } else {
+            for (K8101Widget w : widgets) {
+                w.update(frame);
+            }
+        }
+        CompletableFuture<Void> sent = frame.size() == 0 ? CompletableFuture.completedFuture(null) : frame.commit();
+        if (uploaded != null) {
+            // a failed transfer closes the link, which invalidates it again
+            display.setStoredBackground(uploaded);
+        }
+        schedule();
+        return sent;
+    }
+
+    /* wakes up for the next time driven change */
+    private void schedule() {
+        if (!started || closed) {
+            return;
+        }
+        long next = -1;
+        for (K8101Widget w : widgets) {
+            long n = w.nextChange();
+            if (n >= 0 && (next < 0 || n < next)) {
+                next = n;
+            }
+        }
+        if (wake != null) {
+            wake.cancel(false);
+        }
+        wake = next < 0 ? null : timer.schedule(this::tick, next, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the updates, the screen is left as it is.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (wake != null) {
+            wake.cancel(false);
+            wake = null;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+
+package fr.seki.dashboard.usb;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lookup tables of the positions of hands and needles.
+ *
+ * The unit vectors of a dial, divisions + 1 positions going clockwise from
+ * a start angle over a sweep, are computed once in 16.16 fixed point and
+ * shared by every widget with the same division of the circle. A widget then
+ * scales them once to its center and lengths, and only reads its table on
+ * each update.
+ *
+ * @author seb
+ */
+final class K8101Dial {
+
+    private static final ConcurrentHashMap<Long, int[]> units = new ConcurrentHashMap<Long, int[]>();
+
+    private K8101Dial() {
+    }
+
+    /**
+     * @param start angle of position 0 in degrees, counter-clockwise from 3
+     * o'clock (90 for 12 o'clock)
+     * @param sweep clockwise angle of the last position, in degrees
+     * @return cos and sin of each position in 16.16, interleaved
+     */
+    static int[] units(int divisions, int start, int sweep) {
+        long key = (long) divisions << 32 | (start & 0xffffL) << 16 | (sweep & 0xffffL);
+        return units.computeIfAbsent(key, k -> {
+            int[] u = new int[2 * (divisions + 1)];
+            for (int i = 0; i <= divisions; i++) {
+                double a = Math.toRadians(start - (double) sweep * i / divisions);
+                u[2 * i] = (int) Math.round(Math.cos(a) * 65536);
+                u[2 * i + 1] = (int) Math.round(Math.sin(a) * 65536);
+            }
+            return u;
+        });
+    }
+
+    /**
+     * @return for each position, the screen coordinates of the segment from
+     * inner to outer radius around (cx, cy): x1, y1, x2, y2
+     */
+    static int[] spokes(int cx, int cy, int inner, int outer, int divisions, int start, int sweep) {
+        int[] u = units(divisions, start, sweep);
+        int[] s = new int[2 * u.length];
+        for (int i = 0; i <= divisions; i++) {
+            int cos = u[2 * i];
+            int sin = u[2 * i + 1];
+            s[4 * i] = cx + (inner * cos + 0x8000 >> 16);
+            s[4 * i + 1] = cy - (inner * sin + 0x8000 >> 16);
+            s[4 * i + 2] = cx + (outer * cos + 0x8000 >> 16);
+            s[4 * i + 3] = cy - (outer * sin + 0x8000 >> 16);
+        }
+        return s;
+    }
+}
@@ -0,0 +1,772 @@
+
+package fr.seki.dashboard.usb;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.Icon;
+import org.usb4java.Context;
+import org.usb4java.Device;
+import org.usb4java.DeviceDescriptor;
+import org.usb4java.DeviceList;
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+
+/**
+ * Handle on one K8101 board, with its own transport and, in asynchronous
+ * mode, its own command queue and writer thread, so that several boards are
+ * updated in parallel.
+ *
+ * A display is identified by where it is plugged:
+ * <ul>
+ * <li>"usb": the first board found by libusb (single board setups),</li>
+ * <li>"usb:1-2.3": the board on that bus/port path,</li>
+ * <li>"serial:XXXX": the board with that USB serial number,</li>
+ * <li>"tty:/dev/ttyACM0": the board behind that serial device,</li>
+ * <li>"daemon:/run/k8101.sock": a full screen layer of the board shared by
+ * the {@link K8101Daemon} on that socket,</li>
+ * <li>"emulator": an {@link EmulatorTransport} at unlimited speed,</li>
+ * <li>"loopback": a {@link LoopbackTransport}.</li>
+ * </ul>
+ * Displays on any other transport are registered with
+ * {@link #open(String, K8101Transport)}.
+ * All USB displays share the libusb context of {@link K8101}, which routes
+ * hotplug events to them. {@link #open(String)} returns the same instance for
+ * the same id until it is closed.
+ *
+ * Button presses are read only while a button listener is registered.
+ *
+ * With state replay, on by default for USB, tty and daemon displays, the
+ * display keeps the state the board should show: settings, stored bitmap and
+ * screen. While the link is down, commands only update that state and complete
+ * normally. When the board comes back, on hotplug arrival or on a reopen
+ * attempted at most once per second, the state is sent back in one batch.
+ *
+ * Frames are rewritten by {@link K8101Optimizer} on commit, and with state
+ * replay a contrast or an inversion already on the board is not sent again.
+ * A setting counts as on the board once its transfer completed: while one is
+ * in flight, and after a failure, a drop or a cancellation, it is unknown.
+ *
+ * In synchronous mode, the commands of concurrent callers are written one at
+ * a time, each transfer and its retries before the next one.
+ *
+ * The static methods of {@link K8101} drive the default display.
+ *
+ * @author seb
+ */
+public final class K8101Display {
+
+    private static final Logger logger = Logger.getLogger(K8101Display.class.toString());
+
+    private static final CompletableFuture<Void> SENT = CompletableFuture.completedFuture(null);
+    private static final ConcurrentHashMap<String, K8101Display> displays = new ConcurrentHashMap<String, K8101Display>();
+    private static final long REOPEN_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    /* replays the state after a hotplug arrival, off the libusb event thread */
+    private static final ExecutorService recovery = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "K8101-recovery");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final String id;
+    private final K8101Transport transport;
+    private final K8101Buttons buttons = new K8101Buttons(this);
+    private final K8101FlowControl flow = new K8101FlowControl();
+    private final K8101Metrics metrics;
+    private volatile K8101CommandQueue queue;
+    /* owner of the synchronous writes, apart from the transport monitor that
+       the event thread callbacks take */
+    private final ReentrantLock writing = new ReentrantLock();
+    /* what the firmware restores on clearfg, null when unknown */
+    private volatile Object background;
+    /* bumped by whatever wipes the screen */
+    private final AtomicInteger clears = new AtomicInteger();
+    /* model of the board for the state replay, null when disabled */
+    private volatile EmulatorTransport state;
+    /* the board may have lost its state: replay it once the link is up */
+    private volatile boolean linkLost;
+    private volatile boolean optimizing = true;
+    /* settings the board acknowledged, -1 when unknown */
+    private final Object settings = new Object();
+    private int contrast = -1;
+    private int inverted = -1;
+    private long contrastSeq;
+    private long invertedSeq;
+    private long settingsSeq;
+    private int settingsPending; // transfers of settings not completed yet
+    private long nextReopen; // System.nanoTime() of the next reopen attempt
+
+    K8101Display(String id, K8101Transport transport) {
+        this.id = id;
+        this.transport = transport;
+        this.metrics = new K8101Metrics(id, this::queueDepth, flow);
+        if (transport instanceof UsbTransport || transport instanceof TtyTransport
+                || transport instanceof DaemonTransport) {
+            this.state = new EmulatorTransport();
+        }
+    }
+
+    /**
+     * Returns the display with the given id (see above), creating it if
+     * needed. The board does not have to be present yet.
+     */
+    public static K8101Display open(String id) {
+        return displays.computeIfAbsent(id, key -> {
+            K8101Display display = new K8101Display(key, transport(key));
+            display.metrics.register();
+            return display;
+        });
+    }
+
+    /**
+     * Registers a display on a given transport, e.g. a realistic
+     * {@link EmulatorTransport}.
+     *
+     * @throws IllegalArgumentException if the id is already in use
+     */
+    public static K8101Display open(String id, K8101Transport transport) {
+        K8101Display display = new K8101Display(id, transport);
+        if (displays.putIfAbsent(id, display) != null) {
+            throw new IllegalArgumentException("display " + id + " already open");
+        }
+        display.metrics.register();
+        return display;
+    }
+
+    /**
+     * @return true if {@link #open(String)} knows the id: an open display or
+     * an id of the list above
+     */
+    static boolean canOpen(String id) {
+        return displays.containsKey(id) || id.equals("emulator") || id.equals("loopback") || id.equals("usb")
+                || id.startsWith("daemon:") || id.startsWith("tty:") || id.startsWith("usb:") || id.startsWith("serial:");
+    }
+
+    private static K8101Transport transport(String id) {
+        if (id.equals("emulator")) {
+            return new EmulatorTransport();
+        }
+        if (id.equals("loopback")) {
+            return new LoopbackTransport();
+        }
+        if (id.startsWith("daemon:")) {
+            return new DaemonTransport(Paths.get(id.substring(7)));
+        }
+        if (id.startsWith("tty:")) {
+            return new TtyTransport(Paths.get(id.substring(4)), Integer.getInteger("k8101.tty.coalesce", 0));
+        }
+        Context ctx = K8101.context();
+        if (id.equals("usb")) {
+            return new UsbTransport(ctx, K8101.VENDOR_ID, K8101.PRODUCT_ID, K8101.INTERFACE, K8101.EP, K8101.TIMEOUT);
+        } else if (id.startsWith("usb:")) {
+            return new UsbTransport(ctx, K8101.VENDOR_ID, K8101.PRODUCT_ID, K8101.INTERFACE, K8101.EP, K8101.TIMEOUT,
+                    id.substring(4), null);
+        } else if (id.startsWith("serial:")) {
+            return new UsbTransport(ctx, K8101.VENDOR_ID, K8101.PRODUCT_ID, K8101.INTERFACE, K8101.EP, K8101.TIMEOUT,
+                    null, id.substring(7));
+        }
+        throw new IllegalArgumentException("unknown display " + id);
+    }
+
+    /**
+     * Enumerates the boards currently plugged.
+     *
+     * @return the "usb:" id of each board, by bus/port path
+     */
+    public static List<String> available() {
+        Context ctx = K8101.context();
+        if (K8101.isWatching()) {
+            Map<Device, String> known = K8101.boards();
+            K8101.unref(known);
+            ArrayList<String> ids = new ArrayList<String>();
+            for (String path : known.values()) {
+                ids.add("usb:" + path);
+            }
+            return ids;
+        }
+        DeviceList list = new DeviceList();
+        int result = LibUsb.getDeviceList(ctx, list);
+        if (result < 0) {
+            throw new LibUsbException("Unable to get device list", result);
+        }
+        ArrayList<String> ids = new ArrayList<String>();
+        try {
+            for (Device device : list) {
+                DeviceDescriptor descriptor = new DeviceDescriptor();
+                if (LibUsb.getDeviceDescriptor(device, descriptor) == LibUsb.SUCCESS
+                        && descriptor.idVendor() == K8101.VENDOR_ID && descriptor.idProduct() == K8101.PRODUCT_ID) {
+                    ids.add("usb:" + UsbTransport.path(device));
+                }
+            }
+        } finally {
+            LibUsb.freeDeviceList(list, true);
+        }
+        return ids;
+    }
+
+    /**
+     * Opens a display for each board currently plugged.
+     */
+    public static List<K8101Display> openAll() {
+        ArrayList<K8101Display> all = new ArrayList<K8101Display>();
+        for (String id : available()) {
+            all.add(open(id));
+        }
+        return all;
+    }
+
+    /* when the driver is closed */
+    static void closeAll() {
+        for (K8101Display display : displays.values()) {
+            display.close();
+        }
+    }
+
+    /**
+     * Starts a batch of commands that is encoded once and sent to every given
+     * display on {@link Frame#commit()}.
+     */
+    public static Frame broadcast(Collection<K8101Display> targets) {
+        return new Frame(targets.toArray(new K8101Display[targets.size()]), Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /* hotplug events from the libusb context of K8101 */
+    static void deviceArrived(Device device) {
+        for (K8101Display display : displays.values()) {
+            if (display.transport instanceof UsbTransport
+                    && ((UsbTransport) display.transport).deviceArrived(device)) {
+                display.metrics.hotplug(true);
+                if (display.state == null) {
+                    display.backgroundReplaced();
+                } else {
+                    display.linkLost = true;
+                    display.forgetSettings();
+                    recovery.execute(() -> display.reconnect(true));
+                }
+            }
+        }
+    }
+
+    static void deviceLeft(Device device) {
+        for (K8101Display display : displays.values()) {
+            if (display.transport instanceof UsbTransport
+                    && ((UsbTransport) display.transport).deviceLeft(device)) {
+                display.metrics.hotplug(false);
+                if (display.state == null) {
+                    display.backgroundReplaced();
+                } else {
+                    display.linkLost = true;
+                    display.forgetSettings();
+                }
+            }
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    K8101Transport getTransport() {
+        return transport;
+    }
+
+    public boolean isOpen() {
+        return transport.isOpen();
+    }
+
+    /**
+     * @return the counters of this display, also published through JMX
+     */
+    public K8101Metrics getMetrics() {
+        return metrics;
+    }
+
+    private int queueDepth() {
+        K8101CommandQueue q = queue;
+        return q == null ? 0 : q.size();
+    }
+
+    /**
+     * @return the token of the background stored by the firmware (see
+     * {@link LayeredScreen}), or null if it is unknown: never set, replaced
+     * by another bitmap or a clearAll, or lost because the link was closed
+     */
+    Object storedBackground() {
+        if (state == null && !transport.isOpen()) {
+            background = null;
+        }
+        return background;
+    }
+
+    void setStoredBackground(Object token) {
+        background = token;
+    }
+
+    void backgroundReplaced() {
+        background = null;
+        clears.incrementAndGet();
+    }
+
+    /**
+     * @return a count that changes when the screen is wiped: clearfg,
+     * clearAll, a bitmap, or a closed link, so that what was drawn with
+     * commands is known to be still there while it stays the same
+     */
+    int clears() {
+        if (state == null && !transport.isOpen()) {
+            return clears.incrementAndGet();
+        }
+        return clears.get();
+    }
+
+    void screenCleared() {
+        clears.incrementAndGet();
+    }
+
+    /**
+     * Enables or disables the state replay (see above). Enabled, the state
+     * starts blank: what was drawn before is not known.
+     */
+    public synchronized void setStateReplay(boolean enabled) {
+        if (enabled != (state != null)) {
+            state = enabled ? new EmulatorTransport() : null;
+            linkLost = false;
+        }
+    }
+
+    public boolean isStateReplay() {
+        return state != null;
+    }
+
+    /**
+     * Enables or disables the rewriting of frames into fewer bytes (see
+     * {@link K8101Optimizer}), enabled by default.
+     */
+    public void setOptimizing(boolean enabled) {
+        optimizing = enabled;
+    }
+
+    public boolean isOptimizing() {
+        return optimizing;
+    }
+
+    /* settings on the board as far as the completed transfers tell, -1 if unknown */
+    int knownContrast() {
+        synchronized (settings) {
+            return optimizing && state != null && settingsPending == 0 ? contrast : -1;
+        }
+    }
+
+    int knownInverted() {
+        synchronized (settings) {
+            return optimizing && state != null && settingsPending == 0 ? inverted : -1;
+        }
+    }
+
+    private void forgetSettings() {
+        synchronized (settings) {
+            contrast = -1;
+            inverted = -1;
+        }
+    }
+
+    /* the argument of the last command of the code in the commands, -1 if none */
+    private static int lastArg(ByteBuffer cmds, int code) {
+        int arg = -1;
+        int limit = cmds.limit();
+        int pos = cmds.position();
+        while (pos + 5 <= limit) {
+            int n = K8101Encoder.frameLength(cmds, pos);
+            if (n < 6) {
+                break;
+            }
+            if (cmds.get(pos + 3) == code) {
+                arg = cmds.get(pos + 4) & 0xff;
+            }
+            pos += n;
+        }
+        return arg;
+    }
+
+    /**
+     * Sends commands, and records the settings they hold once their transfer
+     * completed.
+     */
+    private CompletableFuture<Void> send(ByteBuffer cmds, boolean single) {
+        int c = lastArg(cmds, K8101.Command.contrast.getCode());
+        int inv = lastArg(cmds, K8101.Command.invert.getCode());
+        if (c < 0 && inv < 0) {
+            return transmit(cmds, single);
+        }
+        long seq;
+        synchronized (settings) {
+            seq = ++settingsSeq;
+            settingsPending++;
+        }
+        CompletableFuture<Void> f = transmit(cmds, single);
+        // a link lost means the commands were dropped, or only kept for the replay
+        f.whenComplete((v, failure) -> settingsDone(seq, c, inv < 0 ? -1 : inv != 0 ? 1 : 0,
+                failure == null && !linkLost));
+        return f;
+    }
+
+    private void settingsDone(long seq, int c, int inv, boolean ok) {
+        synchronized (settings) {
+            settingsPending--;
+            // a later setting may have completed first
+            if (c >= 0 && (!ok || seq > contrastSeq)) {
+                contrast = ok ? c : -1;
+                contrastSeq = Math.max(contrastSeq, seq);
+            }
+            if (inv >= 0 && (!ok || seq > invertedSeq)) {
+                inverted = ok ? inv : -1;
+                invertedSeq = Math.max(invertedSeq, seq);
+            }
+        }
+    }
+
+    /**
+     * With state replay, tells whether the command can go to the board,
+     * reopening the link and replaying the state if it was lost.
+     */
+    private boolean linkUp() {
+        if (!linkLost) {
+            if (transport.isOpen()) {
+                return true;
+            }
+            linkLost = true;
+            forgetSettings();
+        }
+        return reconnect(false);
+    }
+
+    /**
+     * Reopens the link if needed, at most once per second unless now, and
+     * sends the state.
+     *
+     * @return true if the link is up
+     */
+    private synchronized boolean reconnect(boolean now) {
+        EmulatorTransport s = state;
+        if (!linkLost || s == null) {
+            return true;
+        }
+        if (!transport.isOpen()) {
+            long t = System.nanoTime();
+            if (!now && t - nextReopen < 0) {
+                return false;
+            }
+            nextReopen = t + REOPEN_INTERVAL;
+            try {
+                if (!transport.open()) {
+                    return false;
+                }
+            } catch (IOException | LibUsbException e) {
+                logger.log(Level.FINE, id + ": cannot reopen", e);
+                return false;
+            }
+        }
+        linkLost = false;
+        if (s.getCommands() == 0) {
+            return true; // nothing drawn yet
+        }
+        Frame frame = new Frame(new K8101Display[0], Integer.MAX_VALUE, Integer.MAX_VALUE);
+        s.appendState(frame);
+        K8101CommandQueue q = queue;
+        if (q != null) {
+            q.enqueue(frame.frames(), false);
+        } else {
+            write(frame.frames());
+        }
+        if (!linkLost) {
+            metrics.recovered();
+            logger.info(id + ": state replayed, " + frame.byteCount() + " bytes");
+        }
+        return !linkLost;
+    }
+
+    /**
+     * Stops the command queue and closes the transport. The next
+     * {@link #open(String)} with the same id returns a new display.
+     */
+    public void close() {
+        displays.remove(id, this);
+        transport.setReceiver(null);
+        disableAsync();
+        writing.lock();
+        try {
+            transport.close();
+        } finally {
+            writing.unlock();
+        }
+        metrics.unregister();
+    }
+
+    /**
+     * Registers a listener of the button, starting to read the device.
+     */
+    public synchronized void addButtonListener(IK8101ButtonListener l) {
+        if (buttons.add(l)) {
+            if (transport instanceof UsbTransport) {
+                K8101.startEventThread();
+            }
+            if (!transport.setReceiver(buttons)) {
+                logger.warning(id + ": the transport cannot read buttons");
+            }
+        }
+    }
+
+    /**
+     * Unregisters a listener, reading stops after the last one.
+     */
+    public synchronized void removeButtonListener(IK8101ButtonListener l) {
+        if (buttons.remove(l)) {
+            transport.setReceiver(null);
+        }
+    }
+
+    public CompletableFuture<Void> beep(int num) {
+        return send(K8101Encoder.local().encode(K8101.Command.beep, num));
+    }
+
+    public CompletableFuture<Void> backlight(int seconds) {
+        return send(K8101Encoder.local().encode(K8101.Command.backlight, seconds));
+    }
+
+    public CompletableFuture<Void> clearAll() {
+        backgroundReplaced();
+        return send(K8101Encoder.local().encode(K8101.Command.clearall));
+    }
+
+    public CompletableFuture<Void> clearForeground() {
+        screenCleared();
+        return send(K8101Encoder.local().encode(K8101.Command.clearfg));
+    }
+
+    public CompletableFuture<Void> setContrast(int c) {
+        if (knownContrast() == c) {
+            return SENT;
+        }
+        return send(K8101Encoder.local().encode(K8101.Command.contrast, c));
+    }
+
+    public CompletableFuture<Void> setInverted(boolean inv) {
+        if (knownInverted() == (inv ? 1 : 0)) {
+            return SENT;
+        }
+        return send(K8101Encoder.local().encode(K8101.Command.invert, inv ? 1 : 0));
+    }
+
+    public CompletableFuture<Void> drawPixel(int x, int y) {
+        return send(K8101Encoder.local().encode(K8101.Command.drawpixel, x, y));
+    }
+
+    public CompletableFuture<Void> erasePixel(int x, int y) {
+        return send(K8101Encoder.local().encode(K8101.Command.erasepixel, x, y));
+    }
+
+    public CompletableFuture<Void> drawLine(int x, int y, int x2, int y2) {
+        return send(K8101Encoder.local().encode(K8101.Command.drawline, x, y, x2, y2));
+    }
+
+    public CompletableFuture<Void> eraseLine(int x, int y, int x2, int y2) {
+        return send(K8101Encoder.local().encode(K8101.Command.eraseline, x, y, x2, y2));
+    }
+
+    public CompletableFuture<Void> drawRectangle(int x, int y, int width, int height, boolean plain) {
+        if (plain) {
+            return send(K8101Encoder.local().encode(K8101.Command.drawrect, x, y, width, height));
+        }
+        return sendBatch(K8101Encoder.local().encodeOutline(K8101.Command.drawline, x, y, width, height));
+    }
+
+    public CompletableFuture<Void> eraseRectangle(int x, int y, int width, int height, boolean plain) {
+        if (plain) {
+            return send(K8101Encoder.local().encode(K8101.Command.eraserect, x, y, width, height));
+        }
+        return sendBatch(K8101Encoder.local().encodeOutline(K8101.Command.eraseline, x, y, width, height));
+    }
+
+    public CompletableFuture<Void> drawText(String txt, int x, int y, int width, K8101.TextSize size) {
+        return send(K8101Encoder.local().encodeText(txt, x, y, width, size));
+    }
+
+    public CompletableFuture<Void> drawBitmap(Icon icon) {
+        backgroundReplaced();
+        return send(K8101Encoder.local().encodeBitmap(K8101.iconImage(icon)));
+    }
+
+    /**
+     * Sends an image, cropped to 128x64.
+     */
+    public CompletableFuture<Void> drawBitmap(BufferedImage img) {
+        backgroundReplaced();
+        return send(K8101Encoder.local().encodeBitmap(img));
+    }
+
+    /**
+     * Sends an image scaled to fit 128x64 and dithered, e.g. a photo or a
+     * shaded graph.
+     */
+    public CompletableFuture<Void> drawBitmap(BufferedImage img, K8101Dither.Method method) {
+        return drawBitmap(K8101Dither.toBitmap(img, method));
+    }
+
+    /**
+     * Sends width x height ARGB pixels, cropped to 128x64.
+     */
+    public CompletableFuture<Void> drawBitmap(int[] argb, int width, int height) {
+        backgroundReplaced();
+        return send(K8101Encoder.local().encodeBitmap(argb, width, height));
+    }
+
+    /**
+     * Sends a bitmap already in the device layout.
+     */
+    public CompletableFuture<Void> drawBitmap(byte[] bitmap) {
+        backgroundReplaced();
+        return send(K8101Encoder.local().encodeBitmap(bitmap));
+    }
+
+    /**
+     * Switches this display to asynchronous mode, see
+     * {@link K8101#enableAsync(int, int, K8101.Backpressure)}.
+     */
+    public synchronized void enableAsync(int capacity, int maxInFlight, K8101.Backpressure policy) {
+        disableAsync();
+        if (transport instanceof UsbTransport) {
+            K8101.startEventThread();
+        }
+        queue = new K8101CommandQueue("K8101-writer-" + id, capacity, maxInFlight, policy, transport, metrics, flow);
+    }
+
+    /**
+     * Goes back to synchronous sending, commands still queued are cancelled.
+     */
+    public synchronized void disableAsync() {
+        if (queue != null) {
+            queue.close();
+            queue = null;
+        }
+    }
+
+    /**
+     * Starts a batch of commands for this display.
+     */
+    public Frame batch() {
+        return batch(Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Starts a batch of commands, split on commit in transfers of at most
+     * maxCommands commands and maxBytes bytes.
+     */
+    public Frame batch(int maxCommands, int maxBytes) {
+        return new Frame(new K8101Display[]{this}, maxCommands, maxBytes);
+    }
+
+    /**
+     * Sends one encoded command, the buffer is only read during the call.
+     */
+    CompletableFuture<Void> send(ByteBuffer cmd) {
+        return send(cmd, true);
+    }
+
+    /**
+     * Sends several concatenated commands as a single transfer.
+     */
+    CompletableFuture<Void> sendBatch(ByteBuffer cmds) {
+        return send(cmds, false);
+    }
+
+    private CompletableFuture<Void> transmit(ByteBuffer cmds, boolean single) {
+        EmulatorTransport s = state;
+        if (s != null) {
+            boolean up = linkUp();
+            s.write(cmds);
+            if (!up) {
+                metrics.dropped();
+                return SENT;
+            }
+        }
+        K8101CommandQueue q = queue;
+        if (q != null) {
+            return q.enqueue(cmds, single);
+        }
+        return write(cmds);
+    }
+
+    private CompletableFuture<Void> write(ByteBuffer frames) {
+        writing.lock();
+        try {
+            return writeLocked(frames);
+        } finally {
+            writing.unlock();
+        }
+    }
+
+    private CompletableFuture<Void> writeLocked(ByteBuffer frames) {
+        // the transport moves the position past what the board took on
+        // timeout, it is put back once done
+        int from = frames.position();
+        try {
+            for (int attempt = 0;; attempt++) {
+                long start = System.nanoTime();
+                try {
+                    if (!transport.open()) {
+                        IOException ioe = new IOException("cannot open device " + id);
+                        metrics.failed(ioe);
+                        return CompletableFuture.failedFuture(ioe);
+                    }
+                    flow.pace(frames.remaining());
+                    start = System.nanoTime();
+                    if (attempt == 0) {
+                        metrics.sent(frames);
+                    }
+                    transport.write(frames);
+                    transport.flush();
+                    metrics.completed(start, null);
+                    flow.completed(frames, start, null);
+                    return SENT;
+                } catch (IOException | LibUsbException e) {
+                    flow.completed(frames, start, e);
+                    if (K8101FlowControl.retry(frames, from, e, attempt)) {
+                        metrics.retried();
+                        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(K8101FlowControl.backoffMillis(attempt)));
+                        continue;
+                    }
+                    metrics.completed(start, e);
+                    if (state != null && !transport.isOpen()) {
+                        // the link is lost, the command is in the state to replay
+                        linkLost = true;
+                        return SENT;
+                    }
+                    return CompletableFuture.failedFuture(e);
+                }
+            }
+        } finally {
+            frames.position(from);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "K8101Display[" + id + "]";
+    }
+}
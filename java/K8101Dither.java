@@ -0,0 +1,208 @@
+
+package fr.seki.dashboard.usb;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Conversion of photos and shaded graphics to the bitmap layout of the
+ * display, with dithering instead of the threshold of {@link K8101Bitmap}.
+ *
+ * The image is scaled to fit 128x64, keeping its aspect ratio and centered on
+ * a light background (transparent pixels are light as well), converted to
+ * luma, then reduced to 1 bit per pixel with the chosen method. The scratch
+ * buffers are per thread, so that frames can be converted in parallel.
+ *
+ * @author seb
+ */
+public final class K8101Dither {
+
+    public enum Method {
+        /* dark below 50%, as K8101Bitmap */
+        threshold,
+        /* ordered 8x8 Bayer matrix: stable patterns, suits animations */
+        bayer,
+        /* Floyd-Steinberg error diffusion */
+        floydSteinberg,
+        /* Atkinson error diffusion: 3/4 of the error is diffused, more
+           contrast and clean highlights */
+        atkinson
+    }
+
+    private static final int WIDTH = FrameBuffer.WIDTH;
+    private static final int HEIGHT = FrameBuffer.HEIGHT;
+    private static final int STRIDE = WIDTH / 8;
+
+    private static final int[] BAYER = {
+        0, 32, 8, 40, 2, 34, 10, 42,
+        48, 16, 56, 24, 50, 18, 58, 26,
+        12, 44, 4, 36, 14, 46, 6, 38,
+        60, 28, 52, 20, 62, 30, 54, 22,
+        3, 35, 11, 43, 1, 33, 9, 41,
+        51, 19, 59, 27, 49, 17, 57, 25,
+        15, 47, 7, 39, 13, 45, 5, 37,
+        63, 31, 55, 23, 61, 29, 53, 21
+    };
+
+    private static final ThreadLocal<BufferedImage> scaledCache = ThreadLocal.withInitial(
+            () -> new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB));
+    private static final ThreadLocal<int[]> lumaCache = ThreadLocal.withInitial(() -> new int[WIDTH * HEIGHT]);
+    private static final ThreadLocal<byte[]> rowsCache = ThreadLocal.withInitial(() -> new byte[FrameBuffer.SIZE]);
+
+    private K8101Dither() {
+    }
+
+    /**
+     * Converts an image to a new bitmap.
+     */
+    public static byte[] toBitmap(BufferedImage img, Method method) {
+        byte[] bitmap = new byte[FrameBuffer.SIZE];
+        pack(img, method, bitmap, 0);
+        return bitmap;
+    }
+
+    /**
+     * Writes the dithered bitmap of an image at dst[off .. off + 1023].
+     */
+    public static void pack(BufferedImage img, Method method, byte[] dst, int off) {
+        int[] luma = lumaCache.get();
+        luma(scale(img), luma);
+        byte[] rows = rowsCache.get();
+        Arrays.fill(rows, (byte) 0);
+        switch (method) {
+            case threshold:
+                threshold(luma, rows);
+                break;
+            case bayer:
+                bayer(luma, rows);
+                break;
+            case floydSteinberg:
+                floydSteinberg(luma, rows);
+                break;
+            case atkinson:
+                atkinson(luma, rows);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown method " + method);
+        }
+        K8101Bitmap.packRows(rows, dst, off);
+    }
+
+    /* fits the image in 128x64, halving large images first so that bilinear
+       filtering does not skip pixels */
+    private static BufferedImage scale(BufferedImage img) {
+        int w = img.getWidth();
+        int h = img.getHeight();
+        double ratio = Math.min((double) WIDTH / w, (double) HEIGHT / h);
+        int tw = Math.max(1, (int) Math.round(w * ratio));
+        int th = Math.max(1, (int) Math.round(h * ratio));
+        BufferedImage src = img;
+        while (w / 2 >= tw && h / 2 >= th) {
+            w /= 2;
+            h /= 2;
+            BufferedImage half = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+            draw(half, src, 0, 0, w, h, null);
+            src = half;
+        }
+        BufferedImage scaled = scaledCache.get();
+        draw(scaled, src, (WIDTH - tw) / 2, (HEIGHT - th) / 2, tw, th, Color.WHITE);
+        return scaled;
+    }
+
+    private static void draw(BufferedImage dst, BufferedImage src, int x, int y, int w, int h, Color background) {
+        Graphics2D g = dst.createGraphics();
+        try {
+            if (background != null) {
+                g.setColor(background);
+                g.fillRect(0, 0, dst.getWidth(), dst.getHeight());
+            }
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(src, x, y, w, h, null);
+        } finally {
+            g.dispose();
+        }
+    }
+
+    /* Rec. 601 luma of the sRGB components, 0 (black) to 255 */
+    private static void luma(BufferedImage scaled, int[] luma) {
+        scaled.getRGB(0, 0, WIDTH, HEIGHT, luma, 0, WIDTH);
+        for (int i = 0; i < luma.length; i++) {
+            int rgb = luma[i];
+            luma[i] = (((rgb >> 16) & 0xff) * 299 + ((rgb >> 8) & 0xff) * 587 + (rgb & 0xff) * 114) / 1000;
+        }
+    }
+
+    private static void dark(byte[] rows, int x, int y) {
+        rows[y * STRIDE + (x >> 3)] |= 0x80 >>> (x & 7);
+    }
+
+    private static void threshold(int[] luma, byte[] rows) {
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                if (luma[y * WIDTH + x] < 128) {
+                    dark(rows, x, y);
+                }
+            }
+        }
+    }
+
+    private static void bayer(int[] luma, byte[] rows) {
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                // thresholds spread over 2 .. 254
+                if (luma[y * WIDTH + x] < BAYER[(y & 7) * 8 + (x & 7)] * 4 + 2) {
+                    dark(rows, x, y);
+                }
+            }
+        }
+    }
+
+    /* serpentine scan, the error of a pixel is spread to the unvisited
+       neighbours: 7/16 ahead, 3/16, 5/16 and 1/16 on the next line */
+    private static void floydSteinberg(int[] luma, byte[] rows) {
+        for (int y = 0; y < HEIGHT; y++) {
+            boolean ltr = (y & 1) == 0;
+            int dir = ltr ? 1 : -1;
+            for (int n = 0; n < WIDTH; n++) {
+                int x = ltr ? n : WIDTH - 1 - n;
+                int old = luma[y * WIDTH + x];
+                int err = old < 128 ? old : old - 255;
+                if (old < 128) {
+                    dark(rows, x, y);
+                }
+                spread(luma, x + dir, y, err * 7 / 16);
+                spread(luma, x - dir, y + 1, err * 3 / 16);
+                spread(luma, x, y + 1, err * 5 / 16);
+                spread(luma, x + dir, y + 1, err / 16);
+            }
+        }
+    }
+
+    /* 1/8 of the error to six neighbours, the rest is lost */
+    private static void atkinson(int[] luma, byte[] rows) {
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int old = luma[y * WIDTH + x];
+                int err = (old < 128 ? old : old - 255) / 8;
+                if (old < 128) {
+                    dark(rows, x, y);
+                }
+                spread(luma, x + 1, y, err);
+                spread(luma, x + 2, y, err);
+                spread(luma, x - 1, y + 1, err);
+                spread(luma, x, y + 1, err);
+                spread(luma, x + 1, y + 1, err);
+                spread(luma, x, y + 2, err);
+            }
+        }
+    }
+
+    private static void spread(int[] luma, int x, int y, int err) {
+        if (x >= 0 && x < WIDTH && y < HEIGHT) {
+            luma[y * WIDTH + x] += err;
+        }
+    }
+}
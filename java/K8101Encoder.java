@@ -0,0 +1,247 @@
+
+package fr.seki.dashboard.usb;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import org.usb4java.BufferUtils;
+
+/**
+ * Encodes commands straight into direct buffers, without heap allocation.
+ *
+ * A command is: AA, lsb(size), msb(size), cmd, [data,] chk, 55
+ * thus size is 6 bytes + data (if any), and the checksum is
+ * SUM(size + command + params bytes, not including start and stop) modulo 256.
+ * Two quirks of the PIC program are reproduced: line and rectangle commands
+ * announce a size 6 bytes too big, and text and bitmap data are followed by an
+ * extra 0 not counted in the size.
+ *
+ * The static methods append a command at the position of any buffer. An
+ * instance owns a direct buffer, it is either confined to the calling thread
+ * ({@link #local()}) or pooled by the async queue. Since libusb transfers the
+ * whole capacity of the buffer it is given, an instance also caches one view
+ * per frame length, so that after warm-up sending needs no allocation at all.
+ *
+ * @author seb
+ */
+final class K8101Encoder {
+
+    static final int BITMAP_SIZE = 1024;
+    static final int MAX_FRAME = 6 + BITMAP_SIZE + 1;
+
+    private static final ThreadLocal<K8101Encoder> local = ThreadLocal.withInitial(K8101Encoder::new);
+    private static final ThreadLocal<byte[]> pixels = ThreadLocal.withInitial(() -> new byte[BITMAP_SIZE]);
+
+    private ByteBuffer buf;
+    private ByteBuffer[] views;
+
+    K8101Encoder() {
+        allocate(MAX_FRAME);
+    }
+
+    private void allocate(int capacity) {
+        buf = BufferUtils.allocateByteBuffer(capacity);
+        views = new ByteBuffer[capacity + 1];
+    }
+
+    /**
+     * @return the encoder of the calling thread
+     */
+    static K8101Encoder local() {
+        return local.get();
+    }
+
+    /**
+     * Empties the buffer, making sure it can hold length bytes.
+     */
+    ByteBuffer start(int length) {
+        if (length > buf.capacity()) {
+            allocate(length);
+        }
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * @return the bytes written since {@link #start(int)}, as a buffer of the
+     * exact capacity, positioned at 0
+     */
+    ByteBuffer frame() {
+        int length = buf.position();
+        ByteBuffer view = views[length];
+        if (view == null) {
+            view = buf.slice(0, length);
+            views[length] = view;
+        }
+        view.clear();
+        return view;
+    }
+
+    /**
+     * Copies the remaining bytes of frames.
+     */
+    ByteBuffer copyOf(ByteBuffer frames) {
+        start(frames.remaining()).put(frames.duplicate());
+        return frame();
+    }
+
+    ByteBuffer encode(K8101.Command cmd) {
+        put(start(6), cmd);
+        return frame();
+    }
+
+    ByteBuffer encode(K8101.Command cmd, int a) {
+        put(start(7), cmd, a);
+        return frame();
+    }
+
+    ByteBuffer encode(K8101.Command cmd, int a, int b) {
+        put(start(8), cmd, a, b);
+        return frame();
+    }
+
+    ByteBuffer encode(K8101.Command cmd, int a, int b, int c, int d) {
+        put(start(10), cmd, a, b, c, d);
+        return frame();
+    }
+
+    /**
+     * Encodes the four lines of the outline of a rectangle.
+     *
+     * @param line drawline or eraseline
+     */
+    ByteBuffer encodeOutline(K8101.Command line, int x, int y, int width, int height) {
+        ByteBuffer dst = start(40);
+        put(dst, line, x, y, x + width, y);
+        put(dst, line, x + width, y, x + width, y + height);
+        put(dst, line, x + width, y + height, x, y + height);
+        put(dst, line, x, y + height, x, y);
+        return frame();
+    }
+
+    ByteBuffer encodeText(CharSequence txt, int x, int y, int width, K8101.TextSize size) {
+        putText(start(textLength(txt)), txt, x, y, width, size);
+        return frame();
+    }
+
+    ByteBuffer encodeBitmap(byte[] bitmap) {
+        putBitmap(start(MAX_FRAME), bitmap);
+        return frame();
+    }
+
+    ByteBuffer encodeBitmap(BufferedImage img) {
+        putBitmap(start(MAX_FRAME), img);
+        return frame();
+    }
+
+    ByteBuffer encodeBitmap(int[] argb, int width, int height) {
+        byte[] bitmap = pixels.get();
+        K8101Bitmap.pack(argb, width, height, bitmap, 0);
+        return encodeBitmap(bitmap);
+    }
+
+    static int textLength(CharSequence txt) {
+        return 6 + 3 + txt.length() + 1;
+    }
+
+    /**
+     * @return the length of the command starting at index pos, from its
+     * header
+     */
+    static int frameLength(ByteBuffer frames, int pos) {
+        return frameLength((frames.get(pos + 1) & 0xff) | (frames.get(pos + 2) & 0xff) << 8, frames.get(pos + 3));
+    }
+
+    /* undoes the size quirks of the firmware */
+    static int frameLength(int size, byte cmd) {
+        switch (cmd) {
+            case 7: // drawrect
+            case 8: // eraserect
+            case 18: // drawline
+            case 19: // eraseline
+                return size - 6;
+            case 1: // bitmap
+            case 4: // bigtext
+            case 5: // smalltext
+                return size + 1;
+            default:
+                return size;
+        }
+    }
+
+    /* writes start, size and command, returns the sum of size and command */
+    private static int header(ByteBuffer dst, K8101.Command cmd, int args) {
+        int size = 6 + args;
+        int lsb = size & 0xff;
+        switch (cmd) {
+            case drawline:
+            case eraseline:
+            case drawrect:
+            case eraserect:
+                lsb = (lsb + 6) & 0xff; // bug in PIC?
+                break;
+            default:
+        }
+        int msb = size >> 8 & 0xff;
+        dst.put((byte) 0xAA).put((byte) lsb).put((byte) msb).put((byte) cmd.getCode());
+        return lsb + msb + cmd.getCode();
+    }
+
+    private static void trailer(ByteBuffer dst, int sum) {
+        dst.put((byte) sum).put((byte) 0x55);
+    }
+
+    static void put(ByteBuffer dst, K8101.Command cmd) {
+        trailer(dst, header(dst, cmd, 0));
+    }
+
+    static void put(ByteBuffer dst, K8101.Command cmd, int a) {
+        int sum = header(dst, cmd, 1);
+        dst.put((byte) a);
+        trailer(dst, sum + a);
+    }
+
+    static void put(ByteBuffer dst, K8101.Command cmd, int a, int b) {
+        int sum = header(dst, cmd, 2);
+        dst.put((byte) a).put((byte) b);
+        trailer(dst, sum + a + b);
+    }
+
+    static void put(ByteBuffer dst, K8101.Command cmd, int a, int b, int c, int d) {
+        int sum = header(dst, cmd, 4);
+        dst.put((byte) a).put((byte) b).put((byte) c).put((byte) d);
+        trailer(dst, sum + a + b + c + d);
+    }
+
+    static void putText(ByteBuffer dst, CharSequence txt, int x, int y, int width, K8101.TextSize size) {
+        K8101.Command cmd = size == K8101.TextSize.big ? K8101.Command.bigtext : K8101.Command.smalltext;
+        int sum = header(dst, cmd, 3 + txt.length());
+        dst.put((byte) x).put((byte) y).put((byte) width);
+        sum += x + y + width;
+        for (int i = 0; i < txt.length(); i++) {
+            byte c = (byte) txt.charAt(i);
+            dst.put(c);
+            sum += c;
+        }
+        dst.put((byte) 0); //possible off-by-one in device fw
+        trailer(dst, sum);
+    }
+
+    static void putBitmap(ByteBuffer dst, byte[] bitmap) {
+        if (bitmap.length != BITMAP_SIZE) {
+            throw new IllegalArgumentException("bitmap must be " + BITMAP_SIZE + " bytes");
+        }
+        int sum = header(dst, K8101.Command.bitmap, BITMAP_SIZE);
+        for (byte b : bitmap) {
+            sum += b;
+        }
+        dst.put(bitmap);
+        dst.put((byte) 0); //extra byte needed by µcontroller of k8101
+        trailer(dst, sum);
+    }
+
+    static void putBitmap(ByteBuffer dst, BufferedImage img) {
+        byte[] bitmap = pixels.get();
+        K8101Bitmap.pack(img, bitmap, 0);
+        putBitmap(dst, bitmap);
+    }
+}
@@ -0,0 +1,240 @@
+
+package fr.seki.dashboard.usb;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+
+/**
+ * Flow control of one display: measures how fast the board takes the
+ * commands, paces the writes and retries the transfers that timed out.
+ *
+ * The service time of a transfer runs from its start, or from the end of the
+ * previous transfer when it waited behind it, to its end. It gives a moving
+ * average of the time per byte across the link, and of the time per command
+ * of each type, a batch being shared between its commands by their length.
+ *
+ * Writes are not paced while transfers succeed: USB holds them until the PIC
+ * takes them. A timeout means the board fell behind, the pace drops to half
+ * of the measured rate, then rises by a sixteenth of it every 16 successful
+ * transfers, until writes are not paced anymore. A maximum rate can be set
+ * for links that do not hold the writes, e.g. a tty.
+ *
+ * A transfer that timed out is written again, up to 3 times, after 10, 20
+ * then 40 ms, unless it holds a beep. The transport moves the buffer past
+ * the bytes the board took before the timeout, the retry sends the rest: a
+ * frame is never received twice, nor started again in the middle of itself.
+ *
+ * @author seb
+ */
+final class K8101FlowControl {
+
+    static final int RETRIES = 3;
+    private static final long BACKOFF_MILLIS = 10;
+    private static final double WEIGHT = 0.125;
+    private static final int PROBE = 16;
+    /* 9600 bauds, the rate assumed when a timeout comes before any measure */
+    private static final double MIN_RATE = 960;
+
+    private static final ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "K8101-retry");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /* moving averages by command code, index 0 for the unknown ones */
+    private final double[] nanosPerCommand = new double[32];
+    private final int[] count = new int[32];
+    private final int[] length = new int[32];
+    private double nanosPerByte;
+    private long lastEnd;
+    private double pace; // bytes per second, 0 when not paced
+    private double maxRate;
+    private long nextFree;
+    private int successes;
+
+    /**
+     * Waits until the given number of bytes may be written at the current
+     * pace.
+     */
+    void pace(int bytes) {
+        long wait;
+        synchronized (this) {
+            double rate = rate();
+            if (rate <= 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            long start = Math.max(now, nextFree);
+            nextFree = start + (long) (bytes * 1e9 / rate);
+            wait = start - now;
+        }
+        if (wait > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    private double rate() {
+        if (pace > 0 && maxRate > 0) {
+            return Math.min(pace, maxRate);
+        }
+        return pace > 0 ? pace : maxRate;
+    }
+
+    /**
+     * Records the end of a transfer started at the given System.nanoTime()
+     * and adapts the pace. The buffer is not modified.
+     *
+     * @param failure null on success
+     */
+    synchronized void completed(ByteBuffer frames, long startNanos, Throwable failure) {
+        long end = System.nanoTime();
+        if (failure != null) {
+            if (isTimeout(failure)) {
+                double measured = nanosPerByte > 0 ? 1e9 / nanosPerByte : MIN_RATE;
+                double current = pace > 0 ? Math.min(pace, measured) : measured;
+                pace = Math.max(MIN_RATE / 2, current / 2);
+                successes = 0;
+            }
+            lastEnd = end;
+            return;
+        }
+        long service = end - Math.max(startNanos, lastEnd);
+        lastEnd = end;
+        int total = tally(frames);
+        if (total == 0 || service <= 0) {
+            return;
+        }
+        nanosPerByte = average(nanosPerByte, (double) service / total);
+        for (int i = 0; i < count.length; i++) {
+            if (count[i] != 0) {
+                nanosPerCommand[i] = average(nanosPerCommand[i], (double) service * length[i] / total / count[i]);
+            }
+        }
+        if (pace > 0 && ++successes >= PROBE) {
+            successes = 0;
+            double measured = 1e9 / nanosPerByte;
+            pace += measured / PROBE;
+            if (pace >= 2 * measured) {
+                pace = 0;
+            }
+        }
+    }
+
+    private static double average(double avg, double sample) {
+        return avg == 0 ? sample : avg + WEIGHT * (sample - avg);
+    }
+
+    /* counts the commands and bytes of each type, returns the total length */
+    private int tally(ByteBuffer frames) {
+        Arrays.fill(count, 0);
+        Arrays.fill(length, 0);
+        int limit = frames.limit();
+        int pos = frames.position();
+        // a retry may start in the middle of a frame, it is not measured
+        while (pos + 4 <= limit && frames.get(pos) == (byte) 0xAA) {
+            int n = K8101Encoder.frameLength(frames, pos);
+            if (n < 6) {
+                break;
+            }
+            int code = frames.get(pos + 3) & 0xff;
+            if (code >= count.length) {
+                code = 0;
+            }
+            count[code]++;
+            length[code] += Math.min(n, limit - pos);
+            pos += n;
+        }
+        return pos - frames.position();
+    }
+
+    /**
+     * @param from offset of the first frame of the transfer, the position may
+     * have moved past the part the board took
+     * @return true if a transfer that failed this way may be written again
+     */
+    static boolean retry(ByteBuffer frames, int from, Throwable failure, int attempt) {
+        if (attempt >= RETRIES || !isTimeout(failure)) {
+            return false;
+        }
+        int limit = frames.limit();
+        int pos = from;
+        while (pos + 4 <= limit) {
+            int n = K8101Encoder.frameLength(frames, pos);
+            if (n < 6) {
+                break;
+            }
+            if (frames.get(pos + 3) == 6) { // beep
+                return false;
+            }
+            pos += n;
+        }
+        return true;
+    }
+
+    static long backoffMillis(int attempt) {
+        return BACKOFF_MILLIS << attempt;
+    }
+
+    /**
+     * Runs a retry after the backoff of the given attempt.
+     */
+    static void later(Runnable retry, int attempt) {
+        retries.schedule(retry, backoffMillis(attempt), TimeUnit.MILLISECONDS);
+    }
+
+    private static boolean isTimeout(Throwable failure) {
+        if (failure instanceof CompletionException && failure.getCause() != null) {
+            failure = failure.getCause();
+        }
+        return failure instanceof LibUsbException && ((LibUsbException) failure).getErrorCode() == LibUsb.ERROR_TIMEOUT;
+    }
+
+    /**
+     * @return the measured throughput of the link in bytes per second, 0
+     * before the first transfer
+     */
+    synchronized double bytesPerSecond() {
+        return nanosPerByte > 0 ? 1e9 / nanosPerByte : 0;
+    }
+
+    /**
+     * @return the measured throughput of a type of command in commands per
+     * second, 0 when none was sent
+     */
+    synchronized double commandsPerSecond(int code) {
+        return nanosPerCommand[code] > 0 ? 1e9 / nanosPerCommand[code] : 0;
+    }
+
+    /**
+     * @return the pace of the writes in bytes per second, 0 when they are not
+     * paced
+     */
+    synchronized double pace() {
+        return rate();
+    }
+
+    synchronized double getMaxRate() {
+        return maxRate;
+    }
+
+    synchronized void setMaxRate(double bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("the rate must not be negative");
+        }
+        maxRate = bytesPerSecond;
+    }
+
+    synchronized void reset() {
+        Arrays.fill(nanosPerCommand, 0);
+        nanosPerByte = 0;
+        pace = 0;
+        successes = 0;
+    }
+}
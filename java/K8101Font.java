@@ -0,0 +1,215 @@
+
+package fr.seki.dashboard.usb;
+
+/**
+ * The two fonts of the display (see README): big text in 6x8 cells with 5x7
+ * glyphs, small text in 4x8 cells with 3x6 glyphs, for the printable ASCII
+ * characters.
+ *
+ * Cell sizes, and so text layout, match the firmware. The glyphs are a
+ * faithful look-alike of the LCD ones, not a dump of the PIC memory: they are
+ * good for previews and emulation, but not for pixel exact comparison of text
+ * with a real board.
+ *
+ * @author seb
+ */
+public final class K8101Font {
+
+    private static final char FIRST = ' ';
+    private static final char LAST = '~';
+
+    /* 5 column bytes per glyph, LSB on top, from ' ' to '~' */
+    private static final int[] BIG_GLYPHS = {
+        0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x5F, 0x00, 0x00, // ' ' !
+        0x00, 0x07, 0x00, 0x07, 0x00, 0x14, 0x7F, 0x14, 0x7F, 0x14, // " #
+        0x24, 0x2A, 0x7F, 0x2A, 0x12, 0x23, 0x13, 0x08, 0x64, 0x62, // $ %
+        0x36, 0x49, 0x55, 0x22, 0x50, 0x00, 0x05, 0x03, 0x00, 0x00, // & '
+        0x00, 0x1C, 0x22, 0x41, 0x00, 0x00, 0x41, 0x22, 0x1C, 0x00, // ( )
+        0x14, 0x08, 0x3E, 0x08, 0x14, 0x08, 0x08, 0x3E, 0x08, 0x08, // * +
+        0x00, 0x50, 0x30, 0x00, 0x00, 0x08, 0x08, 0x08, 0x08, 0x08, // , -
+        0x00, 0x60, 0x60, 0x00, 0x00, 0x20, 0x10, 0x08, 0x04, 0x02, // . /
+        0x3E, 0x51, 0x49, 0x45, 0x3E, 0x00, 0x42, 0x7F, 0x40, 0x00, // 0 1
+        0x42, 0x61, 0x51, 0x49, 0x46, 0x21, 0x41, 0x45, 0x4B, 0x31, // 2 3
+        0x18, 0x14, 0x12, 0x7F, 0x10, 0x27, 0x45, 0x45, 0x45, 0x39, // 4 5
+        0x3C, 0x4A, 0x49, 0x49, 0x30, 0x01, 0x71, 0x09, 0x05, 0x03, // 6 7
+        0x36, 0x49, 0x49, 0x49, 0x36, 0x06, 0x49, 0x49, 0x29, 0x1E, // 8 9
+        0x00, 0x36, 0x36, 0x00, 0x00, 0x00, 0x56, 0x36, 0x00, 0x00, // : ;
+        0x08, 0x14, 0x22, 0x41, 0x00, 0x14, 0x14, 0x14, 0x14, 0x14, // < =
+        0x00, 0x41, 0x22, 0x14, 0x08, 0x02, 0x01, 0x51, 0x09, 0x06, // > ?
+        0x32, 0x49, 0x79, 0x41, 0x3E, 0x7E, 0x11, 0x11, 0x11, 0x7E, // @ A
+        0x7F, 0x49, 0x49, 0x49, 0x36, 0x3E, 0x41, 0x41, 0x41, 0x22, // B C
+        0x7F, 0x41, 0x41, 0x22, 0x1C, 0x7F, 0x49, 0x49, 0x49, 0x41, // D E
+        0x7F, 0x09, 0x09, 0x09, 0x01, 0x3E, 0x41, 0x49, 0x49, 0x7A, // F G
+        0x7F, 0x08, 0x08, 0x08, 0x7F, 0x00, 0x41, 0x7F, 0x41, 0x00, // H I
+        0x20, 0x40, 0x41, 0x3F, 0x01, 0x7F, 0x08, 0x14, 0x22, 0x41, // J K
+        0x7F, 0x40, 0x40, 0x40, 0x40, 0x7F, 0x02, 0x0C, 0x02, 0x7F, // L M
+        0x7F, 0x04, 0x08, 0x10, 0x7F, 0x3E, 0x41, 0x41, 0x41, 0x3E, // N O
+        0x7F, 0x09, 0x09, 0x09, 0x06, 0x3E, 0x41, 0x51, 0x21, 0x5E, // P Q
+        0x7F, 0x09, 0x19, 0x29, 0x46, 0x46, 0x49, 0x49, 0x49, 0x31, // R S
+        0x01, 0x01, 0x7F, 0x01, 0x01, 0x3F, 0x40, 0x40, 0x40, 0x3F, // T U
+        0x1F, 0x20, 0x40, 0x20, 0x1F, 0x3F, 0x40, 0x38, 0x40, 0x3F, // V W
+        0x63, 0x14, 0x08, 0x14, 0x63, 0x07, 0x08, 0x70, 0x08, 0x07, // X Y
+        0x61, 0x51, 0x49, 0x45, 0x43, 0x00, 0x7F, 0x41, 0x41, 0x00, // Z [
+        0x02, 0x04, 0x08, 0x10, 0x20, 0x00, 0x41, 0x41, 0x7F, 0x00, // \ ]
+        0x04, 0x02, 0x01, 0x02, 0x04, 0x40, 0x40, 0x40, 0x40, 0x40, // ^ _
+        0x00, 0x01, 0x02, 0x04, 0x00, 0x20, 0x54, 0x54, 0x54, 0x78, // ` a
+        0x7F, 0x48, 0x44, 0x44, 0x38, 0x38, 0x44, 0x44, 0x44, 0x20, // b c
+        0x38, 0x44, 0x44, 0x48, 0x7F, 0x38, 0x54, 0x54, 0x54, 0x18, // d e
+        0x08, 0x7E, 0x09, 0x01, 0x02, 0x0C, 0x52, 0x52, 0x52, 0x3E, // f g
+        0x7F, 0x08, 0x04, 0x04, 0x78, 0x00, 0x44, 0x7D, 0x40, 0x00, // h i
+        0x20, 0x40, 0x44, 0x3D, 0x00, 0x7F, 0x10, 0x28, 0x44, 0x00, // j k
+        0x00, 0x41, 0x7F, 0x40, 0x00, 0x7C, 0x04, 0x18, 0x04, 0x78, // l m
+        0x7C, 0x08, 0x04, 0x04, 0x78, 0x38, 0x44, 0x44, 0x44, 0x38, // n o
+        0x7C, 0x14, 0x14, 0x14, 0x08, 0x08, 0x14, 0x14, 0x18, 0x7C, // p q
+        0x7C, 0x08, 0x04, 0x04, 0x08, 0x48, 0x54, 0x54, 0x54, 0x20, // r s
+        0x04, 0x3F, 0x44, 0x40, 0x20, 0x3C, 0x40, 0x40, 0x20, 0x7C, // t u
+        0x1C, 0x20, 0x40, 0x20, 0x1C, 0x3C, 0x40, 0x30, 0x40, 0x3C, // v w
+        0x44, 0x28, 0x10, 0x28, 0x44, 0x0C, 0x50, 0x50, 0x50, 0x3C, // x y
+        0x44, 0x64, 0x54, 0x4C, 0x44, 0x00, 0x08, 0x36, 0x41, 0x00, // z {
+        0x00, 0x00, 0x7F, 0x00, 0x00, 0x00, 0x41, 0x36, 0x08, 0x00, // | }
+        0x08, 0x04, 0x08, 0x10, 0x08 //                               ~
+    };
+
+    /* rows of 3 pixels, top first, from ' ' to '~' */
+    private static final String[] SMALL_GLYPHS = {
+        "... ... ... ... ...", ".#. .#. .#. ... .#.", "#.# #.# ... ... ...", "#.# ### #.# ### #.#",
+        ".## ##. .#. .## ##.", "#.. ..# .#. #.. ..#", "##. ##. ### #.# .##", ".#. .#. ... ... ...",
+        "..# .#. .#. .#. ..#", "#.. .#. .#. .#. #..", "#.# .#. #.# ... ...", "... .#. ### .#. ...",
+        "... ... ... .#. #..", "... ... ### ... ...", "... ... ... ... .#.", "..# ..# .#. #.. #..",
+        "### #.# #.# #.# ###", ".#. ##. .#. .#. ###", "##. ..# .#. #.. ###", "##. ..# .#. ..# ##.",
+        "#.# #.# ### ..# ..#", "### #.. ##. ..# ##.", ".## #.. ### #.# ###", "### ..# .#. #.. #..",
+        "### #.# ### #.# ###", "### #.# ### ..# ##.", "... .#. ... .#. ...", "... .#. ... .#. #..",
+        "..# .#. #.. .#. ..#", "... ### ... ### ...", "#.. .#. ..# .#. #..", "### ..# .#. ... .#.",
+        ".#. #.# #.# #.. .##", ".#. #.# ### #.# #.#", "##. #.# ##. #.# ##.", ".## #.. #.. #.. .##",
+        "##. #.# #.# #.# ##.", "### #.. ### #.. ###", "### #.. ### #.. #..", ".## #.. #.# #.# .##",
+        "#.# #.# ### #.# #.#", "### .#. .#. .#. ###", "..# ..# ..# #.# .#.", "#.# #.# ##. #.# #.#",
+        "#.. #.. #.. #.. ###", "#.# ### ### #.# #.#", "#.# ### ### ### #.#", ".#. #.# #.# #.# .#.",
+        "##. #.# ##. #.. #..", ".#. #.# #.# ### .##", "##. #.# ### ##. #.#", ".## #.. .#. ..# ##.",
+        "### .#. .#. .#. .#.", "#.# #.# #.# #.# .##", "#.# #.# #.# .#. .#.", "#.# #.# ### ### #.#",
+        "#.# #.# .#. #.# #.#", "#.# #.# .#. .#. .#.", "### ..# .#. #.. ###", "### #.. #.. #.. ###",
+        "#.. #.. .#. ..# ..#", "### ..# ..# ..# ###", ".#. #.# ... ... ...", "... ... ... ... ###",
+        "#.. .#. ... ... ...", "... .## #.# #.# .##", "#.. ##. #.# #.# ##.", "... .## #.. #.. .##",
+        "..# .## #.# #.# .##", "... .#. ### #.. .##", "..# .#. ### .#. .#.", "... .## #.# .## ..# ##.",
+        "#.. ##. #.# #.# #.#", ".#. ... .#. .#. .#.", "..# ... ..# ..# #.# .#.", "#.. #.# ##. ##. #.#",
+        "##. .#. .#. .#. ###", "... ### ### ### #.#", "... ##. #.# #.# #.#", "... .#. #.# #.# .#.",
+        "... ##. #.# #.# ##. #..", "... .## #.# #.# .## ..#", "... .## #.. #.. #..", "... .## ##. ..# ##.",
+        ".#. ### .#. .#. ..#", "... #.# #.# #.# .##", "... #.# #.# .#. .#.", "... #.# ### ### ###",
+        "... #.# .#. .#. #.#", "... #.# #.# .## ..# ##.", "... ### .## ##. ###", ".## .#. ##. .#. .##",
+        ".#. .#. .#. .#. .#.", "##. .#. .## .#. ##.", "... .## ##. ... ..."
+    };
+
+    public static final K8101Font BIG = new K8101Font(6, columns(BIG_GLYPHS), 5);
+    public static final K8101Font SMALL = new K8101Font(4, columns(SMALL_GLYPHS), 3);
+
+    private final int advance;
+    private final byte[] glyphs;
+    private final int glyphWidth;
+
+    private K8101Font(int advance, byte[] glyphs, int glyphWidth) {
+        this.advance = advance;
+        this.glyphs = glyphs;
+        this.glyphWidth = glyphWidth;
+    }
+
+    public static K8101Font of(K8101.TextSize size) {
+        return size == K8101.TextSize.big ? BIG : SMALL;
+    }
+
+    private static byte[] columns(int[] table) {
+        byte[] glyphs = new byte[table.length];
+        for (int i = 0; i < table.length; i++) {
+            glyphs[i] = (byte) table[i];
+        }
+        return glyphs;
+    }
+
+    private static byte[] columns(String[] rows) {
+        byte[] glyphs = new byte[rows.length * 3];
+        for (int c = 0; c < rows.length; c++) {
+            String[] lines = rows[c].split(" ");
+            for (int y = 0; y < lines.length; y++) {
+                for (int x = 0; x < 3; x++) {
+                    if (lines[y].charAt(x) == '#') {
+                        glyphs[c * 3 + x] |= 1 << y;
+                    }
+                }
+            }
+        }
+        return glyphs;
+    }
+
+    /**
+     * @return the width of a character cell
+     */
+    public int getAdvance() {
+        return advance;
+    }
+
+    public int getHeight() {
+        return 8;
+    }
+
+    public int textWidth(CharSequence txt) {
+        return txt.length() * advance;
+    }
+
+    /**
+     * @return column i of the cell of c, LSB on top, characters out of the
+     * font are drawn as '?'
+     */
+    public int column(char c, int i) {
+        if (i < 0 || i >= glyphWidth) {
+            return 0;
+        }
+        if (c < FIRST || c > LAST) {
+            c = '?';
+        }
+        return glyphs[(c - FIRST) * glyphWidth + i] & 0xff;
+    }
+
+    /**
+     * Draws the cell of a character, background included, with its top left
+     * corner at (x, y).
+     */
+    public void drawChar(FrameBuffer fb, char c, int x, int y) {
+        for (int i = 0; i < advance; i++) {
+            int col = column(c, i);
+            for (int j = 0; j < 8; j++) {
+                fb.setPixel(x + i, y + j, (col & 1 << j) != 0);
+            }
+        }
+    }
+
+    /**
+     * Draws text the way the firmware does: from (x, y), going to the next
+     * line (8 pixels below, back to x) before a word that would end beyond
+     * x + maxWidth. A word longer than maxWidth is not cut.
+     *
+     * @return the y of the last line
+     */
+    public int drawText(FrameBuffer fb, CharSequence txt, int x, int y, int maxWidth) {
+        int cx = x;
+        int cy = y;
+        int i = 0;
+        while (i < txt.length()) {
+            int end = i;
+            while (end < txt.length() && txt.charAt(end) != ' ') {
+                end++;
+            }
+            if (end > i && cx > x && cx + (end - i) * advance > x + maxWidth) {
+                cx = x;
+                cy += getHeight();
+            }
+            for (; i < end; i++, cx += advance) {
+                drawChar(fb, txt.charAt(i), cx, cy);
+            }
+            if (i < txt.length()) {
+                // the space
+                drawChar(fb, ' ', cx, cy);
+                cx += advance;
+                i++;
+            }
+        }
+        return cy;
+    }
+}
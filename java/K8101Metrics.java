@@ -0,0 +1,701 @@
+
+package fr.seki.dashboard.usb;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+
+/**
+ * Counters of one display: commands and bytes per command type, transfer
+ * latency, queue depth, failures by libusb error, hotplug events, state
+ * replays and the time of the last successful transfer. The throughput
+ * measured by the flow control, of the link and by command type, is shown
+ * with them.
+ *
+ * Counting costs a few increments per transfer. The counters are read with
+ * {@link #snapshot()} or through JMX, where each display opened by id is
+ * registered as {@code fr.seki.dashboard.usb:type=K8101Display,id="..."}.
+ *
+ * A panel that silently stops updating shows as a growing
+ * {@link #getMillisSinceLastSuccess()}, and as {@link #isStale()} once a
+ * threshold is set. The first failure of a series and the recovery are
+ * logged, not each failed transfer.
+ *
+ * The wire trace logs one transfer out of {@link #setTraceSampling(int)} in
+ * hex on the logger of this class. It is off by default, it then costs a
+ * volatile read and no allocation.
+ *
+ * @author seb
+ */
+public final class K8101Metrics implements K8101MetricsMXBean {
+
+    private static final Logger logger = Logger.getLogger(K8101Metrics.class.toString());
+
+    /* command names by code, index 0 counts the unknown ones */
+    private static final String[] NAMES = new String[32];
+    /* bucket i counts the transfers under 2^i µs, the last one the slower ones */
+    private static final int BUCKETS = 24;
+    /* libusb errors by opposite of code, ERROR_OTHER (-99) included */
+    private static final int ERRORS = 100;
+
+    static {
+        NAMES[0] = "unknown";
+        for (K8101.Command c : K8101.Command.values()) {
+            NAMES[c.getCode()] = c.name();
+        }
+    }
+
+    private final String id;
+    private final IntSupplier queueDepth;
+    private final K8101FlowControl flow;
+    private final LongAdder[] commands = adders(NAMES.length);
+    private final LongAdder[] bytes = adders(NAMES.length);
+    private final LongAdder transfers = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder arrivals = new LongAdder();
+    private final LongAdder departures = new LongAdder();
+    private final LongAdder recoveries = new LongAdder();
+    private final AtomicLongArray latency = new AtomicLongArray(BUCKETS);
+    private final AtomicLongArray usbErrors = new AtomicLongArray(ERRORS);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicLong traced = new AtomicLong();
+    private volatile long lastSuccess = System.currentTimeMillis();
+    private volatile String lastError;
+    private volatile long staleAfter;
+    private volatile int sampling;
+    private ObjectName name;
+
+    K8101Metrics(String id, IntSupplier queueDepth, K8101FlowControl flow) {
+        this.id = id;
+        this.queueDepth = queueDepth;
+        this.flow = flow;
+    }
+
+    private static LongAdder[] adders(int n) {
+        LongAdder[] a = new LongAdder[n];
+        for (int i = 0; i < n; i++) {
+            a[i] = new LongAdder();
+        }
+        return a;
+    }
+
+    /**
+     * Registers this as an MXBean of the platform MBean server.
+     */
+    synchronized void register() {
+        if (name != null) {
+            return;
+        }
+        try {
+            ObjectName on = new ObjectName("fr.seki.dashboard.usb:type=K8101Display,id=" + ObjectName.quote(id));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+            name = on;
+        } catch (JMException jme) {
+            logger.log(Level.FINE, id + ": metrics not registered", jme);
+        }
+    }
+
+    synchronized void unregister() {
+        if (name == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException jme) {
+            logger.log(Level.FINE, id + ": metrics not unregistered", jme);
+        }
+        name = null;
+    }
+
+    /**
+     * Counts the commands of a transfer about to be written, traces it if
+     * sampled and records it if a {@link K8101Capture} is running. The buffer
+     * is not modified.
+     */
+    void sent(ByteBuffer frames) {
+        int limit = frames.limit();
+        int pos = frames.position();
+        while (pos + 4 <= limit) {
+            int length = K8101Encoder.frameLength(frames, pos);
+            if (length < 6) {
+                break;
+            }
+            int code = frames.get(pos + 3) & 0xff;
+            if (code >= NAMES.length || NAMES[code] == null) {
+                code = 0;
+            }
+            commands[code].increment();
+            bytes[code].add(Math.min(length, limit - pos));
+            pos += length;
+        }
+        int every = sampling;
+        if (every > 0 && traced.getAndIncrement() % every == 0) {
+            logger.info(id + " > " + K8101.bytesToHex(frames));
+        }
+        K8101Capture.record(id, frames);
+    }
+
+    /**
+     * Records the end of a transfer started at the given System.nanoTime().
+     *
+     * @param failure null on success
+     */
+    void completed(long startNanos, Throwable failure) {
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        latency.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+        if (failure != null) {
+            failed(failure);
+            return;
+        }
+        transfers.increment();
+        lastSuccess = System.currentTimeMillis();
+        if (consecutiveFailures.get() != 0) {
+            int n = consecutiveFailures.getAndSet(0);
+            if (n > 0) {
+                logger.info(id + ": transfers resumed after " + n + " failures");
+            }
+        }
+    }
+
+    /**
+     * Records a failure that prevented a transfer, e.g. the device could not
+     * be opened.
+     */
+    void failed(Throwable failure) {
+        if (failure instanceof CompletionException && failure.getCause() != null) {
+            failure = failure.getCause();
+        }
+        failures.increment();
+        if (failure instanceof LibUsbException) {
+            int code = ((LibUsbException) failure).getErrorCode();
+            if (code < 0 && -code < ERRORS) {
+                usbErrors.incrementAndGet(-code);
+            }
+            if (code == LibUsb.ERROR_TIMEOUT) {
+                timeouts.increment();
+            }
+        }
+        lastError = failure.toString();
+        if (consecutiveFailures.incrementAndGet() == 1) {
+            logger.log(Level.WARNING, id + ": transfer failed, further failures are only counted", failure);
+        }
+    }
+
+    /* a transfer that timed out and is written again, not a failure yet */
+    void retried() {
+        timeouts.increment();
+        retries.increment();
+    }
+
+    /* a queued command cancelled or made useless before being written */
+    void dropped() {
+        dropped.increment();
+    }
+
+    void hotplug(boolean arrived) {
+        (arrived ? arrivals : departures).increment();
+    }
+
+    void recovered() {
+        recoveries.increment();
+    }
+
+    private static long sum(LongAdder[] adders) {
+        long total = 0;
+        for (LongAdder a : adders) {
+            total += a.sum();
+        }
+        return total;
+    }
+
+    private static Map<String, Long> byType(LongAdder[] adders) {
+        LinkedHashMap<String, Long> map = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < NAMES.length; i++) {
+            long n = adders[i].sum();
+            if (n != 0) {
+                map.put(NAMES[i], n);
+            }
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    private static long percentile(long[] histogram, double p) {
+        long total = 0;
+        for (long n : histogram) {
+            total += n;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * p);
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen >= rank) {
+                return 1L << i;
+            }
+        }
+        return 1L << (histogram.length - 1);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public long getCommands() {
+        return sum(commands);
+    }
+
+    @Override
+    public long getBytes() {
+        return sum(bytes);
+    }
+
+    @Override
+    public Map<String, Long> getCommandsByType() {
+        return byType(commands);
+    }
+
+    @Override
+    public Map<String, Long> getBytesByType() {
+        return byType(bytes);
+    }
+
+    /**
+     * @return the number of successful transfers
+     */
+    @Override
+    public long getTransfers() {
+        return transfers.sum();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    /**
+     * @return the measured throughput of the link
+     */
+    @Override
+    public double getBytesPerSecond() {
+        return flow.bytesPerSecond();
+    }
+
+    /**
+     * @return the measured throughput by command type, the bitmap entry is
+     * the achievable rate of full screen frames
+     */
+    @Override
+    public Map<String, Double> getCommandsPerSecondByType() {
+        LinkedHashMap<String, Double> map = new LinkedHashMap<String, Double>();
+        for (int i = 0; i < NAMES.length; i++) {
+            double n = NAMES[i] == null ? 0 : flow.commandsPerSecond(i);
+            if (n > 0) {
+                map.put(NAMES[i], n);
+            }
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * @return the pace of the writes in bytes per second, 0 when they are
+     * not paced
+     */
+    @Override
+    public double getPaceBytesPerSecond() {
+        return flow.pace();
+    }
+
+    @Override
+    public double getMaxBytesPerSecond() {
+        return flow.getMaxRate();
+    }
+
+    /**
+     * Caps the rate of the writes, 0 for no cap. Useful on links that do not
+     * hold the writes until the board takes them, e.g. a tty.
+     */
+    @Override
+    public void setMaxBytesPerSecond(double bytesPerSecond) {
+        flow.setMaxRate(bytesPerSecond);
+    }
+
+    /**
+     * @return the number of commands cancelled or coalesced away by the
+     * backpressure policy, or only kept in the replayed state while the
+     * link was down
+     */
+    @Override
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return the failures by libusb error name
+     */
+    @Override
+    public Map<String, Long> getUsbErrors() {
+        LinkedHashMap<String, Long> map = new LinkedHashMap<String, Long>();
+        for (int i = 1; i < ERRORS; i++) {
+            long n = usbErrors.get(i);
+            if (n != 0) {
+                map.put(LibUsb.errorName(-i), n);
+            }
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    @Override
+    public long getHotplugArrivals() {
+        return arrivals.sum();
+    }
+
+    @Override
+    public long getHotplugDepartures() {
+        return departures.sum();
+    }
+
+    /**
+     * @return the number of times the state was replayed to a reconnected
+     * board
+     */
+    @Override
+    public long getRecoveries() {
+        return recoveries.sum();
+    }
+
+    /**
+     * @return the number of commands waiting in the asynchronous queue
+     */
+    @Override
+    public int getQueueDepth() {
+        return queueDepth.getAsInt();
+    }
+
+    /**
+     * @return the transfer count per latency bucket: bucket i holds the
+     * transfers that took less than 2^i µs (and at least 2^(i-1)), the last
+     * bucket the slower ones
+     */
+    @Override
+    public long[] getLatencyHistogram() {
+        long[] h = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            h[i] = latency.get(i);
+        }
+        return h;
+    }
+
+    /**
+     * @return the upper bound of the bucket holding the given percentile
+     * (0 to 1) of the transfer latency, 0 before the first transfer
+     */
+    public long getLatencyMicros(double p) {
+        return percentile(getLatencyHistogram(), p);
+    }
+
+    @Override
+    public long getLatencyP50Micros() {
+        return getLatencyMicros(0.5);
+    }
+
+    @Override
+    public long getLatencyP99Micros() {
+        return getLatencyMicros(0.99);
+    }
+
+    /**
+     * @return the time since the last successful transfer, or since the
+     * creation of the display if none succeeded yet
+     */
+    @Override
+    public long getMillisSinceLastSuccess() {
+        return System.currentTimeMillis() - lastSuccess;
+    }
+
+    @Override
+    public int getConsecutiveFailures() {
+        return consecutiveFailures.get();
+    }
+
+    /**
+     * @return the description of the last failure, null if none
+     */
+    @Override
+    public String getLastError() {
+        return lastError;
+    }
+
+    @Override
+    public long getStaleAfterMillis() {
+        return staleAfter;
+    }
+
+    /**
+     * @param millis time without a successful transfer after which the
+     * display is reported stale, 0 to disable
+     */
+    @Override
+    public void setStaleAfterMillis(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("millis must not be negative");
+        }
+        staleAfter = millis;
+    }
+
+    @Override
+    public boolean isStale() {
+        long limit = staleAfter;
+        return limit > 0 && getMillisSinceLastSuccess() > limit;
+    }
+
+    @Override
+    public int getTraceSampling() {
+        return sampling;
+    }
+
+    /**
+     * @param sampling trace one transfer out of sampling, 1 for all, 0 to
+     * stop tracing
+     */
+    @Override
+    public void setTraceSampling(int sampling) {
+        if (sampling < 0) {
+            throw new IllegalArgumentException("sampling must not be negative");
+        }
+        traced.set(0);
+        this.sampling = sampling;
+    }
+
+    /**
+     * Zeroes the counters. The time of the last success is kept.
+     */
+    @Override
+    public void reset() {
+        flow.reset();
+        for (int i = 0; i < NAMES.length; i++) {
+            commands[i].reset();
+            bytes[i].reset();
+        }
+        LongAdder[] counters = {transfers, failures, timeouts, retries, dropped, arrivals, departures, recoveries};
+        for (LongAdder a : counters) {
+            a.reset();
+        }
+        for (int i = 0; i < BUCKETS; i++) {
+            latency.set(i, 0);
+        }
+        for (int i = 0; i < ERRORS; i++) {
+            usbErrors.set(i, 0);
+        }
+        consecutiveFailures.set(0);
+        lastError = null;
+    }
+
+    /**
+     * @return a copy of the current values
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+
+    /**
+     * The values of the metrics at a given time. Counters updated
+     * concurrently may be off by the transfers in progress.
+     */
+    public static final class Snapshot {
+
+        private final String id;
+        private final long time;
+        private final Map<String, Long> commandsByType;
+        private final Map<String, Long> bytesByType;
+        private final long commands;
+        private final long bytes;
+        private final long transfers;
+        private final long failures;
+        private final long timeouts;
+        private final long retries;
+        private final long dropped;
+        private final Map<String, Long> usbErrors;
+        private final long hotplugArrivals;
+        private final long hotplugDepartures;
+        private final long recoveries;
+        private final int queueDepth;
+        private final long[] latencyHistogram;
+        private final long millisSinceLastSuccess;
+        private final int consecutiveFailures;
+        private final String lastError;
+        private final boolean stale;
+
+        private Snapshot(K8101Metrics m) {
+            id = m.id;
+            time = System.currentTimeMillis();
+            commandsByType = m.getCommandsByType();
+            bytesByType = m.getBytesByType();
+            commands = sum(commandsByType);
+            bytes = sum(bytesByType);
+            transfers = m.getTransfers();
+            failures = m.getFailures();
+            timeouts = m.getTimeouts();
+            retries = m.getRetries();
+            dropped = m.getDropped();
+            usbErrors = m.getUsbErrors();
+            hotplugArrivals = m.getHotplugArrivals();
+            hotplugDepartures = m.getHotplugDepartures();
+            recoveries = m.getRecoveries();
+            queueDepth = m.getQueueDepth();
+            latencyHistogram = m.getLatencyHistogram();
+            millisSinceLastSuccess = m.getMillisSinceLastSuccess();
+            consecutiveFailures = m.getConsecutiveFailures();
+            lastError = m.getLastError();
+            stale = m.isStale();
+        }
+
+        private static long sum(Map<String, Long> map) {
+            long total = 0;
+            for (long n : map.values()) {
+                total += n;
+            }
+            return total;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @return when the snapshot was taken, in System.currentTimeMillis()
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public Map<String, Long> getCommandsByType() {
+            return commandsByType;
+        }
+
+        public Map<String, Long> getBytesByType() {
+            return bytesByType;
+        }
+
+        public long getCommands() {
+            return commands;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getTransfers() {
+            return transfers;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public long getTimeouts() {
+            return timeouts;
+        }
+
+        public long getRetries() {
+            return retries;
+        }
+
+        public long getDropped() {
+            return dropped;
+        }
+
+        public Map<String, Long> getUsbErrors() {
+            return usbErrors;
+        }
+
+        public long getHotplugArrivals() {
+            return hotplugArrivals;
+        }
+
+        public long getHotplugDepartures() {
+            return hotplugDepartures;
+        }
+
+        public long getRecoveries() {
+            return recoveries;
+        }
+
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        /**
+         * @see K8101Metrics#getLatencyHistogram()
+         */
+        public long[] getLatencyHistogram() {
+            return latencyHistogram.clone();
+        }
+
+        /**
+         * @see K8101Metrics#getLatencyMicros(double)
+         */
+        public long getLatencyMicros(double p) {
+            return percentile(latencyHistogram, p);
+        }
+
+        public long getMillisSinceLastSuccess() {
+            return millisSinceLastSuccess;
+        }
+
+        public int getConsecutiveFailures() {
+            return consecutiveFailures;
+        }
+
+        public String getLastError() {
+            return lastError;
+        }
+
+        public boolean isStale() {
+            return stale;
+        }
+
+        @Override
+        public String toString() {
+            return id + ": " + commands + " commands, " + bytes + " bytes, " + transfers + " transfers, "
+                    + failures + " failures (" + timeouts + " timeouts), " + retries + " retries, "
+                    + dropped + " dropped, " + recoveries + " recoveries, queue " + queueDepth + ", latency p50 " + getLatencyMicros(0.5)
+                    + " us p99 " + getLatencyMicros(0.99) + " us, last success " + millisSinceLastSuccess
+                    + " ms ago" + (stale ? " STALE" : "");
+        }
+    }
+}
@@ -0,0 +1,74 @@
+
+package fr.seki.dashboard.usb;
+
+import java.util.Map;
+
+/**
+ * The JMX view of {@link K8101Metrics}.
+ *
+ * @author seb
+ */
+public interface K8101MetricsMXBean {
+
+    long getCommands();
+
+    long getBytes();
+
+    Map<String, Long> getCommandsByType();
+
+    Map<String, Long> getBytesByType();
+
+    long getTransfers();
+
+    long getFailures();
+
+    long getTimeouts();
+
+    long getRetries();
+
+    long getDropped();
+
+    double getBytesPerSecond();
+
+    Map<String, Double> getCommandsPerSecondByType();
+
+    double getPaceBytesPerSecond();
+
+    double getMaxBytesPerSecond();
+
+    void setMaxBytesPerSecond(double bytesPerSecond);
+
+    Map<String, Long> getUsbErrors();
+
+    long getHotplugArrivals();
+
+    long getHotplugDepartures();
+
+    long getRecoveries();
+
+    int getQueueDepth();
+
+    long[] getLatencyHistogram();
+
+    long getLatencyP50Micros();
+
+    long getLatencyP99Micros();
+
+    long getMillisSinceLastSuccess();
+
+    int getConsecutiveFailures();
+
+    String getLastError();
+
+    long getStaleAfterMillis();
+
+    void setStaleAfterMillis(long millis);
+
+    boolean isStale();
+
+    int getTraceSampling();
+
+    void setTraceSampling(int sampling);
+
+    void reset();
+}
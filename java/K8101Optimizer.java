@@ -0,0 +1,380 @@
+
+package fr.seki.dashboard.usb;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Peephole optimization of the commands of a {@link Frame}, run on commit.
+ *
+ * The rewritten stream leaves the board in the same state, pixel for pixel
+ * as rendered by {@link EmulatorTransport}, with fewer bytes:
+ * <ul>
+ * <li>commands overwritten by a later clearall or bitmap are dropped, as are
+ * pixels, lines and rectangles inside a later plain rectangle,</li>
+ * <li>no-ops are dropped: empty rectangles, pixels off the screen, settings
+ * (contrast, invert, backlight) repeating the previous value, or the value
+ * known on the device for contrast and invert,</li>
+ * <li>a run of consecutive pixels, horizontal or vertical lines and plain
+ * rectangles of the same color is rasterized and sent again as the fewest
+ * lines and rectangles covering it, when that is cheaper.</li>
+ * </ul>
+ * The backlight is only deduplicated within a frame: sending it again
+ * restarts its timeout.
+ *
+ * @author seb
+ */
+final class K8101Optimizer {
+
+    private static final int WIDTH = FrameBuffer.WIDTH;
+    private static final int HEIGHT = FrameBuffer.HEIGHT;
+
+    /* command codes, see README */
+    private static final int BITMAP = 1;
+    private static final int CLEARALL = 2;
+    private static final int CLEARFG = 3;
+    private static final int BIGTEXT = 4;
+    private static final int SMALLTEXT = 5;
+    private static final int DRAWRECT = 7;
+    private static final int ERASERECT = 8;
+    private static final int DRAWPIXEL = 9;
+    private static final int ERASEPIXEL = 16;
+    private static final int CONTRAST = 17;
+    private static final int DRAWLINE = 18;
+    private static final int ERASELINE = 19;
+    private static final int BACKLIGHT = 20;
+    private static final int INVERT = 21;
+
+    private static final ThreadLocal<K8101Optimizer> local = ThreadLocal.withInitial(K8101Optimizer::new);
+
+    private int[] starts = new int[16];
+    private int[] codes = new int[16];
+    private boolean[] dropped = new boolean[16];
+    private int[] out = new int[16]; // end offsets of the rewritten commands
+    private int outCount;
+    private final long[] pixels = new long[HEIGHT * 2]; // run being rasterized, 2 words per row
+    private int top; // rows of the run being rasterized
+    private int bottom;
+    private int[] rects = new int[64]; // its cover: x, y, width, height
+
+    private K8101Optimizer() {
+    }
+
+    static K8101Optimizer local() {
+        return local.get();
+    }
+
+    /**
+     * Rewrites count commands, the i-th ending at ends[i] in src, into dst.
+     *
+     * @param contrast value known on the device, -1 if unknown
+     * @param inverted 0 or 1 as known on the device, -1 if unknown
+     * @return the number of commands written, see {@link #end(int)}
+     */
+    int optimize(ByteBuffer src, int[] ends, int count, ByteBuffer dst, int contrast, int inverted) {
+        if (starts.length < count) {
+            int n = Math.max(count, starts.length * 2);
+            starts = new int[n];
+            codes = new int[n];
+            dropped = new boolean[n];
+        }
+        for (int i = 0; i < count; i++) {
+            starts[i] = i == 0 ? 0 : ends[i - 1];
+            codes[i] = src.get(starts[i] + 3);
+            dropped[i] = false;
+        }
+        dropOverwritten(src, count);
+        dropNoOps(src, count, contrast, inverted);
+
+        outCount = 0;
+        int i = 0;
+        while (i < count) {
+            if (dropped[i]) {
+                i++;
+                continue;
+            }
+            int color = color(src, i);
+            if (color < 0) {
+                copy(src, i, ends[i], dst);
+                i++;
+                continue;
+            }
+            int j = i + 1; // end of the run
+            int bytes = ends[i] - starts[i];
+            while (j < count && (dropped[j] || color(src, j) == color)) {
+                if (!dropped[j]) {
+                    bytes += ends[j] - starts[j];
+                }
+                j++;
+            }
+            rewrite(src, ends, i, j, bytes, color == 1, dst);
+            i = j;
+        }
+        return outCount;
+    }
+
+    /**
+     * @return the end offset in dst of the i-th command written
+     */
+    int end(int i) {
+        return out[i];
+    }
+
+    private static int arg(ByteBuffer src, int start, int n) {
+        return src.get(start + 4 + n) & 0xff;
+    }
+
+    /* everything drawn before the last clearall or bitmap, and what a later
+       plain rectangle covers */
+    private void dropOverwritten(ByteBuffer src, int count) {
+        for (int last = count - 1; last >= 0; last--) {
+            if (codes[last] == CLEARALL || codes[last] == BITMAP) {
+                for (int i = 0; i < last; i++) {
+                    switch (codes[i]) {
+                        case BITMAP:
+                        case CLEARALL:
+                        case CLEARFG:
+                        case BIGTEXT:
+                        case SMALLTEXT:
+                        case DRAWRECT:
+                        case ERASERECT:
+                        case DRAWPIXEL:
+                        case ERASEPIXEL:
+                        case DRAWLINE:
+                        case ERASELINE:
+                            dropped[i] = true;
+                            break;
+                        default:
+                    }
+                }
+                break;
+            }
+        }
+        for (int j = count - 1; j > 0; j--) {
+            if (dropped[j] || (codes[j] != DRAWRECT && codes[j] != ERASERECT)) {
+                continue;
+            }
+            int x = arg(src, starts[j], 0);
+            int y = arg(src, starts[j], 1);
+            int x2 = x + arg(src, starts[j], 2);
+            int y2 = y + arg(src, starts[j], 3);
+            for (int i = 0; i < j; i++) {
+                if (!dropped[i] && inside(src, i, x, y, x2, y2)) {
+                    dropped[i] = true;
+                }
+            }
+        }
+    }
+
+    /* whether the pixels touched by command i are all in [x, x2) x [y, y2) */
+    private boolean inside(ByteBuffer src, int i, int x, int y, int x2, int y2) {
+        int s = starts[i];
+        switch (codes[i]) {
+            case DRAWPIXEL:
+            case ERASEPIXEL:
+                return arg(src, s, 0) >= x && arg(src, s, 0) < x2 && arg(src, s, 1) >= y && arg(src, s, 1) < y2;
+            case DRAWLINE:
+            case ERASELINE:
+                // the line stays in the box of its ends
+                return Math.min(arg(src, s, 0), arg(src, s, 2)) >= x && Math.max(arg(src, s, 0), arg(src, s, 2)) < x2
+                        && Math.min(arg(src, s, 1), arg(src, s, 3)) >= y && Math.max(arg(src, s, 1), arg(src, s, 3)) < y2;
+            case DRAWRECT:
+            case ERASERECT:
+                return arg(src, s, 0) >= x && arg(src, s, 0) + arg(src, s, 2) <= x2
+                        && arg(src, s, 1) >= y && arg(src, s, 1) + arg(src, s, 3) <= y2;
+            default:
+                return false;
+        }
+    }
+
+    private void dropNoOps(ByteBuffer src, int count, int contrast, int inverted) {
+        int backlight = -1;
+        for (int i = 0; i < count; i++) {
+            if (dropped[i]) {
+                continue;
+            }
+            int s = starts[i];
+            switch (codes[i]) {
+                case DRAWRECT:
+                case ERASERECT:
+                    dropped[i] = arg(src, s, 2) == 0 || arg(src, s, 3) == 0
+                            || arg(src, s, 0) >= WIDTH || arg(src, s, 1) >= HEIGHT;
+                    break;
+                case DRAWPIXEL:
+                case ERASEPIXEL:
+                    dropped[i] = arg(src, s, 0) >= WIDTH || arg(src, s, 1) >= HEIGHT;
+                    break;
+                case CONTRAST:
+                    dropped[i] = arg(src, s, 0) == contrast;
+                    contrast = arg(src, s, 0);
+                    break;
+                case INVERT:
+                    int inv = arg(src, s, 0) != 0 ? 1 : 0;
+                    dropped[i] = inv == inverted;
+                    inverted = inv;
+                    break;
+                case BACKLIGHT:
+                    dropped[i] = arg(src, s, 0) == backlight;
+                    backlight = arg(src, s, 0);
+                    break;
+                default:
+            }
+        }
+    }
+
+    /**
+     * @return 1 for a command setting pixels that can be rasterized here,
+     * 0 for one erasing them, -1 otherwise
+     */
+    private int color(ByteBuffer src, int i) {
+        int s = starts[i];
+        switch (codes[i]) {
+            case DRAWPIXEL:
+            case DRAWRECT:
+                return 1;
+            case ERASEPIXEL:
+            case ERASERECT:
+                return 0;
+            case DRAWLINE:
+            case ERASELINE:
+                if (arg(src, s, 0) != arg(src, s, 2) && arg(src, s, 1) != arg(src, s, 3)) {
+                    return -1;
+                }
+                return codes[i] == DRAWLINE ? 1 : 0;
+            default:
+                return -1;
+        }
+    }
+
+    private void copy(ByteBuffer src, int i, int end, ByteBuffer dst) {
+        int at = dst.position();
+        dst.put(at, src, starts[i], end - starts[i]).position(at + end - starts[i]);
+        added(dst);
+    }
+
+    private void added(ByteBuffer dst) {
+        if (outCount == out.length) {
+            out = Arrays.copyOf(out, outCount * 2);
+        }
+        out[outCount++] = dst.position();
+    }
+
+    /* the commands from..to (exclusive) of a run, as they are or as their
+       cover if it is cheaper */
+    private void rewrite(ByteBuffer src, int[] ends, int from, int to, int bytes, boolean on, ByteBuffer dst) {
+        top = HEIGHT;
+        bottom = 0;
+        for (int i = from; i < to; i++) {
+            if (dropped[i]) {
+                continue;
+            }
+            int s = starts[i];
+            int x = arg(src, s, 0);
+            int y = arg(src, s, 1);
+            switch (codes[i]) {
+                case DRAWPIXEL:
+                case ERASEPIXEL:
+                    fill(x, y, x + 1, y + 1);
+                    break;
+                case DRAWLINE:
+                case ERASELINE:
+                    fill(Math.min(x, arg(src, s, 2)), Math.min(y, arg(src, s, 3)),
+                            Math.max(x, arg(src, s, 2)) + 1, Math.max(y, arg(src, s, 3)) + 1);
+                    break;
+                default:
+                    fill(x, y, x + arg(src, s, 2), y + arg(src, s, 3));
+            }
+        }
+        int n = cover();
+        int cost = 0;
+        for (int r = 0; r < n; r++) {
+            cost += rects[4 * r + 2] == 1 && rects[4 * r + 3] == 1 ? 8 : 10;
+        }
+        if (cost >= bytes) {
+            for (int i = from; i < to; i++) {
+                if (!dropped[i]) {
+                    copy(src, i, ends[i], dst);
+                }
+            }
+            return;
+        }
+        for (int r = 0; r < n; r++) {
+            int x = rects[4 * r];
+            int y = rects[4 * r + 1];
+            int w = rects[4 * r + 2];
+            int h = rects[4 * r + 3];
+            if (w == 1 && h == 1) {
+                K8101Encoder.put(dst, on ? K8101.Command.drawpixel : K8101.Command.erasepixel, x, y);
+            } else if (w == 1 || h == 1) {
+                K8101Encoder.put(dst, on ? K8101.Command.drawline : K8101.Command.eraseline, x, y, x + w - 1, y + h - 1);
+            } else {
+                K8101Encoder.put(dst, on ? K8101.Command.drawrect : K8101.Command.eraserect, x, y, w, h);
+            }
+            added(dst);
+        }
+    }
+
+    /* sets the pixels of [x, x2) x [y, y2), clipped to the screen */
+    private void fill(int x, int y, int x2, int y2) {
+        x2 = Math.min(x2, WIDTH);
+        y2 = Math.min(y2, HEIGHT);
+        if (x >= x2 || y >= y2) {
+            return;
+        }
+        top = Math.min(top, y);
+        bottom = Math.max(bottom, y2);
+        for (int j = y; j < y2; j++) {
+            for (int i = x; i < x2; i++) {
+                pixels[2 * j + (i >> 6)] |= 1L << (i & 63);
+            }
+        }
+    }
+
+    private boolean get(int x, int y) {
+        return (pixels[2 * y + (x >> 6)] & 1L << (x & 63)) != 0;
+    }
+
+    /* greedy cover: the first run of a row, extended down while the rows
+       below have it all; covered pixels are cleared, leaving the raster
+       empty for the next run */
+    private int cover() {
+        int n = 0;
+        for (int y = top; y < bottom; y++) {
+            while (pixels[2 * y] != 0 || pixels[2 * y + 1] != 0) {
+                int x = pixels[2 * y] != 0 ? Long.numberOfTrailingZeros(pixels[2 * y])
+                        : 64 + Long.numberOfTrailingZeros(pixels[2 * y + 1]);
+                int x2 = x + 1;
+                while (x2 < WIDTH && get(x2, y)) {
+                    x2++;
+                }
+                int y2 = y + 1;
+                while (y2 < bottom && span(x, x2, y2)) {
+                    y2++;
+                }
+                for (int j = y; j < y2; j++) {
+                    for (int i = x; i < x2; i++) {
+                        pixels[2 * j + (i >> 6)] &= ~(1L << (i & 63));
+                    }
+                }
+                if (4 * n == rects.length) {
+                    rects = Arrays.copyOf(rects, rects.length * 2);
+                }
+                rects[4 * n] = x;
+                rects[4 * n + 1] = y;
+                rects[4 * n + 2] = x2 - x;
+                rects[4 * n + 3] = y2 - y;
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private boolean span(int x, int x2, int y) {
+        for (int i = x; i < x2; i++) {
+            if (!get(i, y)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,198 @@
+
+package fr.seki.dashboard.usb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Plays back a log of {@link K8101Capture}, or a file of raw frames such as
+ * serial_payloads/hello.bin, to a display.
+ *
+ * A log is played at its original pace divided by speed, or as fast as the
+ * display takes it with a speed of 0. Raw frames carry no time and are always
+ * sent as fast as possible.
+ *
+ * From the command line:
+ * {@code java fr.seki.dashboard.usb.K8101Replay file [speed [display]]},
+ * where display is an id of {@link K8101Display#open(String)} such as
+ * "loopback" or "usb:1-2"; by default each transfer of a log goes to the
+ * display it was recorded from, raw frames to the default display.
+ *
+ * A display registered on its own transport with
+ * {@link K8101Display#open(String, K8101Transport)} cannot be opened again
+ * from its id once closed: its transfers go to the "emulator" display, unless
+ * the caller maps the recorded ids itself.
+ *
+ * @author seb
+ */
+public final class K8101Replay {
+
+    private static final Logger logger = Logger.getLogger(K8101Replay.class.toString());
+
+    private K8101Replay() {
+    }
+
+    /**
+     * @param target the display receiving everything, or null for the
+     * recorded displays
+     * @param speed 1 for the original pace, 2 for twice as fast, 0 for as
+     * fast as possible
+     * @return the number of transfers sent
+     */
+    public static long replay(Path file, K8101Display target, double speed) throws IOException {
+        return replay(file, target, target != null ? id -> target : K8101Replay::recorded, speed);
+    }
+
+    /**
+     * Plays a log back to the displays chosen by the caller, raw frames to
+     * the default display.
+     *
+     * @param displays gives the display of each recorded id
+     * @return the number of transfers sent
+     */
+    public static long replay(Path file, double speed, Function<String, K8101Display> displays) throws IOException {
+        return replay(file, null, displays, speed);
+    }
+
+    private static long replay(Path file, K8101Display target, Function<String, K8101Display> displays, double speed)
+            throws IOException {
+        if (!(speed >= 0)) {
+            throw new IllegalArgumentException("speed must not be negative");
+        }
+        MappedByteBuffer map;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large");
+            }
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (isCapture(map)) {
+            return replayCapture(map, displays, speed);
+        }
+        return replayRaw(map, target != null ? target : K8101.display());
+    }
+
+    private static boolean isCapture(ByteBuffer map) {
+        if (map.limit() < K8101Capture.HEADER) {
+            return false;
+        }
+        for (int i = 0; i < K8101Capture.MAGIC.length; i++) {
+            if (map.get(i) != K8101Capture.MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long replayRaw(ByteBuffer map, K8101Display target) throws IOException {
+        long sent = 0;
+        CompletableFuture<Void> last = null;
+        int pos = 0;
+        while (pos < map.limit()) {
+            int length = map.limit() - pos < 4 ? 0 : K8101Encoder.frameLength(map, pos);
+            if (length < 6 || pos + length > map.limit()) {
+                throw new IOException("bad frame at offset " + pos);
+            }
+            last = target.sendBatch(map.slice(pos, length));
+            sent++;
+            pos += length;
+        }
+        if (last != null) {
+            last.join();
+        }
+        return sent;
+    }
+
+    /* the display a log was recorded from, the emulator for a custom transport */
+    private static K8101Display recorded(String id) {
+        if (K8101Display.canOpen(id)) {
+            return K8101Display.open(id);
+        }
+        logger.warning("display " + id + " of the capture has its own transport, replayed to the emulator");
+        return K8101Display.open("emulator");
+    }
+
+    private static K8101Display resolve(Function<String, K8101Display> displays, String id) throws IOException {
+        K8101Display display;
+        try {
+            display = displays.apply(id);
+        } catch (RuntimeException re) {
+            throw new IOException("cannot open display " + id + " of the capture: " + re.getMessage(), re);
+        }
+        if (display == null) {
+            throw new IOException("no display for " + id + " of the capture");
+        }
+        return display;
+    }
+
+    private static long replayCapture(ByteBuffer map, Function<String, K8101Display> resolver, double speed)
+            throws IOException {
+        if (map.getShort(K8101Capture.MAGIC.length) != K8101Capture.VERSION) {
+            throw new IOException("unknown capture version " + map.getShort(K8101Capture.MAGIC.length));
+        }
+        HashMap<Short, K8101Display> displays = new HashMap<Short, K8101Display>();
+        long start = System.nanoTime();
+        long sent = 0;
+        CompletableFuture<Void> last = null;
+        int pos = K8101Capture.HEADER;
+        while (pos < map.limit() && map.get(pos) != 0) {
+            byte type = map.get(pos);
+            if (type == K8101Capture.DISPLAY && pos + 5 <= map.limit()) {
+                short number = map.getShort(pos + 1);
+                int length = map.getShort(pos + 3) & 0xffff;
+                byte[] id = new byte[length];
+                map.get(pos + 5, id);
+                displays.put(number, resolve(resolver, new String(id, StandardCharsets.UTF_8)));
+                pos += 5 + length;
+            } else if (type == K8101Capture.FRAMES && pos + K8101Capture.FRAMES_HEADER <= map.limit()) {
+                K8101Display display = displays.get(map.getShort(pos + 1));
+                long time = map.getLong(pos + 3);
+                int length = map.getInt(pos + 11);
+                pos += K8101Capture.FRAMES_HEADER;
+                if (display == null || length < 0 || pos + length > map.limit()) {
+                    throw new IOException("corrupt capture at offset " + pos);
+                }
+                if (speed > 0) {
+                    long due = start + (long) (time / speed);
+                    long wait;
+                    while ((wait = due - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+                last = display.sendBatch(map.slice(pos, length));
+                sent++;
+                pos += length;
+            } else {
+                throw new IOException("corrupt capture at offset " + pos);
+            }
+        }
+        if (last != null) {
+            last.join();
+        }
+        return sent;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: K8101Replay file [speed [display]]");
+            System.exit(2);
+        }
+        double speed = args.length > 1 ? Double.parseDouble(args[1]) : 1;
+        K8101Display target = args.length > 2 ? K8101Display.open(args[2]) : null;
+        long start = System.nanoTime();
+        long sent = replay(Paths.get(args[0]), target, speed);
+        System.out.println(sent + " transfers in " + (System.nanoTime() - start) / 1000000 + " ms");
+        System.exit(0);
+    }
+}
@@ -0,0 +1,202 @@
+
+package fr.seki.dashboard.usb;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.usb4java.BufferUtils;
+import org.usb4java.Context;
+import org.usb4java.Device;
+import org.usb4java.DeviceHandle;
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+import org.usb4java.Transfer;
+import org.usb4java.TransferCallback;
+
+/**
+ * A claimed K8101 interface kept open between commands.
+ *
+ * The device is opened, its kernel driver detached and the interface claimed
+ * once, then the same handle is reused for every transfer until
+ * {@link #close()} is called (explicitly or on hotplug removal).
+ *
+ * Closing waits for the blocking transfers in progress, so that libusb never
+ * runs one on a closed handle. From the event handling thread, which may be
+ * needed to complete them, it does not wait: the last of them closes the
+ * handle instead.
+ *
+ * @author seb
+ */
+final class K8101Session {
+
+    private static final Logger logger = Logger.getLogger(K8101Session.class.toString());
+
+    /* per thread, each blocking transfer reads its own count */
+    private static final ThreadLocal<IntBuffer> transferred = ThreadLocal.withInitial(BufferUtils::allocateIntBuffer);
+
+    private final DeviceHandle handle;
+    private final Device device;
+    private final int iface;
+    private volatile boolean closed;
+    private int writing; // blocking transfers in progress
+    private boolean released;
+
+    private K8101Session(DeviceHandle handle, int iface) {
+        this.handle = handle;
+        this.device = LibUsb.getDevice(handle);
+        this.iface = iface;
+    }
+
+    /**
+     * Opens a session on a device reported by libusb (enumeration or hotplug).
+     */
+    static K8101Session open(Device device, int iface) throws LibUsbException {
+        DeviceHandle handle = new DeviceHandle();
+        int result = LibUsb.open(device, handle);
+        if (result != LibUsb.SUCCESS) {
+            throw new LibUsbException("cannot open device", result);
+        }
+        return claim(handle, iface);
+    }
+
+    /**
+     * Opens a session on the first device matching vendor and product ids.
+     *
+     * @return the session, or null if no such device is present
+     */
+    static K8101Session open(Context ctx, short vendorId, short productId, int iface) throws LibUsbException {
+        DeviceHandle handle = LibUsb.openDeviceWithVidPid(ctx, vendorId, productId);
+        if (handle == null) {
+            return null;
+        }
+        return claim(handle, iface);
+    }
+
+    private static K8101Session claim(DeviceHandle handle, int iface) {
+        try {
+            // Only detach when a driver is actually bound, detaching an idle
+            // interface fails with ERROR_NOT_FOUND
+            if (LibUsb.hasCapability(LibUsb.CAP_SUPPORTS_DETACH_KERNEL_DRIVER)
+                    && LibUsb.kernelDriverActive(handle, iface) == 1) {
+                int result = LibUsb.detachKernelDriver(handle, iface);
+                if (result != LibUsb.SUCCESS) {
+                    throw new LibUsbException("cannot detach driver", result);
+                }
+                logger.fine("Kernel driver detached");
+            }
+            int result = LibUsb.claimInterface(handle, iface);
+            if (result != LibUsb.SUCCESS) {
+                throw new LibUsbException("cannot claim interface", result);
+            }
+        } catch (LibUsbException lue) {
+            LibUsb.close(handle);
+            throw lue;
+        }
+        logger.fine("Interface claimed");
+        return new K8101Session(handle, iface);
+    }
+
+    /**
+     * Sends the remaining bytes of a direct buffer with a blocking bulk transfer.
+     *
+     * @return the number of bytes actually transferred, fewer than sent if
+     * the transfer timed out
+     */
+    int write(byte endpoint, ByteBuffer buffer, long timeout) throws LibUsbException {
+        synchronized (this) {
+            if (closed) {
+                throw new LibUsbException("session closed", LibUsb.ERROR_NO_DEVICE);
+            }
+            writing++;
+        }
+        try {
+            IntBuffer count = transferred.get();
+            count.clear();
+            int result = LibUsb.bulkTransfer(handle, endpoint, buffer, count, timeout);
+            if (result != LibUsb.SUCCESS && result != LibUsb.ERROR_TIMEOUT) {
+                throw new LibUsbException("cannot send data", result);
+            }
+            return count.get(0);
+        } finally {
+            synchronized (this) {
+                if (--writing == 0) {
+                    notifyAll();
+                    if (closed) {
+                        release();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Submits an asynchronous bulk transfer, in either direction depending on
+     * the endpoint. The callback is invoked from the libusb event handling
+     * thread, it is responsible for freeing the transfer.
+     *
+     * @return the submitted transfer, e.g. to cancel it
+     */
+    Transfer submit(byte endpoint, ByteBuffer buffer, long timeout, TransferCallback callback, Object userData)
+            throws LibUsbException {
+        if (closed) {
+            throw new LibUsbException("session closed", LibUsb.ERROR_NO_DEVICE);
+        }
+        Transfer transfer = LibUsb.allocTransfer();
+        LibUsb.fillBulkTransfer(transfer, handle, endpoint, buffer, callback, userData, timeout);
+        int result = LibUsb.submitTransfer(transfer);
+        if (result != LibUsb.SUCCESS) {
+            LibUsb.freeTransfer(transfer);
+            throw new LibUsbException("cannot submit transfer", result);
+        }
+        return transfer;
+    }
+
+    /**
+     * @return the device of the session, to match hotplug events
+     */
+    Device device() {
+        return device;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Releases the interface and closes the handle, once the blocking
+     * transfers in progress are over (see above). Errors are only logged as
+     * the device may already be gone.
+     */
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (!K8101.isEventThread()) {
+            try {
+                while (writing > 0) {
+                    wait();
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (writing == 0) {
+            release();
+        }
+    }
+
+    private void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        int result = LibUsb.releaseInterface(handle, iface);
+        if (result != LibUsb.SUCCESS && result != LibUsb.ERROR_NO_DEVICE) {
+            logger.log(Level.WARNING, "cannot release interface: " + LibUsb.errorName(result));
+        }
+        LibUsb.close(handle);
+        logger.fine("Session closed");
+    }
+}
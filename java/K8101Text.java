@@ -0,0 +1,321 @@
+
+package fr.seki.dashboard.usb;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Host-side text layout with the cell metrics of the firmware: 6x8 cells for
+ * big text, 4x8 for small text.
+ *
+ * Text is laid out in a box of a given width and number of lines: wrapped on
+ * spaces (or '\n'), words longer than a line cut, then clipped or ellipsized
+ * to the number of lines, and aligned. Each line is sent as its own text
+ * command with a max_width that never makes the firmware wrap, and leading
+ * spaces become an x offset since the firmware moves down for each of them
+ * (see README).
+ *
+ * Layouts, and their rasterization into a {@link FrameBuffer}, are kept in an
+ * LRU cache keyed by text and box: dashboards redrawing the same labels lay
+ * them out once. Rasterized text only costs the pixels that changed on the
+ * next flush, but uses the look-alike glyphs of {@link K8101Font}.
+ *
+ * @author seb
+ */
+public final class K8101Text {
+
+    public enum Align {
+        left,
+        center,
+        right
+    }
+
+    /**
+     * What happens to text that does not fit in the box.
+     */
+    public enum Overflow {
+        /* cut at the box */
+        clip,
+        /* cut, ending with "..." */
+        ellipsis
+    }
+
+    private static final String ELLIPSIS = "...";
+
+    private static final class Key {
+        private final String text;
+        private final K8101.TextSize size;
+        private final int width;
+        private final int lines;
+        private final Align align;
+        private final Overflow overflow;
+        private final int hash;
+
+        private Key(String text, K8101.TextSize size, int width, int lines, Align align, Overflow overflow) {
+            this.text = text;
+            this.size = size;
+            this.width = width;
+            this.lines = lines;
+            this.align = align;
+            this.overflow = overflow;
+            this.hash = Objects.hash(text, size, width, lines, align, overflow);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return hash == k.hash && width == k.width && lines == k.lines && size == k.size && align == k.align
+                    && overflow == k.overflow && text.equals(k.text);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * A laid out text: the lines to send, without leading spaces, and their x
+     * offset in the box.
+     */
+    static final class Layout {
+        private final Key key;
+        private final String[] lines;
+        private final int[] offsets;
+        private byte[] raster; // columns of each line, LSB on top, width bytes per line
+
+        private Layout(Key key, String[] lines, int[] offsets) {
+            this.key = key;
+            this.lines = lines;
+            this.offsets = offsets;
+        }
+
+        int lineCount() {
+            return lines.length;
+        }
+
+        String line(int i) {
+            return lines[i];
+        }
+
+        int offset(int i) {
+            return offsets[i];
+        }
+
+        synchronized byte[] raster() {
+            if (raster == null) {
+                K8101Font font = K8101Font.of(key.size);
+                int advance = font.getAdvance();
+                byte[] r = new byte[lines.length * key.width];
+                for (int l = 0; l < lines.length; l++) {
+                    for (int c = 0; c < lines[l].length(); c++) {
+                        for (int i = 0; i < advance; i++) {
+                            int x = offsets[l] + c * advance + i;
+                            if (x < key.width) {
+                                r[l * key.width + x] = (byte) font.column(lines[l].charAt(c), i);
+                            }
+                        }
+                    }
+                }
+                raster = r;
+            }
+            return raster;
+        }
+    }
+
+    private static int capacity = 256;
+    private static final LinkedHashMap<Key, Layout> cache = new LinkedHashMap<Key, Layout>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Layout> eldest) {
+            return size() > capacity;
+        }
+    };
+    private static long hits;
+    private static long misses;
+
+    private K8101Text() {
+    }
+
+    /**
+     * @return the width of the text on one line, in pixels
+     */
+    public static int width(CharSequence txt, K8101.TextSize size) {
+        return txt.length() * size.getWidth();
+    }
+
+    /**
+     * @return the number of characters that fit in width pixels
+     */
+    public static int columns(int width, K8101.TextSize size) {
+        return width / size.getWidth();
+    }
+
+    /**
+     * Lays out text in a box, from the cache if possible.
+     *
+     * @param width width of the box, in pixels
+     * @param lines height of the box, in lines of 8 pixels
+     */
+    static Layout layout(String text, K8101.TextSize size, int width, int lines, Align align, Overflow overflow) {
+        if (width < 0 || lines < 1) {
+            throw new IllegalArgumentException("width must not be negative and lines must be positive");
+        }
+        Key key = new Key(text, size, width, lines, align, overflow);
+        synchronized (cache) {
+            Layout l = cache.get(key);
+            if (l != null) {
+                hits++;
+                return l;
+            }
+            misses++;
+        }
+        Layout l = compute(key);
+        synchronized (cache) {
+            cache.put(key, l);
+        }
+        return l;
+    }
+
+    private static Layout compute(Key key) {
+        int cols = columns(key.width, key.size);
+        ArrayList<String> wrapped = new ArrayList<String>();
+        boolean cut = false;
+        for (String p : key.text.split("\n", -1)) {
+            if (cols == 0 || wrapped.size() == key.lines) {
+                cut = !key.text.isEmpty();
+                break;
+            }
+            int i = 0;
+            do {
+                if (wrapped.size() == key.lines) {
+                    cut = true;
+                    break;
+                }
+                int end = Math.min(p.length(), i + cols);
+                if (end < p.length() && p.charAt(end) != ' ') {
+                    int space = p.lastIndexOf(' ', end - 1);
+                    if (space > i) {
+                        end = space;
+                    }
+                }
+                wrapped.add(stripTrailing(p.substring(i, end)));
+                // a continuation line starts on the next word
+                i = end;
+                while (i < p.length() && p.charAt(i) == ' ') {
+                    i++;
+                }
+            } while (i < p.length());
+        }
+        if (cut && key.overflow == Overflow.ellipsis && !wrapped.isEmpty()) {
+            int last = wrapped.size() - 1;
+            String line = wrapped.get(last);
+            if (cols <= ELLIPSIS.length()) {
+                line = ELLIPSIS.substring(0, cols);
+            } else {
+                line = stripTrailing(line.substring(0, Math.min(line.length(), cols - ELLIPSIS.length()))) + ELLIPSIS;
+            }
+            wrapped.set(last, line);
+        }
+        String[] lines = new String[wrapped.size()];
+        int[] offsets = new int[lines.length];
+        int advance = key.size.getWidth();
+        for (int l = 0; l < lines.length; l++) {
+            String line = wrapped.get(l);
+            int lead = 0;
+            while (lead < line.length() && line.charAt(lead) == ' ') {
+                lead++;
+            }
+            int free = key.width - line.length() * advance;
+            offsets[l] = key.align == Align.left ? 0 : key.align == Align.center ? free / 2 : free;
+            offsets[l] += lead * advance;
+            lines[l] = line.substring(lead);
+        }
+        return new Layout(key, lines, offsets);
+    }
+
+    private static String stripTrailing(String s) {
+        int end = s.length();
+        while (end > 0 && s.charAt(end - 1) == ' ') {
+            end--;
+        }
+        return s.substring(0, end);
+    }
+
+    /**
+     * Appends the text commands drawing text in the box at (x, y). Cells are
+     * drawn with their background, the rest of the box is left as is.
+     *
+     * @return the number of lines drawn
+     */
+    public static int draw(Frame frame, String text, int x, int y, int width, int lines, K8101.TextSize size,
+            Align align, Overflow overflow) {
+        Layout l = layout(text, size, width, lines, align, overflow);
+        for (int i = 0; i < l.lineCount(); i++) {
+            String line = l.line(i);
+            if (!line.isEmpty()) {
+                frame.drawText(line, x + l.offset(i), y + i * size.getHeight(), width(line, size), size);
+            }
+        }
+        return l.lineCount();
+    }
+
+    /**
+     * Rasterizes text in the box at (x, y) of a frame buffer, the whole box
+     * is redrawn.
+     *
+     * @return the number of lines of text
+     */
+    public static int draw(FrameBuffer fb, String text, int x, int y, int width, int lines, K8101.TextSize size,
+            Align align, Overflow overflow) {
+        Layout l = layout(text, size, width, lines, align, overflow);
+        byte[] raster = l.raster();
+        int height = size.getHeight();
+        for (int line = 0; line < lines; line++) {
+            for (int i = 0; i < width; i++) {
+                int col = line < l.lineCount() ? raster[line * width + i] : 0;
+                for (int j = 0; j < height; j++) {
+                    fb.setPixel(x + i, y + line * height + j, (col & 1 << j) != 0);
+                }
+            }
+        }
+        return l.lineCount();
+    }
+
+    /**
+     * Sets the number of layouts kept, 256 by default.
+     */
+    public static void setCacheSize(int entries) {
+        if (entries < 0) {
+            throw new IllegalArgumentException("entries must not be negative");
+        }
+        synchronized (cache) {
+            capacity = entries;
+            while (cache.size() > capacity) {
+                cache.remove(cache.keySet().iterator().next());
+            }
+        }
+    }
+
+    /**
+     * @return the number of layouts found in the cache so far
+     */
+    public static long getCacheHits() {
+        synchronized (cache) {
+            return hits;
+        }
+    }
+
+    /**
+     * @return the number of layouts computed so far
+     */
+    public static long getCacheMisses() {
+        synchronized (cache) {
+            return misses;
+        }
+    }
+}
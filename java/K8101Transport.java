@@ -0,0 +1,77 @@
+
+package fr.seki.dashboard.usb;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Link carrying encoded commands to a display: libusb, the CDC tty, ...
+ *
+ * The buffers given to the write methods hold one or several complete
+ * commands, from their position to their limit. They are only read during the
+ * call (or until the returned future completes for
+ * {@link #writeAsync(ByteBuffer)}).
+ *
+ * @author seb
+ */
+public interface K8101Transport extends Closeable {
+
+    /**
+     * Opens the link if it is not already.
+     *
+     * @return false if the device is not present
+     */
+    boolean open() throws IOException;
+
+    boolean isOpen();
+
+    /**
+     * Writes commands, or keeps them until {@link #flush()} if the transport
+     * coalesces writes. When a write times out after the device took part of
+     * the commands, the position of frames is moved past that part, so that
+     * writing frames again sends the rest.
+     */
+    void write(ByteBuffer frames) throws IOException;
+
+    /**
+     * Pushes the commands kept by {@link #write(ByteBuffer)}, if any.
+     */
+    void flush() throws IOException;
+
+    /**
+     * Starts writing commands, the future completes when the device has
+     * accepted them. Transports without asynchronous I/O write in the calling
+     * thread. A timeout moves the position of frames as a write does.
+     */
+    default CompletableFuture<Void> writeAsync(ByteBuffer frames) {
+        try {
+            write(frames);
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException ioe) {
+            return CompletableFuture.failedFuture(ioe);
+        } catch (RuntimeException re) {
+            return CompletableFuture.failedFuture(re);
+        }
+    }
+
+    /**
+     * Delivers the bytes sent by the device (button notifications) to the
+     * receiver, as they arrive and from a thread of the transport: the
+     * receiver must not block. Data may be split anywhere. Reception goes on
+     * across reopening, until the receiver is set to null.
+     *
+     * @return false if the transport cannot read from the device
+     */
+    default boolean setReceiver(Consumer<ByteBuffer> receiver) {
+        return false;
+    }
+
+    /**
+     * Closes the link, it is reopened by the next {@link #open()}.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,62 @@
+
+package fr.seki.dashboard.usb;
+
+/**
+ * A part of a {@link K8101Dashboard}: static decoration, uploaded once with
+ * the background bitmap, and a dynamic state redrawn incrementally.
+ *
+ * Widgets of a dashboard must not overlap: an update erases the previous
+ * state of the widget with erase commands.
+ *
+ * @author seb
+ */
+public abstract class K8101Widget {
+
+    private volatile K8101Dashboard owner;
+
+    synchronized void attach(K8101Dashboard dashboard) {
+        if (owner != null && owner != dashboard) {
+            throw new IllegalStateException("widget already on a dashboard");
+        }
+        owner = dashboard;
+    }
+
+    /**
+     * Requests an update of the dashboard showing the widget, e.g. when its
+     * value changed.
+     */
+    protected final void changed() {
+        K8101Dashboard d = owner;
+        if (d != null) {
+            d.changed();
+        }
+    }
+
+    /**
+     * Draws the parts that never change into the background.
+     */
+    protected void decorate(FrameBuffer background) {
+    }
+
+    /**
+     * Appends the commands drawing the current state over the background,
+     * which has just been restored.
+     */
+    protected abstract void draw(Frame frame);
+
+    /**
+     * Appends the commands replacing the state drawn last by the current one.
+     *
+     * @return false if the state did not change, nothing is appended
+     */
+    protected abstract boolean update(Frame frame);
+
+    /**
+     * @return the number of milliseconds before the state changes by itself
+     * (e.g. the next minute of a clock), or -1 if it only changes through
+     * {@link #changed()}
+     */
+    protected long nextChange() {
+        return -1;
+    }
+}
@@ -0,0 +1,102 @@
+
+package fr.seki.dashboard.usb;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Two layer rendering on top of the bitmap stored by the firmware.
+ *
+ * The static content (dial ticks, labels, frames) is composed host-side
+ * into a background bitmap, uploaded once with the bitmap command. The
+ * firmware keeps it and restores it on clearfg, so each refresh is only
+ * clearfg plus the commands of the dynamic overlay: a few dozen bytes instead
+ * of more than 1 KB.
+ *
+ * The display tracks whether its stored bitmap is still this background: it
+ * is uploaded again by the next refresh after a replug, a lost link, a
+ * clearAll or another bitmap sent to the display.
+ *
+ * @author seb
+ */
+public final class LayeredScreen {
+
+    private final K8101Display display;
+    private byte[] background;
+    private Object token = new Object();
+
+    public LayeredScreen(K8101Display display) {
+        this.display = display;
+    }
+
+    public K8101Display getDisplay() {
+        return display;
+    }
+
+    /**
+     * Sets the background in the device layout, see
+     * {@link K8101#drawBitmap(byte[])}.
+     */
+    public synchronized void setBackground(byte[] bitmap) {
+        if (bitmap.length != FrameBuffer.SIZE) {
+            throw new IllegalArgumentException("bitmap must be " + FrameBuffer.SIZE + " bytes");
+        }
+        if (background == null || !Arrays.equals(background, bitmap)) {
+            background = bitmap.clone();
+            token = new Object();
+        }
+    }
+
+    public void setBackground(FrameBuffer fb) {
+        setBackground(fb.toBitmap());
+    }
+
+    public void setBackground(BufferedImage img) {
+        setBackground(K8101Bitmap.toBitmap(img));
+    }
+
+    /**
+     * @return true if the device holds the current background
+     */
+    public synchronized boolean isBackgroundStored() {
+        return background != null && display.storedBackground() == token;
+    }
+
+    /**
+     * Forces the upload of the background on the next refresh, e.g. when
+     * the board may have been reset behind the driver's back.
+     */
+    public void invalidate() {
+        display.backgroundReplaced();
+    }
+
+    /**
+     * Restores the background and draws the overlay, in one batch.
+     *
+     * @param overlay appends the dynamic commands to the given frame
+     */
+    public CompletableFuture<Void> refresh(Consumer<Frame> overlay) {
+        Frame frame = display.batch();
+        Object uploaded = null;
+        synchronized (this) {
+            if (background == null) {
+                frame.clearAll();
+            } else if (display.storedBackground() == token) {
+                frame.clearForeground();
+            } else {
+                frame.drawBitmap(background);
+                uploaded = token;
+            }
+        }
+        Frame dynamic = display.batch();
+        overlay.accept(dynamic);
+        CompletableFuture<Void> sent = frame.append(dynamic).commit();
+        if (uploaded != null && !dynamic.replacesBackground()) {
+            // a failed transfer closes the link, which invalidates it again
+            display.setStoredBackground(uploaded);
+        }
+        return sent;
+    }
+}
@@ -0,0 +1,114 @@
+
+package fr.seki.dashboard.usb;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * In-memory transport, for benchmarks and tests without hardware.
+ *
+ * Every write is accepted at once. The written bytes are counted, and the
+ * last ones are recorded in a ring of the given capacity so that memory use
+ * stays flat however long it runs.
+ *
+ * @author seb
+ */
+public final class LoopbackTransport implements K8101Transport {
+
+    private final byte[] ring;
+    private long writes;
+    private long bytes;
+    private boolean open;
+
+    public LoopbackTransport() {
+        this(64 * 1024);
+    }
+
+    /**
+     * @param capacity number of most recent bytes recorded
+     */
+    public LoopbackTransport(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity must not be negative");
+        }
+        this.ring = new byte[capacity];
+    }
+
+    @Override
+    public synchronized boolean open() {
+        open = true;
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void write(ByteBuffer frames) {
+        int length = frames.remaining();
+        if (ring.length > 0) {
+            ByteBuffer src = frames.duplicate();
+            // only the last ring.length bytes can be kept
+            if (length > ring.length) {
+                src.position(src.limit() - ring.length);
+            }
+            while (src.hasRemaining()) {
+                int at = (int) ((bytes + length - src.remaining()) % ring.length);
+                int n = Math.min(src.remaining(), ring.length - at);
+                src.get(ring, at, n);
+            }
+        }
+        bytes += length;
+        writes++;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * @return the number of write calls so far
+     */
+    public synchronized long writeCount() {
+        return writes;
+    }
+
+    /**
+     * @return the number of bytes written so far
+     */
+    public synchronized long byteCount() {
+        return bytes;
+    }
+
+    /**
+     * @return the most recent bytes written, oldest first
+     */
+    public synchronized byte[] recorded() {
+        int n = (int) Math.min(bytes, ring.length);
+        if (n == 0) {
+            return new byte[0];
+        }
+        int start = (int) ((bytes - n) % ring.length);
+        byte[] copy = Arrays.copyOfRange(ring, start, start + Math.min(n, ring.length - start));
+        if (copy.length < n) {
+            copy = Arrays.copyOf(copy, n);
+            System.arraycopy(ring, 0, copy, ring.length - start, n - (ring.length - start));
+        }
+        return copy;
+    }
+
+    /**
+     * Forgets what was written.
+     */
+    public synchronized void reset() {
+        writes = 0;
+        bytes = 0;
+    }
+
+    @Override
+    public synchronized void close() {
+        open = false;
+    }
+}
@@ -0,0 +1,54 @@
+
+package fr.seki.dashboard.usb;
+
+import java.util.Locale;
+
+/**
+ * Numeric readout widget: a formatted value in a {@link TextLabel}, redrawn
+ * only when its text changes.
+ *
+ * @author seb
+ */
+public final class NumericReadout extends K8101Widget {
+
+    private final TextLabel label;
+    private final String format;
+    private volatile String text = "";
+
+    /**
+     * @param format format of the value, e.g. "%5.1f C"
+     */
+    public NumericReadout(int x, int y, int width, K8101.TextSize size, String format) {
+        this.label = new TextLabel(x, y, width, size);
+        this.format = format;
+    }
+
+    public void setValue(double value) {
+        setText(String.format(Locale.ROOT, format, value));
+    }
+
+    /**
+     * Shows a text instead of a value, e.g. "--" when it is unknown.
+     */
+    public void setText(String txt) {
+        if (!txt.equals(text)) {
+            text = txt;
+            changed();
+        }
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    @Override
+    protected void draw(Frame frame) {
+        label.invalidate();
+        label.update(frame, text);
+    }
+
+    @Override
+    protected boolean update(Frame frame) {
+        return label.update(frame, text);
+    }
+}
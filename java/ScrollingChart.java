@@ -0,0 +1,297 @@
+
+package fr.seki.dashboard.usb;
+
+import java.util.Arrays;
+
+/**
+ * Scrolling chart widget: the last samples of a series as a line, bars or a
+ * min/max band.
+ *
+ * The chart fills from the left. Once full it scrolls left by a step of
+ * columns, a quarter of the width by default: a scroll changes most of the
+ * columns, and costs about as much as the whole chart. Scrolling by one
+ * column at each sample looks smoother and costs that at every sample.
+ *
+ * A column gathers a given number of samples: the line and the bars show
+ * their mean, the band their minimum and maximum. The columns are kept in a
+ * ring of primitive arrays, and each column is drawn as a vertical span.
+ * The spans last drawn are kept too, so an update only erases and draws the
+ * part of the columns that changed: a steady series scrolls for nothing.
+ *
+ * Without fixed bounds the scale follows the samples on screen, with a
+ * hysteresis: it grows as soon as a sample is out of it, and shrinks only
+ * once the samples use less than half of it, so it does not change (and
+ * the whole chart with it) at every sample.
+ *
+ * @author seb
+ */
+public final class ScrollingChart extends K8101Widget {
+
+    public enum Style {
+        /* a line joining the means */
+        line,
+        /* a bar from the bottom to the mean */
+        bar,
+        /* a span from the minimum to the maximum */
+        band
+    }
+
+    private static final double MARGIN = 0.25;
+    private static final double SHRINK = 0.5;
+
+    private final int x;
+    private final int y;
+    private final int width;
+    private final int height;
+    private final Style style;
+    private final int perColumn;
+    private final boolean auto;
+    /* the columns, by ring index */
+    private final double[] low;
+    private final double[] high;
+    private final double[] sum;
+    private final int[] samples;
+    private final int[] numbers; // samples that are not NaN
+    private int head = -1; // newest column
+    private int count; // columns in the ring
+    private int right = -1; // screen column of the newest one
+    private int step;
+    private double min;
+    private double max;
+    /* spans drawn by screen column, -1 for none */
+    private final int[] top;
+    private final int[] bottom;
+    private boolean dirty;
+
+    /**
+     * A chart of one sample per column, scaled automatically.
+     */
+    public ScrollingChart(int x, int y, int width, int height, Style style) {
+        this(x, y, width, height, style, 1, Double.NaN, Double.NaN);
+    }
+
+    /**
+     * A chart scaled automatically.
+     *
+     * @param perColumn number of samples gathered in a column
+     */
+    public ScrollingChart(int x, int y, int width, int height, Style style, int perColumn) {
+        this(x, y, width, height, style, perColumn, Double.NaN, Double.NaN);
+    }
+
+    /**
+     * A chart of fixed bounds, samples out of range are clamped.
+     *
+     * @param perColumn number of samples gathered in a column
+     */
+    public ScrollingChart(int x, int y, int width, int height, Style style, int perColumn, double min, double max) {
+        if (width < 1 || height < 2 || perColumn < 1) {
+            throw new IllegalArgumentException("the chart must be at least 1x2 with a sample per column");
+        }
+        this.auto = Double.isNaN(min) && Double.isNaN(max);
+        if (!auto && !(max > min)) {
+            throw new IllegalArgumentException("max must be above min");
+        }
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.style = style;
+        this.perColumn = perColumn;
+        this.min = min;
+        this.max = max;
+        this.low = new double[width];
+        this.high = new double[width];
+        this.sum = new double[width];
+        this.samples = new int[width];
+        this.numbers = new int[width];
+        this.step = Math.max(1, width / 4);
+        this.top = new int[width];
+        this.bottom = new int[width];
+        Arrays.fill(top, -1);
+        Arrays.fill(bottom, -1);
+    }
+
+    /**
+     * Adds a sample, NaN leaves a gap in the chart.
+     */
+    public void add(double value) {
+        synchronized (this) {
+            if (head < 0 || samples[head] >= perColumn) {
+                head = (head + 1) % width;
+                count = Math.min(width, count + 1);
+                right = right < width - 1 ? right + 1 : width - step;
+                low[head] = Double.NaN;
+                high[head] = Double.NaN;
+                sum[head] = 0;
+                samples[head] = 0;
+                numbers[head] = 0;
+            }
+            samples[head]++;
+            if (!Double.isNaN(value)) {
+                // low and high are NaN until the first number of the column
+                low[head] = Double.isNaN(low[head]) ? value : Math.min(low[head], value);
+                high[head] = Double.isNaN(high[head]) ? value : Math.max(high[head], value);
+                sum[head] += value;
+                numbers[head]++;
+            }
+            dirty = true;
+        }
+        changed();
+    }
+
+    /**
+     * Sets the number of columns of a scroll, 1 to scroll at each column.
+     */
+    public synchronized void setStep(int columns) {
+        if (columns < 1 || columns > width) {
+            throw new IllegalArgumentException("the step must be from 1 to the width");
+        }
+        step = columns;
+    }
+
+    /**
+     * Removes all the samples.
+     */
+    public void clear() {
+        synchronized (this) {
+            head = -1;
+            count = 0;
+            right = -1;
+            dirty = true;
+        }
+        changed();
+    }
+
+    @Override
+    protected synchronized void draw(Frame frame) {
+        // the background has just been restored
+        Arrays.fill(top, -1);
+        Arrays.fill(bottom, -1);
+        dirty = true;
+        update(frame);
+    }
+
+    @Override
+    protected synchronized boolean update(Frame frame) {
+        if (!dirty) {
+            return false;
+        }
+        dirty = false;
+        if (auto) {
+            rescale();
+        }
+        boolean changed = false;
+        int previous = -1; // row of the previous column, for the line
+        for (int i = 0; i < width; i++) {
+            int t = -1;
+            int b = -1;
+            int age = right - i; // 0 for the newest column
+            if (age >= 0 && age < count) {
+                int c = Math.floorMod(head - age, width);
+                int n = numbers[c];
+                if (n > 0) {
+                    if (style == Style.band) {
+                        t = row(high[c]);
+                        b = row(low[c]);
+                    } else {
+                        int r = row(sum[c] / n);
+                        if (style == Style.bar) {
+                            t = r;
+                            b = y + height - 1;
+                        } else if (previous < 0 || previous == r) {
+                            t = r;
+                            b = r;
+                        } else if (previous < r) {
+                            t = previous + 1;
+                            b = r;
+                        } else {
+                            t = r;
+                            b = previous - 1;
+                        }
+                        previous = r;
+                    }
+                } else {
+                    previous = -1;
+                }
+            }
+            if (t != top[i] || b != bottom[i]) {
+                replace(frame, x + i, top[i], bottom[i], t, b);
+                top[i] = t;
+                bottom[i] = b;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private int row(double value) {
+        double v = Math.min(max, Math.max(min, value));
+        return y + height - 1 - (int) Math.round((v - min) / (max - min) * (height - 1));
+    }
+
+    /* follows the samples on screen, with the hysteresis described above */
+    private void rescale() {
+        double lo = Double.POSITIVE_INFINITY;
+        double hi = Double.NEGATIVE_INFINITY;
+        for (int age = 0; age < count; age++) {
+            int c = Math.floorMod(head - age, width);
+            if (!Double.isNaN(low[c])) {
+                lo = Math.min(lo, low[c]);
+                hi = Math.max(hi, high[c]);
+            }
+        }
+        if (lo > hi) {
+            return; // no sample yet
+        }
+        boolean scaled = max > min;
+        if (scaled && lo >= min && hi <= max && hi - lo >= (max - min) * SHRINK) {
+            return;
+        }
+        double margin = hi > lo ? (hi - lo) * MARGIN : Math.abs(hi) > 0 ? Math.abs(hi) * MARGIN : 1;
+        min = lo - margin;
+        max = hi + margin;
+    }
+
+    /* replaces the span t0..b0 of a column by t1..b1, -1 for none */
+    private static void replace(Frame frame, int column, int t0, int b0, int t1, int b1) {
+        if (t0 >= 0) {
+            if (t1 < 0 || b1 < t0 || b0 < t1) {
+                span(frame, column, t0, b0, false);
+            } else {
+                if (t0 < t1) {
+                    span(frame, column, t0, t1 - 1, false);
+                }
+                if (b0 > b1) {
+                    span(frame, column, b1 + 1, b0, false);
+                }
+            }
+        }
+        if (t1 >= 0) {
+            if (t0 < 0 || b0 < t1 || b1 < t0) {
+                span(frame, column, t1, b1, true);
+            } else {
+                if (t1 < t0) {
+                    span(frame, column, t1, t0 - 1, true);
+                }
+                if (b1 > b0) {
+                    span(frame, column, b0 + 1, b1, true);
+                }
+            }
+        }
+    }
+
+    private static void span(Frame frame, int column, int from, int to, boolean on) {
+        if (from == to) {
+            if (on) {
+                frame.drawPixel(column, from);
+            } else {
+                frame.erasePixel(column, from);
+            }
+        } else if (on) {
+            frame.drawLine(column, from, column, to);
+        } else {
+            frame.eraseLine(column, from, column, to);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+
+package fr.seki.dashboard.usb;
+
+/**
+ * A box of text on the screen that is only redrawn when its text changes.
+ *
+ * With {@link #update(Frame, String)} a change costs erasing the box and the
+ * text commands; with {@link #update(FrameBuffer, String)} the text is
+ * rasterized, and the next flush of the frame buffer only sends the pixels of
+ * the characters that changed.
+ *
+ * @author seb
+ */
+public final class TextLabel {
+
+    private final int x;
+    private final int y;
+    private final int width;
+    private final int lines;
+    private final K8101.TextSize size;
+    private final K8101Text.Align align;
+    private final K8101Text.Overflow overflow;
+    private String text;
+
+    /**
+     * A single line box, left aligned, ellipsized.
+     */
+    public TextLabel(int x, int y, int width, K8101.TextSize size) {
+        this(x, y, width, 1, size, K8101Text.Align.left, K8101Text.Overflow.ellipsis);
+    }
+
+    /**
+     * @param width width of the box, in pixels
+     * @param lines height of the box, in lines of 8 pixels
+     */
+    public TextLabel(int x, int y, int width, int lines, K8101.TextSize size, K8101Text.Align align,
+            K8101Text.Overflow overflow) {
+        if (width < 0 || lines < 1) {
+            throw new IllegalArgumentException("width must not be negative and lines must be positive");
+        }
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.lines = lines;
+        this.size = size;
+        this.align = align;
+        this.overflow = overflow;
+    }
+
+    /**
+     * Appends the commands replacing the text of the box, if it changed.
+     *
+     * @return false if the text is the one already drawn
+     */
+    public synchronized boolean update(Frame frame, String txt) {
+        if (txt.equals(text)) {
+            return false;
+        }
+        frame.eraseRectangle(x, y, width, lines * size.getHeight(), true);
+        K8101Text.draw(frame, txt, x, y, width, lines, size, align, overflow);
+        text = txt;
+        return true;
+    }
+
+    /**
+     * Rasterizes the text into the frame buffer, if it changed.
+     *
+     * @return false if the text is the one already drawn
+     */
+    public synchronized boolean update(FrameBuffer fb, String txt) {
+        if (txt.equals(text)) {
+            return false;
+        }
+        K8101Text.draw(fb, txt, x, y, width, lines, size, align, overflow);
+        text = txt;
+        return true;
+    }
+
+    /**
+     * Forgets the text drawn, e.g. after the screen was cleared: the next
+     * update redraws the box.
+     */
+    public synchronized void invalidate() {
+        text = null;
+    }
+
+    public synchronized String getText() {
+        return text;
+    }
+}
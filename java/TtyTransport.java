@@ -0,0 +1,138 @@
+
+package fr.seki.dashboard.usb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+
+/**
+ * Transport over the CDC tty created by the kernel driver (e.g.
+ * /dev/ttyACM0), written through a NIO {@link FileChannel}. No libusb, no
+ * kernel driver detaching, only write access to the tty is needed.
+ *
+ * NIO cannot configure the line: it must be set to 9600 bauds 8N1 in raw mode
+ * beforehand, e.g. {@code stty -F /dev/ttyACM0 9600 cs8 -cstopb -parenb raw}
+ * (see README).
+ *
+ * With a coalescing buffer, small writes are kept until it is full or
+ * {@link #flush()} is called, then go out together with the pending command in
+ * a single gathering write.
+ *
+ * @author seb
+ */
+public final class TtyTransport implements K8101Transport {
+
+    private static final Logger logger = Logger.getLogger(TtyTransport.class.toString());
+
+    private final Path path;
+    private final ByteBuffer staging;
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+    private FileChannel channel;
+
+    public TtyTransport(Path path) {
+        this(path, 0);
+    }
+
+    /**
+     * @param coalesceBytes size of the coalescing buffer, 0 to write through
+     */
+    public TtyTransport(Path path, int coalesceBytes) {
+        if (coalesceBytes < 0) {
+            throw new IllegalArgumentException("coalesceBytes must not be negative");
+        }
+        this.path = path;
+        this.staging = coalesceBytes > 0 ? ByteBuffer.allocateDirect(coalesceBytes) : null;
+    }
+
+    @Override
+    public synchronized boolean open() throws IOException {
+        if (channel == null) {
+            try {
+                channel = FileChannel.open(path, StandardOpenOption.WRITE);
+            } catch (NoSuchFileException nsfe) {
+                return false;
+            }
+            logger.fine("Tty open " + path);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return channel != null;
+    }
+
+    private FileChannel channel() throws IOException {
+        if (!open()) {
+            throw new NoSuchFileException(path.toString());
+        }
+        return channel;
+    }
+
+    @Override
+    public synchronized void write(ByteBuffer frames) throws IOException {
+        ByteBuffer src = frames.duplicate();
+        if (staging != null && src.remaining() <= staging.remaining()) {
+            staging.put(src);
+            return;
+        }
+        try {
+            FileChannel ch = channel();
+            if (staging == null || staging.position() == 0) {
+                while (src.hasRemaining()) {
+                    ch.write(src);
+                }
+                return;
+            }
+            staging.flip();
+            gather[0] = staging;
+            gather[1] = src;
+            while (src.hasRemaining()) {
+                ch.write(gather);
+            }
+            staging.clear();
+        } catch (IOException ioe) {
+            close();
+            throw ioe;
+        } finally {
+            gather[1] = null;
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if (staging == null || staging.position() == 0) {
+            return;
+        }
+        try {
+            FileChannel ch = channel();
+            staging.flip();
+            while (staging.hasRemaining()) {
+                ch.write(staging);
+            }
+            staging.clear();
+        } catch (IOException ioe) {
+            close();
+            throw ioe;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (staging != null) {
+            staging.clear();
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ioe) {
+                logger.fine("Tty close failed: " + ioe);
+            }
+            channel = null;
+        }
+    }
+}
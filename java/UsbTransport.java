@@ -0,0 +1,438 @@
+
+package fr.seki.dashboard.usb;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.usb4java.BufferUtils;
+import org.usb4java.Context;
+import org.usb4java.Device;
+import org.usb4java.DeviceDescriptor;
+import org.usb4java.DeviceHandle;
+import org.usb4java.DeviceList;
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+import org.usb4java.Transfer;
+import org.usb4java.TransferCallback;
+
+/**
+ * Transport over libusb bulk transfers, keeping a claimed
+ * {@link K8101Session} between commands.
+ *
+ * The session is opened on demand, or by the hotplug callback through
+ * {@link #deviceArrived(Device)}, and dropped when a transfer fails or the
+ * device leaves. Asynchronous writes complete from the libusb event handling
+ * thread.
+ *
+ * When a receiver is set, an IN transfer without timeout is kept armed on the
+ * endpoint of the same number as the OUT one, and resubmitted from the event
+ * handling thread each time it completes, so reading never holds up writes.
+ *
+ * Once hotplug is followed, the session is opened on a board already known
+ * from it, otherwise libusb enumerates the devices again.
+ *
+ * Without a location the transport takes the first board libusb reports. To
+ * drive several boards, each transport is pinned to a bus/port path (as in
+ * sysfs, e.g. "1-2.3") or to a serial number, and only opens and follows the
+ * hotplug events of that board.
+ *
+ * @author seb
+ */
+final class UsbTransport implements K8101Transport, TransferCallback {
+
+    private static final Logger logger = Logger.getLogger(UsbTransport.class.toString());
+
+    /* button notifications are 5 bytes, one packet is plenty */
+    private static final int IN_SIZE = 64;
+
+    private final Context ctx;
+    private final short vendorId;
+    private final short productId;
+    private final int iface;
+    private final byte endpoint;
+    private final long timeout;
+    private final String path;
+    private final String serial;
+    private K8101Session session;
+    private final ByteBuffer in = BufferUtils.allocateByteBuffer(IN_SIZE);
+    private final TransferCallback inCallback = this::received;
+    private Consumer<ByteBuffer> receiver;
+    private Transfer reading; // the armed IN transfer, if any
+    private K8101Session closing; // closed once reading completes
+
+    UsbTransport(Context ctx, short vendorId, short productId, int iface, byte endpoint, long timeout) {
+        this(ctx, vendorId, productId, iface, endpoint, timeout, null, null);
+    }
+
+    /**
+     * @param path bus/port path of the board, or null
+     * @param serial serial number of the board, or null
+     */
+    UsbTransport(Context ctx, short vendorId, short productId, int iface, byte endpoint, long timeout,
+            String path, String serial) {
+        this.ctx = ctx;
+        this.vendorId = vendorId;
+        this.productId = productId;
+        this.iface = iface;
+        this.endpoint = endpoint;
+        this.timeout = timeout;
+        this.path = path;
+        this.serial = serial;
+    }
+
+    @Override
+    public synchronized boolean open() throws LibUsbException {
+        if (session == null || session.isClosed()) {
+            if (K8101.isWatching()) {
+                session = openKnown();
+            } else if (path == null && serial == null) {
+                session = K8101Session.open(ctx, vendorId, productId, iface);
+            } else {
+                session = openMatching();
+            }
+            if (session != null) {
+                logger.fine("Device open");
+                arm();
+            }
+        }
+        return session != null;
+    }
+
+    private K8101Session openMatching() throws LibUsbException {
+        DeviceList list = new DeviceList();
+        int result = LibUsb.getDeviceList(ctx, list);
+        if (result < 0) {
+            throw new LibUsbException("Unable to get device list", result);
+        }
+        try {
+            for (Device device : list) {
+                if (matches(device)) {
+                    return K8101Session.open(device, iface);
+                }
+            }
+            return null;
+        } finally {
+            // the open handle keeps its own reference on the device
+            LibUsb.freeDeviceList(list, true);
+        }
+    }
+
+    /* opens one of the boards known from hotplug, without a new enumeration */
+    private K8101Session openKnown() throws LibUsbException {
+        Map<Device, String> known = K8101.boards();
+        try {
+            for (Map.Entry<Device, String> board : known.entrySet()) {
+                if (path != null && !path.equals(board.getValue())) {
+                    continue;
+                }
+                if (serial != null && !matches(board.getKey())) {
+                    continue;
+                }
+                return K8101Session.open(board.getKey(), iface);
+            }
+            return null;
+        } finally {
+            K8101.unref(known);
+        }
+    }
+
+    /**
+     * @return true if the device is a K8101 at the location of this transport
+     */
+    boolean matches(Device device) {
+        DeviceDescriptor descriptor = new DeviceDescriptor();
+        if (LibUsb.getDeviceDescriptor(device, descriptor) != LibUsb.SUCCESS
+                || descriptor.idVendor() != vendorId || descriptor.idProduct() != productId) {
+            return false;
+        }
+        if (path != null && !path.equals(K8101.path(device))) {
+            return false;
+        }
+        return serial == null || serial.equals(serial(device, descriptor));
+    }
+
+    /**
+     * @return the bus number and port chain of a device, e.g. "1-2.3"
+     */
+    static String path(Device device) {
+        ByteBuffer ports = BufferUtils.allocateByteBuffer(7);
+        int depth = LibUsb.getPortNumbers(device, ports);
+        StringBuilder sb = new StringBuilder().append(LibUsb.getBusNumber(device));
+        for (int i = 0; i < depth; i++) {
+            sb.append(i == 0 ? '-' : '.').append(ports.get(i) & 0xff);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Reads the serial number string, which needs to open the device.
+     *
+     * @return the serial number, or null if the device has none or cannot be
+     * opened
+     */
+    static String serial(Device device, DeviceDescriptor descriptor) {
+        if (descriptor.iSerialNumber() == 0) {
+            return null;
+        }
+        DeviceHandle handle = new DeviceHandle();
+        if (LibUsb.open(device, handle) != LibUsb.SUCCESS) {
+            return null;
+        }
+        try {
+            return LibUsb.getStringDescriptor(handle, descriptor.iSerialNumber());
+        } catch (LibUsbException lue) {
+            logger.log(Level.FINE, "cannot read serial number", lue);
+            return null;
+        } finally {
+            LibUsb.close(handle);
+        }
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return session != null && !session.isClosed();
+    }
+
+    private synchronized K8101Session session() throws LibUsbException {
+        if (!open()) {
+            throw new LibUsbException("cannot open device", LibUsb.ERROR_NO_DEVICE);
+        }
+        return session;
+    }
+
+    /**
+     * libusb transfers the whole capacity of a direct buffer: the remaining
+     * bytes of a direct buffer are given as a view of that size, e.g. on the
+     * retry of a partial transfer, and only heap buffers are copied.
+     */
+    private static ByteBuffer exact(ByteBuffer frames) {
+        if (frames.isDirect()) {
+            return frames.position() == 0 && frames.limit() == frames.capacity() ? frames : frames.slice();
+        }
+        ByteBuffer copy = BufferUtils.allocateByteBuffer(frames.remaining());
+        copy.put(frames.duplicate());
+        return copy;
+    }
+
+    @Override
+    public void write(ByteBuffer frames) throws LibUsbException {
+        try {
+            int sent = session().write(endpoint, exact(frames), timeout);
+            if (sent < frames.remaining()) {
+                // timed out, the board holds the bytes it took
+                frames.position(frames.position() + sent);
+                throw new LibUsbException("cannot send data", LibUsb.ERROR_TIMEOUT);
+            }
+        } catch (LibUsbException lue) {
+            // the handle may be stale, reopen on next command, unless the
+            // board was only too slow to take the data
+            if (lue.getErrorCode() != LibUsb.ERROR_TIMEOUT) {
+                close();
+            }
+            throw lue;
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    /* an asynchronous write: the frames, to move them past a partial transfer */
+    private static final class Write {
+        private final ByteBuffer frames;
+        private final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+        private Write(ByteBuffer frames) {
+            this.frames = frames;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> writeAsync(ByteBuffer frames) {
+        Write w = new Write(frames);
+        try {
+            session().submit(endpoint, exact(frames), timeout, this, w);
+        } catch (LibUsbException lue) {
+            close();
+            w.done.completeExceptionally(lue);
+        }
+        return w.done;
+    }
+
+    @Override
+    public void processTransfer(Transfer transfer) {
+        Write w = (Write) transfer.userData();
+        CompletableFuture<Void> done = w.done;
+        int status = transfer.status();
+        int sent = transfer.actualLength();
+        LibUsb.freeTransfer(transfer);
+        if (status == LibUsb.TRANSFER_COMPLETED) {
+            done.complete(null);
+        } else {
+            logger.log(Level.FINE, "transfer failed with status " + status + " after " + sent + " bytes");
+            if (status == LibUsb.TRANSFER_TIMED_OUT) {
+                w.frames.position(w.frames.position() + sent);
+            }
+            if (status == LibUsb.TRANSFER_NO_DEVICE) {
+                close();
+            }
+            done.completeExceptionally(new LibUsbException("cannot send data", toError(status)));
+        }
+    }
+
+    private static int toError(int transferStatus) {
+        if (transferStatus == LibUsb.TRANSFER_TIMED_OUT) {
+            return LibUsb.ERROR_TIMEOUT;
+        } else if (transferStatus == LibUsb.TRANSFER_NO_DEVICE) {
+            return LibUsb.ERROR_NO_DEVICE;
+        } else if (transferStatus == LibUsb.TRANSFER_STALL) {
+            return LibUsb.ERROR_PIPE;
+        } else if (transferStatus == LibUsb.TRANSFER_OVERFLOW) {
+            return LibUsb.ERROR_OVERFLOW;
+        } else if (transferStatus == LibUsb.TRANSFER_CANCELLED) {
+            return LibUsb.ERROR_INTERRUPTED;
+        }
+        return LibUsb.ERROR_IO;
+    }
+
+    @Override
+    public synchronized boolean setReceiver(Consumer<ByteBuffer> receiver) {
+        this.receiver = receiver;
+        if (receiver == null) {
+            stopReading();
+        } else {
+            arm();
+        }
+        return true;
+    }
+
+    /* submits the IN transfer if there is a receiver and none is pending */
+    private synchronized void arm() {
+        if (receiver == null || reading != null || !isOpen()) {
+            return;
+        }
+        try {
+            in.clear();
+            reading = session.submit((byte) (endpoint | LibUsb.ENDPOINT_IN), in, 0, inCallback, null);
+        } catch (LibUsbException lue) {
+            logger.log(Level.WARNING, "Unable to read the device, will retry when reopened", lue);
+        }
+    }
+
+    private void received(Transfer transfer) {
+        int status = transfer.status();
+        Consumer<ByteBuffer> r;
+        K8101Session done = null;
+        synchronized (this) {
+            if (transfer.equals(reading)) {
+                reading = null;
+                done = closing;
+                closing = null;
+            }
+            notifyAll();
+            r = receiver;
+        }
+        if (status == LibUsb.TRANSFER_COMPLETED && transfer.actualLength() > 0 && r != null) {
+            ByteBuffer data = transfer.buffer().duplicate();
+            data.position(0).limit(transfer.actualLength());
+            r.accept(data);
+        }
+        LibUsb.freeTransfer(transfer);
+        if (done != null) {
+            // the close of the session waited for this transfer
+            done.close();
+            logger.fine("Device closed");
+        }
+        if (status == LibUsb.TRANSFER_COMPLETED) {
+            arm();
+        } else if (status != LibUsb.TRANSFER_CANCELLED && status != LibUsb.TRANSFER_NO_DEVICE) {
+            // not rearmed to avoid spinning on a broken endpoint
+            logger.log(Level.WARNING, "read failed with status " + status + ", will retry when reopened");
+        }
+    }
+
+    /**
+     * Cancels the IN transfer and waits for its completion, so that the
+     * handle can be closed. From the event handling thread the completion
+     * cannot be waited for, the transfer is then still live when this returns.
+     *
+     * @return true if no IN transfer is live anymore
+     */
+    private synchronized boolean stopReading() {
+        Transfer armed = reading;
+        if (armed == null) {
+            return true;
+        }
+        LibUsb.cancelTransfer(armed);
+        if (!K8101.isEventThread()) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+            try {
+                long left;
+                while (armed.equals(reading) && (left = deadline - System.nanoTime()) > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(this, left);
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return !armed.equals(reading);
+    }
+
+    /**
+     * Hotplug arrival: the session is reopened on the new device right away,
+     * if it is the board of this transport. A transport without location
+     * keeps the board it already has.
+     *
+     * @return true if the transport took the device
+     */
+    synchronized boolean deviceArrived(Device device) {
+        if (!matches(device) || (path == null && serial == null && isOpen())) {
+            return false;
+        }
+        close();
+        try {
+            session = K8101Session.open(device, iface);
+            arm();
+        } catch (LibUsbException lue) {
+            logger.log(Level.WARNING, "Unable to open session, will retry on next command", lue);
+        }
+        return true;
+    }
+
+    /**
+     * Hotplug removal, the session is closed if it was on that device.
+     *
+     * @return true if the session was on that device
+     */
+    synchronized boolean deviceLeft(Device device) {
+        if (session != null && device.equals(session.device())) {
+            close();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Closes the session. While the IN transfer is live, e.g. when called
+     * from the event handling thread, closing the handle is left to the
+     * completion of that transfer.
+     */
+    @Override
+    public synchronized void close() {
+        if (session != null) {
+            K8101Session s = session;
+            session = null;
+            // a live transfer belongs to the session already closing, if any
+            if (closing == null && !stopReading()) {
+                closing = s;
+                return;
+            }
+            s.close();
+            logger.fine("Device closed");
+        }
+    }
+}
@@ -0,0 +1,96 @@
+
+package fr.seki.dashboard.usb;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * A frame buffer and the emulated screen it mirrors must stay the same.
+ *
+ * @author seb
+ */
+class FrameBufferTest {
+
+    @Test
+    void pixelsOutsideAreIgnored() {
+        FrameBuffer fb = new FrameBuffer();
+        fb.setPixel(-1, 0, true);
+        fb.setPixel(FrameBuffer.WIDTH, 0, true);
+        fb.setPixel(0, FrameBuffer.HEIGHT, true);
+        assertArrayEquals(new byte[FrameBuffer.SIZE], fb.toBitmap());
+        assertFalse(fb.getPixel(-1, 0));
+    }
+
+    @Test
+    void drawingMatchesTheFirmware() {
+        FrameBuffer fb = new FrameBuffer();
+        fb.drawRectangle(3, 4, 40, 30, true);
+        fb.eraseRectangle(8, 9, 10, 10, false);
+        fb.drawLine(0, 0, 127, 63);
+        fb.eraseLine(0, 63, 127, 0);
+        fb.drawPixel(120, 60);
+        EmulatorTransport emu = new EmulatorTransport();
+        new K8101Display("fb-test", emu).batch()
+                .drawRectangle(3, 4, 40, 30, true)
+                .eraseRectangle(8, 9, 10, 10, false)
+                .drawLine(0, 0, 127, 63)
+                .eraseLine(0, 63, 127, 0)
+                .drawPixel(120, 60)
+                .commit().join();
+        assertArrayEquals(emu.snapshot(), fb.toBitmap());
+    }
+
+    @Test
+    void flushKeepsTheScreenInSync() {
+        EmulatorTransport emu = new EmulatorTransport();
+        K8101Display display = new K8101Display("fb-test", emu);
+        FrameBuffer fb = new FrameBuffer();
+        Random random = new Random(8101);
+        for (int round = 0; round < 50; round++) {
+            int x = random.nextInt(FrameBuffer.WIDTH);
+            int y = random.nextInt(FrameBuffer.HEIGHT);
+            int w = 1 + random.nextInt(40);
+            int h = 1 + random.nextInt(20);
+            switch (random.nextInt(4)) {
+                case 0:
+                    fb.drawRectangle(x, y, w, h, random.nextBoolean());
+                    break;
+                case 1:
+                    fb.eraseRectangle(x, y, w, h, random.nextBoolean());
+                    break;
+                case 2:
+                    fb.drawLine(x, y, random.nextInt(FrameBuffer.WIDTH), random.nextInt(FrameBuffer.HEIGHT));
+                    break;
+                default:
+                    fb.setPixel(x, y, random.nextBoolean());
+            }
+            fb.flush(display).join();
+            assertArrayEquals(fb.toBitmap(), emu.snapshot(), "round " + round);
+        }
+        assertEquals(0, emu.getErrors());
+    }
+
+    @Test
+    void onlyDifferencesAreSent() {
+        LoopbackTransport loopback = new LoopbackTransport();
+        K8101Display display = new K8101Display("fb-test", loopback);
+        FrameBuffer fb = new FrameBuffer();
+        fb.drawRectangle(0, 0, 128, 64, true);
+        fb.flush(display).join();
+        long first = loopback.byteCount();
+        assertTrue(first > 0);
+
+        fb.flush(display).join();
+        assertEquals(first, loopback.byteCount());
+
+        fb.erasePixel(5, 5);
+        fb.flush(display).join();
+        // a single erasepixel
+        assertEquals(first + 8, loopback.byteCount());
+    }
+}
@@ -0,0 +1,200 @@
+package fr.seki.dashboard.usb;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Bursts of updates are merged into the latest ones, paced by the device and
+ * by maxFps, unless sent now.
+ *
+ * @author seb
+ */
+class FrameSchedulerTest {
+
+    /* an emulator holding each write until it is let through */
+    private static final class GatedTransport implements K8101Transport {
+
+        final EmulatorTransport screen = new EmulatorTransport();
+        final Semaphore entered = new Semaphore(0);
+        final Semaphore gate = new Semaphore(0);
+        final AtomicInteger writes = new AtomicInteger();
+        private final AtomicInteger inside = new AtomicInteger();
+        volatile boolean overlapped;
+
+        @Override
+        public boolean open() {
+            return true;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void write(ByteBuffer frames) {
+            if (inside.incrementAndGet() > 1) {
+                overlapped = true;
+            }
+            writes.incrementAndGet();
+            entered.release();
+            gate.acquireUninterruptibly();
+            screen.write(frames);
+            inside.decrementAndGet();
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static Consumer<Frame> value(int x, int v) {
+        return f -> f.eraseRectangle(x, 0, 30, 8, true).drawText(Integer.toString(v), x, 0, 30, K8101.TextSize.big);
+    }
+
+    @Test
+    void burstKeepsTheLatestUpdates() throws Exception {
+        GatedTransport transport = new GatedTransport();
+        FrameScheduler scheduler = new FrameScheduler(new K8101Display("scheduler-test", transport), 1000);
+        try {
+            CompletableFuture<Void> first = scheduler.update("a", value(0, -1));
+            assertTrue(transport.entered.tryAcquire(5, TimeUnit.SECONDS));
+            // the device is busy with the first frame
+            List<CompletableFuture<Void>> burst = new ArrayList<CompletableFuture<Void>>();
+            for (int i = 0; i < 100; i++) {
+                burst.add(scheduler.update("a", value(0, i)));
+                burst.add(scheduler.update("b", value(64, 1000 + i)));
+            }
+            for (int i = 0; i < 198; i++) {
+                // superseded before being sent
+                assertTrue(burst.get(i).isDone(), "update " + i);
+            }
+            assertFalse(burst.get(198).isDone());
+            transport.gate.release(100);
+            first.get(5, TimeUnit.SECONDS);
+            burst.get(198).get(5, TimeUnit.SECONDS);
+            burst.get(199).get(5, TimeUnit.SECONDS);
+            for (CompletableFuture<Void> f : burst) {
+                assertFalse(f.isCompletedExceptionally());
+            }
+            assertEquals(2, transport.writes.get());
+            assertFalse(transport.overlapped);
+
+            EmulatorTransport expected = new EmulatorTransport();
+            Frame frame = new K8101Display("scheduler-test", expected).batch();
+            value(0, -1).accept(frame);
+            value(0, 99).accept(frame);
+            value(64, 1099).accept(frame);
+            frame.commit().join();
+            assertArrayEquals(expected.snapshot(), transport.screen.snapshot());
+        } finally {
+            scheduler.close();
+            transport.gate.release(100);
+        }
+    }
+
+    @Test
+    void noFrameStartsBeforeThePreviousCompletes() throws Exception {
+        GatedTransport transport = new GatedTransport();
+        FrameScheduler scheduler = new FrameScheduler(new K8101Display("scheduler-test", transport), 1000);
+        try {
+            scheduler.update("a", value(0, 1));
+            assertTrue(transport.entered.tryAcquire(5, TimeUnit.SECONDS));
+            CompletableFuture<Void> now = scheduler.updateNow("b", value(64, 2));
+            // even an urgent update waits for the device
+            assertFalse(transport.entered.tryAcquire(200, TimeUnit.MILLISECONDS));
+            assertEquals(1, transport.writes.get());
+            transport.gate.release();
+            assertTrue(transport.entered.tryAcquire(5, TimeUnit.SECONDS));
+            transport.gate.release();
+            now.get(5, TimeUnit.SECONDS);
+            assertEquals(2, transport.writes.get());
+            assertFalse(transport.overlapped);
+        } finally {
+            scheduler.close();
+            transport.gate.release(100);
+        }
+    }
+
+    @Test
+    void updateNowSkipsThePacing() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        // a frame every 10 seconds
+        FrameScheduler scheduler = new FrameScheduler(new K8101Display("scheduler-test", transport), 0.1);
+        try {
+            scheduler.update("a", value(0, 1)).get(5, TimeUnit.SECONDS);
+            CompletableFuture<Void> paced = scheduler.update("a", value(0, 2));
+            Thread.sleep(200);
+            assertFalse(paced.isDone());
+            assertEquals(1, transport.writeCount());
+            CompletableFuture<Void> now = scheduler.updateNow("b", value(64, 3));
+            now.get(5, TimeUnit.SECONDS);
+            // the pending update of the other area goes with it
+            assertTrue(paced.isDone());
+            assertEquals(2, transport.writeCount());
+        } finally {
+            scheduler.close();
+        }
+    }
+
+    @Test
+    void redrawReplacesEveryPendingUpdate() throws Exception {
+        GatedTransport transport = new GatedTransport();
+        FrameScheduler scheduler = new FrameScheduler(new K8101Display("scheduler-test", transport), 1000);
+        try {
+            scheduler.update("a", value(0, 1));
+            assertTrue(transport.entered.tryAcquire(5, TimeUnit.SECONDS));
+            CompletableFuture<Void> a = scheduler.update("a", value(0, 2));
+            CompletableFuture<Void> b = scheduler.update("b", value(64, 3));
+            CompletableFuture<Void> screen = scheduler.redraw(f -> f.clearAll().drawPixel(5, 5));
+            assertTrue(a.isDone());
+            assertTrue(b.isDone());
+            CompletableFuture<Void> after = scheduler.update("a", value(0, 4));
+            transport.gate.release(100);
+            screen.get(5, TimeUnit.SECONDS);
+            after.get(5, TimeUnit.SECONDS);
+            assertEquals(2, transport.writes.get());
+
+            EmulatorTransport expected = new EmulatorTransport();
+            Frame frame = new K8101Display("scheduler-test", expected).batch().clearAll().drawPixel(5, 5);
+            value(0, 4).accept(frame);
+            frame.commit().join();
+            assertArrayEquals(expected.snapshot(), transport.screen.snapshot());
+        } finally {
+            scheduler.close();
+            transport.gate.release(100);
+        }
+    }
+
+    @Test
+    void closeCancelsThePendingUpdates() throws Exception {
+        GatedTransport transport = new GatedTransport();
+        FrameScheduler scheduler = new FrameScheduler(new K8101Display("scheduler-test", transport), 1000);
+        try {
+            scheduler.update("a", value(0, 1));
+            assertTrue(transport.entered.tryAcquire(5, TimeUnit.SECONDS));
+            CompletableFuture<Void> pending = scheduler.update("a", value(0, 2));
+            scheduler.close();
+            assertTrue(pending.isCancelled());
+            assertTrue(scheduler.update("a", value(0, 3)).isCompletedExceptionally());
+        } finally {
+            transport.gate.release(100);
+        }
+    }
+}
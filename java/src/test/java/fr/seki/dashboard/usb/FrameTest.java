@@ -0,0 +1,102 @@
+
+package fr.seki.dashboard.usb;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Batches rendered by the emulator, and their split in transfers.
+ *
+ * @author seb
+ */
+class FrameTest {
+
+    @Test
+    void commandsReachTheScreen() {
+        EmulatorTransport emu = new EmulatorTransport();
+        K8101Display display = new K8101Display("frame-test", emu);
+        display.batch()
+                .clearAll()
+                .drawRectangle(10, 10, 20, 10, true)
+                .eraseRectangle(12, 12, 4, 4, true)
+                .drawLine(0, 63, 127, 63)
+                .drawPixel(100, 5)
+                .drawText("Hi", 40, 20, 0, K8101.TextSize.small)
+                .setContrast(12)
+                .commit().join();
+        assertEquals(0, emu.getErrors());
+        assertTrue(emu.isDark(10, 10));
+        assertTrue(emu.isDark(29, 19));
+        assertFalse(emu.isDark(13, 13));
+        assertTrue(emu.isDark(0, 63));
+        assertTrue(emu.isDark(127, 63));
+        assertTrue(emu.isDark(100, 5));
+        assertFalse(emu.isDark(101, 5));
+        assertEquals(12, emu.getContrast());
+    }
+
+    /* the outline runs from x to x + width, as it always did */
+    @Test
+    void outlineIsFourLines() {
+        EmulatorTransport outline = new EmulatorTransport();
+        new K8101Display("frame-test", outline).batch().drawRectangle(5, 6, 30, 20, false).commit().join();
+        EmulatorTransport lines = new EmulatorTransport();
+        new K8101Display("frame-test", lines).batch()
+                .drawLine(5, 6, 35, 6)
+                .drawLine(5, 26, 35, 26)
+                .drawLine(5, 6, 5, 26)
+                .drawLine(35, 6, 35, 26)
+                .commit().join();
+        assertArrayEquals(lines.snapshot(), outline.snapshot());
+        assertFalse(outline.isDark(6, 7));
+    }
+
+    @Test
+    void batchIsSplitByCommands() {
+        LoopbackTransport loopback = new LoopbackTransport();
+        K8101Display display = new K8101Display("frame-test", loopback);
+        display.setOptimizing(false);
+        Frame frame = display.batch(2, Integer.MAX_VALUE);
+        for (int i = 0; i < 5; i++) {
+            frame.drawPixel(i, i);
+        }
+        assertEquals(5, frame.size());
+        frame.commit().join();
+        assertEquals(3, loopback.writeCount());
+        assertEquals(5 * 8, loopback.byteCount());
+        assertEquals(0, frame.size());
+    }
+
+    @Test
+    void batchIsSplitByBytes() {
+        LoopbackTransport loopback = new LoopbackTransport();
+        K8101Display display = new K8101Display("frame-test", loopback);
+        display.setOptimizing(false);
+        // three pixels of 8 bytes per transfer
+        Frame frame = display.batch(Integer.MAX_VALUE, 24);
+        for (int i = 0; i < 7; i++) {
+            frame.drawPixel(i, 0);
+        }
+        frame.commit().join();
+        assertEquals(3, loopback.writeCount());
+        assertEquals(7 * 8, loopback.byteCount());
+    }
+
+    @Test
+    void appendedFrameIsSentWithTheOther() {
+        LoopbackTransport loopback = new LoopbackTransport();
+        K8101Display display = new K8101Display("frame-test", loopback);
+        display.setOptimizing(false);
+        Frame other = display.batch().drawPixel(1, 1).beep(1);
+        Frame frame = display.batch().clearAll().append(other);
+        assertEquals(3, frame.size());
+        assertEquals(6 + 8 + 7, frame.byteCount());
+        frame.commit().join();
+        assertEquals(1, loopback.writeCount());
+        assertEquals(6 + 8 + 7, loopback.byteCount());
+    }
+}
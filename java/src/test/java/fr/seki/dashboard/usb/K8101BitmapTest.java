@@ -0,0 +1,110 @@
+
+package fr.seki.dashboard.usb;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Every path of the packing gives the bitmap of a pixel by pixel reference.
+ *
+ * @author seb
+ */
+class K8101BitmapTest {
+
+    private static final int[] TYPES = {
+        BufferedImage.TYPE_BYTE_BINARY,
+        BufferedImage.TYPE_BYTE_GRAY,
+        BufferedImage.TYPE_INT_RGB,
+        BufferedImage.TYPE_INT_ARGB,
+        BufferedImage.TYPE_3BYTE_BGR,
+        BufferedImage.TYPE_4BYTE_ABGR,
+        BufferedImage.TYPE_USHORT_565_RGB
+    };
+
+    private static boolean dark(int rgb) {
+        return ((rgb >> 16 | rgb >> 8 | rgb) & 0x80) == 0;
+    }
+
+    /* column bytes of 8 rows, the top pixel in the LSB */
+    private static byte[] reference(BufferedImage img) {
+        FrameBuffer fb = new FrameBuffer();
+        for (int y = 0; y < Math.min(img.getHeight(), FrameBuffer.HEIGHT); y++) {
+            for (int x = 0; x < Math.min(img.getWidth(), FrameBuffer.WIDTH); x++) {
+                fb.setPixel(x, y, dark(img.getRGB(x, y)));
+            }
+        }
+        return fb.toBitmap();
+    }
+
+    private static BufferedImage random(int type, int width, int height, Random random) {
+        BufferedImage img = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                img.setRGB(x, y, 0xff000000 | random.nextInt(0x1000000));
+            }
+        }
+        return img;
+    }
+
+    @Test
+    void singlePixel() {
+        BufferedImage img = new BufferedImage(FrameBuffer.WIDTH, FrameBuffer.HEIGHT, BufferedImage.TYPE_INT_RGB);
+        img.getGraphics().fillRect(0, 0, FrameBuffer.WIDTH, FrameBuffer.HEIGHT);
+        img.setRGB(5, 10, 0);
+        byte[] bitmap = K8101Bitmap.toBitmap(img);
+        byte[] expected = new byte[FrameBuffer.SIZE];
+        expected[FrameBuffer.WIDTH + 5] = 1 << 2;
+        assertArrayEquals(expected, bitmap);
+    }
+
+    @Test
+    void everyImageType() {
+        Random random = new Random(8101);
+        for (int type : TYPES) {
+            for (int[] size : new int[][]{{128, 64}, {100, 50}, {200, 80}}) {
+                BufferedImage img = random(type, size[0], size[1], random);
+                assertArrayEquals(reference(img), K8101Bitmap.toBitmap(img), "type " + type + " " + size[0] + "x" + size[1]);
+            }
+        }
+    }
+
+    @Test
+    void subImage() {
+        BufferedImage img = random(BufferedImage.TYPE_INT_RGB, 200, 100, new Random(1));
+        BufferedImage sub = img.getSubimage(30, 20, 128, 64);
+        assertArrayEquals(reference(sub), K8101Bitmap.toBitmap(sub));
+    }
+
+    @Test
+    void packAtAnOffset() {
+        BufferedImage img = random(BufferedImage.TYPE_INT_RGB, 128, 64, new Random(2));
+        int[] argb = img.getRGB(0, 0, 128, 64, null, 0, 128);
+        byte[] dst = new byte[FrameBuffer.SIZE + 10];
+        K8101Bitmap.pack(argb, 128, 64, dst, 7);
+        byte[] packed = new byte[FrameBuffer.SIZE];
+        System.arraycopy(dst, 7, packed, 0, FrameBuffer.SIZE);
+        assertArrayEquals(reference(img), packed);
+        assertEquals(0, dst[6]);
+        assertEquals(0, dst[7 + FrameBuffer.SIZE]);
+    }
+
+    @Test
+    void packRows() {
+        Random random = new Random(3);
+        byte[] rows = new byte[FrameBuffer.SIZE];
+        random.nextBytes(rows);
+        FrameBuffer fb = new FrameBuffer();
+        for (int y = 0; y < FrameBuffer.HEIGHT; y++) {
+            for (int x = 0; x < FrameBuffer.WIDTH; x++) {
+                fb.setPixel(x, y, (rows[y * 16 + (x >> 3)] & 0x80 >>> (x & 7)) != 0);
+            }
+        }
+        byte[] dst = new byte[FrameBuffer.SIZE];
+        K8101Bitmap.packRows(rows, dst, 0);
+        assertArrayEquals(fb.toBitmap(), dst);
+    }
+}
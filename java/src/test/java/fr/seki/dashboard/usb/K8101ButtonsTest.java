@@ -0,0 +1,83 @@
+
+package fr.seki.dashboard.usb;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Parsing of the notifications of the button, however the reads cut them.
+ *
+ * @author seb
+ */
+class K8101ButtonsTest {
+
+    private final AtomicInteger shortPresses = new AtomicInteger();
+    private final AtomicInteger longPresses = new AtomicInteger();
+    private CountDownLatch presses;
+
+    private K8101Buttons buttons(int expected) {
+        presses = new CountDownLatch(expected);
+        K8101Buttons buttons = new K8101Buttons(new K8101Display("buttons-test", new LoopbackTransport()));
+        buttons.add(new IK8101ButtonListener() {
+            @Override
+            public void buttonShortPress(K8101Display display) {
+                shortPresses.incrementAndGet();
+                presses.countDown();
+            }
+
+            @Override
+            public void buttonLongPress(K8101Display display) {
+                longPresses.incrementAndGet();
+                presses.countDown();
+            }
+        });
+        return buttons;
+    }
+
+    private void await() throws InterruptedException {
+        assertTrue(presses.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void wholeNotifications() throws InterruptedException {
+        K8101Buttons buttons = buttons(3);
+        buttons.accept(ByteBuffer.wrap(K8101Buttons.SHORT_PRESS));
+        buttons.accept(ByteBuffer.wrap(K8101Buttons.LONG_PRESS));
+        buttons.accept(ByteBuffer.wrap(K8101Buttons.SHORT_PRESS));
+        await();
+        assertEquals(2, shortPresses.get());
+        assertEquals(1, longPresses.get());
+    }
+
+    @Test
+    void splitReads() throws InterruptedException {
+        K8101Buttons buttons = buttons(2);
+        byte[] both = new byte[10];
+        System.arraycopy(K8101Buttons.LONG_PRESS, 0, both, 0, 5);
+        System.arraycopy(K8101Buttons.SHORT_PRESS, 0, both, 5, 5);
+        for (byte b : both) {
+            buttons.accept(ByteBuffer.wrap(new byte[]{b}));
+        }
+        await();
+        assertEquals(1, shortPresses.get());
+        assertEquals(1, longPresses.get());
+    }
+
+    @Test
+    void resyncAfterNoise() throws InterruptedException {
+        K8101Buttons buttons = buttons(2);
+        // noise, a cut notification, then both kinds
+        buttons.accept(ByteBuffer.wrap(new byte[]{0x12, (byte) 0xFF, 0x05, (byte) 0xFF, 0x00,
+            (byte) 0xFF, (byte) 0xFF, 0x05, (byte) 0xAA, (byte) 0xAF, 0x00}));
+        buttons.accept(ByteBuffer.wrap(K8101Buttons.SHORT_PRESS));
+        await();
+        assertEquals(1, shortPresses.get());
+        assertEquals(1, longPresses.get());
+    }
+}
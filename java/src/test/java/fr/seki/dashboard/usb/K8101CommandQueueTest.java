@@ -0,0 +1,147 @@
+
+package fr.seki.dashboard.usb;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+
+/**
+ * Retries of the asynchronous writer keep the commands in order.
+ *
+ * @author seb
+ */
+class K8101CommandQueueTest {
+
+    /* a transfer started on the transport, completed by the test */
+    private static final class Transfer {
+        private final ByteBuffer frames;
+        private final byte[] bytes;
+        private final int x; // of the pixel drawn, if it starts with one
+        private final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+        private Transfer(ByteBuffer frames) {
+            this.frames = frames;
+            this.bytes = new byte[frames.remaining()];
+            frames.duplicate().get(bytes);
+            this.x = bytes.length > 4 ? bytes[4] : -1;
+        }
+
+        /* times out after the board took some bytes, as UsbTransport reports it */
+        private void timeout(int taken) {
+            frames.position(frames.position() + taken);
+            done.completeExceptionally(TIMEOUT);
+        }
+    }
+
+    private static final class ManualTransport implements K8101Transport {
+
+        private final LinkedBlockingQueue<Transfer> started = new LinkedBlockingQueue<Transfer>();
+
+        @Override
+        public boolean open() {
+            return true;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void write(ByteBuffer frames) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<Void> writeAsync(ByteBuffer frames) {
+            Transfer t = new Transfer(frames);
+            started.add(t);
+            return t.done;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        private Transfer next() throws InterruptedException {
+            Transfer t = started.poll(5, TimeUnit.SECONDS);
+            assertNotNull(t, "no transfer started");
+            return t;
+        }
+    }
+
+    private static final LibUsbException TIMEOUT = new LibUsbException("timeout", LibUsb.ERROR_TIMEOUT);
+
+    private final ManualTransport transport = new ManualTransport();
+    private final K8101Display display = new K8101Display("queue-test", transport);
+
+    @AfterEach
+    void stop() {
+        display.disableAsync();
+    }
+
+    @Test
+    void nextCommandWaitsForTheRetry() throws InterruptedException {
+        display.enableAsync(8, 2, K8101.Backpressure.block);
+        CompletableFuture<Void> a = display.drawPixel(1, 1);
+        Transfer first = transport.next();
+        first.done.completeExceptionally(TIMEOUT);
+        CompletableFuture<Void> b = display.drawPixel(2, 2);
+        Transfer retry = transport.next();
+        assertEquals(1, retry.x);
+        assertNull(transport.started.poll(50, TimeUnit.MILLISECONDS));
+        retry.done.complete(null);
+        Transfer second = transport.next();
+        assertEquals(2, second.x);
+        second.done.complete(null);
+        a.join();
+        b.join();
+    }
+
+    @Test
+    void retryResumesWhereTheBoardStopped() throws InterruptedException {
+        display.enableAsync(8, 1, K8101.Backpressure.block);
+        Frame frame = display.batch();
+        frame.drawPixel(1, 1).drawPixel(2, 2).drawPixel(3, 3);
+        byte[] sent = new byte[frame.byteCount()];
+        frame.frames().duplicate().get(sent);
+        CompletableFuture<Void> f = frame.commit();
+        Transfer first = transport.next();
+        // the first pixel and 3 bytes of the second one
+        first.timeout(11);
+        Transfer retry = transport.next();
+        assertEquals(sent.length - 11, retry.bytes.length);
+        assertEquals(sent[11], retry.bytes[0]);
+        retry.done.complete(null);
+        f.join();
+    }
+
+    @Test
+    void noRetryBehindALaterTransfer() throws InterruptedException {
+        display.enableAsync(8, 2, K8101.Backpressure.block);
+        CompletableFuture<Void> a = display.drawPixel(1, 1);
+        Transfer first = transport.next();
+        CompletableFuture<Void> b = display.drawPixel(2, 2);
+        Transfer second = transport.next();
+        assertEquals(2, second.x);
+        first.done.completeExceptionally(TIMEOUT);
+        second.done.complete(null);
+        assertNull(transport.started.poll(100, TimeUnit.MILLISECONDS));
+        assertTrue(a.isCompletedExceptionally());
+        b.join();
+    }
+}
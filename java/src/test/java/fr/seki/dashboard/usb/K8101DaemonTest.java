@@ -0,0 +1,117 @@
+
+package fr.seki.dashboard.usb;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * A daemon on an emulated board, with raw clients.
+ *
+ * @author seb
+ */
+class K8101DaemonTest {
+
+    @TempDir
+    Path dir;
+
+    private EmulatorTransport board;
+    private K8101Daemon daemon;
+    private Thread thread;
+
+    @BeforeEach
+    void start() throws IOException {
+        board = new EmulatorTransport();
+        daemon = new K8101Daemon(dir.resolve("k8101.sock"), new K8101Display("daemon-test", board), 100);
+        thread = new Thread(() -> {
+            try {
+                daemon.run();
+            } catch (IOException ioe) {
+                throw new IllegalStateException(ioe);
+            }
+        });
+        thread.start();
+    }
+
+    @AfterEach
+    void stop() throws InterruptedException {
+        daemon.close();
+        thread.join();
+    }
+
+    private SocketChannel connect() throws IOException {
+        SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        channel.connect(UnixDomainSocketAddress.of(daemon.getSocket()));
+        return channel;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() - end < 0, "timed out");
+            Thread.sleep(5);
+        }
+    }
+
+    private static ByteBuffer layer(int x, int y, int width, int height, int checksumError) {
+        byte[] frame = {(byte) 0xAA, 12, 0, K8101Daemon.LAYER, (byte) x, (byte) y, (byte) width, (byte) height, 0, 0, 0, 0x55};
+        int sum = 0;
+        for (int i = 1; i < 10; i++) {
+            sum += frame[i];
+        }
+        frame[10] = (byte) (sum + checksumError);
+        return ByteBuffer.wrap(frame);
+    }
+
+    @Test
+    void layerWithAWrongChecksumIsIgnored() throws IOException, InterruptedException {
+        try (SocketChannel client = connect()) {
+            // an empty region would hide the drawing
+            client.write(layer(0, 0, 0, 0, 1));
+            ByteBuffer rect = ByteBuffer.allocate(16);
+            K8101Encoder.put(rect, K8101.Command.drawrect, 0, 0, 128, 64);
+            rect.flip();
+            client.write(rect);
+            await(() -> board.isDark(0, 0) && board.isDark(127, 63));
+
+            client.write(layer(0, 0, 64, 64, 0));
+            await(() -> !board.isDark(127, 63));
+            assertTrue(board.isDark(0, 0));
+        }
+    }
+
+    @Test
+    void notificationsReachEveryClient() throws IOException, InterruptedException {
+        try (SocketChannel first = connect(); SocketChannel second = connect()) {
+            await(() -> daemon.getClients() == 2);
+            int presses = 50;
+            for (int i = 0; i < presses; i++) {
+                board.pressButton(i % 2 != 0);
+            }
+            for (SocketChannel client : new SocketChannel[]{first, second}) {
+                ByteBuffer in = ByteBuffer.allocate(presses * 5);
+                while (in.hasRemaining()) {
+                    assertFalse(client.read(in) < 0);
+                }
+                for (int i = 0; i < presses; i++) {
+                    byte[] notification = new byte[5];
+                    in.get(i * 5, notification);
+                    assertArrayEquals(i % 2 != 0 ? K8101Buttons.LONG_PRESS : K8101Buttons.SHORT_PRESS, notification);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,243 @@
+
+package fr.seki.dashboard.usb;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+
+/**
+ * Settings are filtered only once the board took them, a write that timed
+ * out part way is resumed, and concurrent callers write one at a time.
+ *
+ * @author seb
+ */
+class K8101DisplayTest {
+
+    /* counts the writes, fails them on demand */
+    private static final class FailingTransport implements K8101Transport {
+
+        private boolean open;
+        volatile boolean failing;
+        volatile int writes;
+
+        @Override
+        public boolean open() {
+            open = true;
+            return true;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void write(ByteBuffer frames) throws IOException {
+            writes++;
+            if (failing) {
+                throw new IOException("broken pipe");
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+
+    /* takes some bytes then times out once, as a slow board over USB */
+    private static final class SlowTransport implements K8101Transport {
+
+        private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        private int taken = 13;
+
+        @Override
+        public boolean open() {
+            return true;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void write(ByteBuffer frames) {
+            int n = taken > 0 ? Math.min(taken, frames.remaining()) : frames.remaining();
+            byte[] b = new byte[n];
+            frames.duplicate().get(b);
+            received.write(b, 0, n);
+            if (taken > 0) {
+                taken = 0;
+                frames.position(frames.position() + n);
+                throw new LibUsbException("cannot send data", LibUsb.ERROR_TIMEOUT);
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /* records whether two writes or a write and a close ever overlapped */
+    private static final class OverlapTransport implements K8101Transport {
+
+        private final AtomicInteger inside = new AtomicInteger();
+        volatile boolean overlapped;
+        final AtomicInteger writes = new AtomicInteger();
+
+        @Override
+        public boolean open() {
+            return true;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void write(ByteBuffer frames) {
+            enter();
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            frames.position(frames.limit());
+            writes.incrementAndGet();
+            inside.decrementAndGet();
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+            enter();
+            inside.decrementAndGet();
+        }
+
+        private void enter() {
+            if (inside.incrementAndGet() > 1) {
+                overlapped = true;
+            }
+        }
+    }
+
+    @Test
+    void concurrentWritesAreSerialized() throws InterruptedException {
+        OverlapTransport transport = new OverlapTransport();
+        K8101Display display = new K8101Display("display-test", transport);
+        CountDownLatch go = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            int x = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    go.await();
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                for (int n = 0; n < 20; n++) {
+                    display.drawPixel(x, n).join();
+                }
+            });
+            threads[i].start();
+        }
+        go.countDown();
+        Thread.sleep(20);
+        display.close();
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(80, transport.writes.get());
+        assertFalse(transport.overlapped);
+    }
+
+    @Test
+    void timeoutIsResumed() {
+        SlowTransport transport = new SlowTransport();
+        K8101Display display = new K8101Display("display-test", transport);
+        display.setOptimizing(false);
+        Frame frame = display.batch().drawPixel(1, 1).drawLine(0, 0, 10, 10).drawPixel(2, 2);
+        byte[] sent = new byte[frame.byteCount()];
+        frame.frames().duplicate().get(sent);
+        frame.commit().join();
+        assertArrayEquals(sent, transport.received.toByteArray());
+    }
+
+    @Test
+    void resumedBufferIsGivenBackUnchanged() {
+        SlowTransport transport = new SlowTransport();
+        K8101Display display = new K8101Display("display-test", transport);
+        ByteBuffer cmds = display.batch().drawLine(0, 0, 10, 10).drawPixel(2, 2).frames();
+        int limit = cmds.limit();
+        display.sendBatch(cmds).join();
+        assertEquals(0, cmds.position());
+        assertEquals(limit, cmds.limit());
+        assertEquals(limit, transport.received.size());
+    }
+
+    @Test
+    void settingOnTheBoardIsNotSentAgain() {
+        FailingTransport transport = new FailingTransport();
+        K8101Display display = new K8101Display("display-test", transport);
+        display.setStateReplay(true);
+        display.setContrast(10).join();
+        display.setContrast(10).join();
+        display.setInverted(true).join();
+        display.setInverted(true).join();
+        assertEquals(2, transport.writes);
+    }
+
+    @Test
+    void failedSettingIsUnknown() {
+        FailingTransport transport = new FailingTransport();
+        K8101Display display = new K8101Display("display-test", transport);
+        display.setStateReplay(true);
+        display.setContrast(10).join();
+        transport.failing = true;
+        assertTrue(display.setContrast(20).isCompletedExceptionally());
+        transport.failing = false;
+        int writes = transport.writes;
+        // the board may show 10 or 20
+        display.setContrast(10).join();
+        assertEquals(writes + 1, transport.writes);
+        display.setContrast(10).join();
+        assertEquals(writes + 1, transport.writes);
+    }
+
+    @Test
+    void batchSettingIsKnownOnceSent() {
+        FailingTransport transport = new FailingTransport();
+        K8101Display display = new K8101Display("display-test", transport);
+        display.setStateReplay(true);
+        display.batch().setContrast(7).setInverted(false).drawPixel(1, 1).commit().join();
+        assertEquals(7, display.knownContrast());
+        assertEquals(0, display.knownInverted());
+        transport.failing = true;
+        display.batch().setInverted(true).commit();
+        assertEquals(7, display.knownContrast());
+        assertEquals(-1, display.knownInverted());
+    }
+}
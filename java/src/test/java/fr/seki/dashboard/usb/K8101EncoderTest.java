@@ -0,0 +1,106 @@
+
+package fr.seki.dashboard.usb;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The frames of the encoder, byte for byte, against the protocol of the
+ * README.
+ *
+ * @author seb
+ */
+class K8101EncoderTest {
+
+    private static byte[] bytes(int... values) {
+        byte[] b = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            b[i] = (byte) values[i];
+        }
+        return b;
+    }
+
+    private static byte[] written(ByteBuffer dst) {
+        dst.flip();
+        byte[] b = new byte[dst.remaining()];
+        dst.get(b);
+        return b;
+    }
+
+    @Test
+    void commandWithoutArgument() {
+        ByteBuffer dst = ByteBuffer.allocate(16);
+        K8101Encoder.put(dst, K8101.Command.clearall);
+        assertArrayEquals(bytes(0xAA, 0x06, 0x00, 0x02, 0x08, 0x55), written(dst));
+    }
+
+    @Test
+    void beep() {
+        ByteBuffer dst = ByteBuffer.allocate(16);
+        K8101Encoder.put(dst, K8101.Command.beep, 2);
+        assertArrayEquals(bytes(0xAA, 0x07, 0x00, 0x06, 0x02, 0x0F, 0x55), written(dst));
+    }
+
+    @Test
+    void drawPixel() {
+        ByteBuffer dst = ByteBuffer.allocate(16);
+        K8101Encoder.put(dst, K8101.Command.drawpixel, 0, 1);
+        assertArrayEquals(bytes(0xAA, 0x08, 0x00, 0x09, 0x00, 0x01, 0x12, 0x55), written(dst));
+    }
+
+    @Test
+    void lineAnnouncesSixBytesTooMany() {
+        ByteBuffer dst = ByteBuffer.allocate(16);
+        K8101Encoder.put(dst, K8101.Command.drawline, 0, 0, 127, 63);
+        byte[] frame = written(dst);
+        assertArrayEquals(bytes(0xAA, 0x10, 0x00, 0x12, 0x00, 0x00, 0x7F, 0x3F, 0xE0, 0x55), frame);
+        assertEquals(frame.length, K8101Encoder.frameLength(ByteBuffer.wrap(frame), 0));
+    }
+
+    @Test
+    void rectangleAnnouncesSixBytesTooMany() {
+        ByteBuffer dst = ByteBuffer.allocate(16);
+        K8101Encoder.put(dst, K8101.Command.eraserect, 1, 2, 3, 4);
+        byte[] frame = written(dst);
+        assertArrayEquals(bytes(0xAA, 0x10, 0x00, 0x08, 0x01, 0x02, 0x03, 0x04, 0x22, 0x55), frame);
+        assertEquals(frame.length, K8101Encoder.frameLength(ByteBuffer.wrap(frame), 0));
+    }
+
+    @Test
+    void textIsFollowedByAZero() {
+        ByteBuffer dst = ByteBuffer.allocate(32);
+        K8101Encoder.putText(dst, "Hi", 1, 2, 20, K8101.TextSize.big);
+        byte[] frame = written(dst);
+        assertArrayEquals(bytes(0xAA, 0x0B, 0x00, 0x04, 0x01, 0x02, 0x14, 'H', 'i', 0x00, 0xD7, 0x55), frame);
+        assertEquals(frame.length, K8101Encoder.textLength("Hi"));
+        assertEquals(frame.length, K8101Encoder.frameLength(ByteBuffer.wrap(frame), 0));
+    }
+
+    @Test
+    void smallText() {
+        ByteBuffer dst = ByteBuffer.allocate(32);
+        K8101Encoder.putText(dst, "A", 0, 0, 0, K8101.TextSize.small);
+        assertArrayEquals(bytes(0xAA, 0x0A, 0x00, 0x05, 0x00, 0x00, 0x00, 'A', 0x00, 0x50, 0x55), written(dst));
+    }
+
+    @Test
+    void bitmapIsFollowedByAZero() {
+        byte[] bitmap = new byte[FrameBuffer.SIZE];
+        bitmap[0] = 0x01;
+        bitmap[1023] = (byte) 0x80;
+        ByteBuffer dst = ByteBuffer.allocate(K8101Encoder.MAX_FRAME);
+        K8101Encoder.putBitmap(dst, bitmap);
+        byte[] frame = written(dst);
+        assertEquals(1031, frame.length);
+        assertArrayEquals(bytes(0xAA, 0x06, 0x04, 0x01), Arrays.copyOf(frame, 4));
+        assertEquals(0x01, frame[4]);
+        assertEquals((byte) 0x80, frame[1027]);
+        // 0x06 + 0x04 + 0x01 + 0x01 + 0x80
+        assertArrayEquals(bytes(0x00, 0x8C, 0x55), Arrays.copyOfRange(frame, 1028, 1031));
+        assertEquals(frame.length, K8101Encoder.frameLength(ByteBuffer.wrap(frame), 0));
+    }
+}
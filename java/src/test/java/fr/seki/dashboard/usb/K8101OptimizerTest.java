@@ -0,0 +1,214 @@
+
+package fr.seki.dashboard.usb;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Random frames give the same board, screen and settings, sent as they are
+ * or optimized.
+ *
+ * @author seb
+ */
+class K8101OptimizerTest {
+
+    private static final int FRAMES = 5000;
+
+    /* appends a random command, biased to small regions so that runs form */
+    private static void randomCommand(ByteBuffer dst, Random random, int ox, int oy, boolean local) {
+        int x = local ? ox + random.nextInt(10) : random.nextInt(140);
+        int y = local ? oy + random.nextInt(10) : random.nextInt(70);
+        int x2 = random.nextBoolean() ? x : random.nextInt(130);
+        int y2 = random.nextBoolean() ? y : random.nextInt(66);
+        int w = random.nextInt(12);
+        int h = random.nextInt(12);
+        int op = random.nextInt(100);
+        if (op < 30) {
+            K8101Encoder.put(dst, K8101.Command.drawpixel, x, y);
+        } else if (op < 40) {
+            K8101Encoder.put(dst, K8101.Command.erasepixel, x, y);
+        } else if (op < 55) {
+            K8101Encoder.put(dst, K8101.Command.drawline, x, y, x2, y2);
+        } else if (op < 62) {
+            K8101Encoder.put(dst, K8101.Command.eraseline, x, y, x2, y2);
+        } else if (op < 72) {
+            K8101Encoder.put(dst, K8101.Command.drawrect, x, y, w, h);
+        } else if (op < 78) {
+            K8101Encoder.put(dst, K8101.Command.eraserect, x, y, w, h);
+        } else if (op < 81) {
+            K8101Encoder.putText(dst, "Hi", x, y, 40, random.nextBoolean() ? K8101.TextSize.small : K8101.TextSize.big);
+        } else if (op < 83) {
+            K8101Encoder.put(dst, K8101.Command.clearall);
+        } else if (op < 85) {
+            K8101Encoder.put(dst, K8101.Command.clearfg);
+        } else if (op < 88) {
+            K8101Encoder.put(dst, K8101.Command.contrast, w % 3);
+        } else if (op < 91) {
+            K8101Encoder.put(dst, K8101.Command.invert, w % 2);
+        } else if (op < 93) {
+            K8101Encoder.put(dst, K8101.Command.backlight, w % 2);
+        } else if (op < 94) {
+            byte[] bitmap = new byte[FrameBuffer.SIZE];
+            bitmap[random.nextInt(bitmap.length)] = (byte) random.nextInt(256);
+            K8101Encoder.putBitmap(dst, bitmap);
+        } else {
+            K8101Encoder.put(dst, K8101.Command.drawpixel, ox + random.nextInt(8), oy + random.nextInt(8));
+        }
+    }
+
+    private static void assertSameBoard(EmulatorTransport expected, EmulatorTransport actual, int frame) {
+        String message = "frame " + frame;
+        assertArrayEquals(expected.snapshot(), actual.snapshot(), message);
+        assertEquals(expected.getContrast(), actual.getContrast(), message);
+        assertEquals(expected.isInverted(), actual.isInverted(), message);
+        assertEquals(expected.getBacklight(), actual.getBacklight(), message);
+    }
+
+    @Test
+    void optimizedFramesGiveTheSameBoard() {
+        Random random = new Random(8101);
+        EmulatorTransport raw = new EmulatorTransport();
+        EmulatorTransport optimized = new EmulatorTransport();
+        ByteBuffer src = ByteBuffer.allocate(48 * K8101Encoder.MAX_FRAME);
+        ByteBuffer dst = ByteBuffer.allocate(48 * K8101Encoder.MAX_FRAME);
+        int[] ends = new int[48];
+        long rawBytes = 0;
+        long optimizedBytes = 0;
+        for (int frame = 0; frame < FRAMES; frame++) {
+            src.clear();
+            int count = 1 + random.nextInt(ends.length);
+            boolean local = random.nextBoolean();
+            int ox = random.nextInt(120);
+            int oy = random.nextInt(56);
+            for (int i = 0; i < count; i++) {
+                randomCommand(src, random, ox, oy, local);
+                ends[i] = src.position();
+            }
+            src.flip();
+            raw.write(src);
+            rawBytes += src.remaining();
+
+            dst.clear();
+            int n = K8101Optimizer.local().optimize(src, ends, count, dst,
+                    optimized.knownContrast(), optimized.knownInverted());
+            assertEquals(n == 0 ? 0 : K8101Optimizer.local().end(n - 1), dst.position());
+            dst.flip();
+            optimized.write(dst);
+            optimizedBytes += dst.remaining();
+
+            assertSameBoard(raw, optimized, frame);
+            if (frame % 50 == 0) {
+                // the stored bitmap must be the same too
+                ByteBuffer clear = ByteBuffer.allocate(6);
+                K8101Encoder.put(clear, K8101.Command.clearfg);
+                clear.flip();
+                raw.write(clear.duplicate());
+                optimized.write(clear);
+                assertSameBoard(raw, optimized, frame);
+            }
+        }
+        assertEquals(0, raw.getErrors());
+        assertEquals(0, optimized.getErrors());
+        assertTrue(optimizedBytes < rawBytes);
+    }
+
+    @Test
+    void displayFramesGiveTheSameBoard() {
+        Random random = new Random(42);
+        EmulatorTransport raw = new EmulatorTransport();
+        EmulatorTransport optimized = new EmulatorTransport();
+        K8101Display plain = new K8101Display("optimizer-raw", raw);
+        plain.setOptimizing(false);
+        K8101Display display = new K8101Display("optimizer-test", optimized);
+        // filters the settings known on the board
+        display.setStateReplay(true);
+        ByteBuffer src = ByteBuffer.allocate(48 * K8101Encoder.MAX_FRAME);
+        for (int frame = 0; frame < FRAMES / 5; frame++) {
+            src.clear();
+            int count = 1 + random.nextInt(48);
+            boolean local = random.nextBoolean();
+            int ox = random.nextInt(120);
+            int oy = random.nextInt(56);
+            Frame a = plain.batch();
+            Frame b = display.batch();
+            for (int i = 0; i < count; i++) {
+                int start = src.position();
+                randomCommand(src, random, ox, oy, local);
+                ByteBuffer cmd = src.duplicate();
+                cmd.limit(cmd.position()).position(start);
+                for (Frame f : new Frame[]{a, b}) {
+                    append(f, cmd.duplicate());
+                }
+            }
+            a.commit().join();
+            b.commit().join();
+            assertSameBoard(raw, optimized, frame);
+        }
+        assertEquals(0, optimized.getErrors());
+    }
+
+    /* adds an encoded command to a frame through the builder */
+    private static void append(Frame f, ByteBuffer cmd) {
+        int p = cmd.position();
+        int code = cmd.get(p + 3);
+        switch (code) {
+            case 1: {
+                byte[] bitmap = new byte[FrameBuffer.SIZE];
+                cmd.get(p + 4, bitmap);
+                f.drawBitmap(bitmap);
+                break;
+            }
+            case 2:
+                f.clearAll();
+                break;
+            case 3:
+                f.clearForeground();
+                break;
+            case 4:
+            case 5: {
+                int length = K8101Encoder.frameLength(cmd, p) - 10;
+                byte[] txt = new byte[length];
+                cmd.get(p + 7, txt);
+                f.drawText(new String(txt, StandardCharsets.US_ASCII), arg(cmd, 0), arg(cmd, 1), arg(cmd, 2),
+                        code == 4 ? K8101.TextSize.big : K8101.TextSize.small);
+                break;
+            }
+            case 7:
+                f.drawRectangle(arg(cmd, 0), arg(cmd, 1), arg(cmd, 2), arg(cmd, 3), true);
+                break;
+            case 8:
+                f.eraseRectangle(arg(cmd, 0), arg(cmd, 1), arg(cmd, 2), arg(cmd, 3), true);
+                break;
+            case 9:
+                f.drawPixel(arg(cmd, 0), arg(cmd, 1));
+                break;
+            case 16:
+                f.erasePixel(arg(cmd, 0), arg(cmd, 1));
+                break;
+            case 17:
+                f.setContrast(arg(cmd, 0));
+                break;
+            case 18:
+                f.drawLine(arg(cmd, 0), arg(cmd, 1), arg(cmd, 2), arg(cmd, 3));
+                break;
+            case 19:
+                f.eraseLine(arg(cmd, 0), arg(cmd, 1), arg(cmd, 2), arg(cmd, 3));
+                break;
+            case 20:
+                f.backlight(arg(cmd, 0));
+                break;
+            default:
+                f.setInverted(arg(cmd, 0) != 0);
+        }
+    }
+
+    private static int arg(ByteBuffer cmd, int n) {
+        return cmd.get(cmd.position() + 4 + n) & 0xff;
+    }
+}
@@ -0,0 +1,61 @@
+
+package fr.seki.dashboard.usb;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Replay of a capture recorded from a display on its own transport.
+ *
+ * @author seb
+ */
+class K8101ReplayTest {
+
+    @TempDir
+    Path dir;
+
+    private Path capture() throws IOException {
+        Path file = dir.resolve("capture.log");
+        try (K8101Capture capture = K8101Capture.start(file, 4096)) {
+            K8101Capture.record("custom", K8101Encoder.local().encode(K8101.Command.drawpixel, 3, 4));
+            K8101Capture.record("custom", K8101Encoder.local().encode(K8101.Command.drawpixel, 5, 6));
+        }
+        return file;
+    }
+
+    @Test
+    void customTransportGoesToTheEmulator() throws IOException {
+        Path file = capture();
+        K8101Display emulator = K8101Display.open("emulator");
+        try {
+            assertEquals(2, K8101Replay.replay(file, null, 0));
+            EmulatorTransport emu = (EmulatorTransport) emulator.getTransport();
+            assertTrue(emu.isDark(3, 4));
+            assertTrue(emu.isDark(5, 6));
+        } finally {
+            emulator.close();
+        }
+    }
+
+    @Test
+    void callerMapsTheIds() throws IOException {
+        Path file = capture();
+        EmulatorTransport emu = new EmulatorTransport();
+        K8101Display display = new K8101Display("replay-test", emu);
+        assertEquals(2, K8101Replay.replay(file, 0, id -> id.equals("custom") ? display : null));
+        assertTrue(emu.isDark(3, 4));
+    }
+
+    @Test
+    void unmappedIdFails() throws IOException {
+        Path file = capture();
+        IOException ioe = assertThrows(IOException.class, () -> K8101Replay.replay(file, 0, id -> null));
+        assertEquals("no display for custom of the capture", ioe.getMessage());
+    }
+}
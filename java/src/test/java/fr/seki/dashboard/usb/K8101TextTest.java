@@ -0,0 +1,152 @@
+package fr.seki.dashboard.usb;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import fr.seki.dashboard.usb.K8101.TextSize;
+import fr.seki.dashboard.usb.K8101Text.Align;
+import fr.seki.dashboard.usb.K8101Text.Overflow;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Wrapping, overflow and alignment of the layouts, their cache, and the two
+ * ways of drawing them giving the same screen.
+ *
+ * @author seb
+ */
+class K8101TextTest {
+
+    private static void assertLayout(K8101Text.Layout l, String[] lines, int[] offsets) {
+        assertEquals(lines.length, l.lineCount());
+        for (int i = 0; i < lines.length; i++) {
+            assertEquals(lines[i], l.line(i), "line " + i);
+            assertEquals(offsets[i], l.offset(i), "offset of line " + i);
+        }
+    }
+
+    @Test
+    void emptyParagraphsAreKept() {
+        assertLayout(K8101Text.layout("a\n\nb", TextSize.big, 60, 3, Align.left, Overflow.clip),
+                new String[]{"a", "", "b"}, new int[]{0, 0, 0});
+        assertLayout(K8101Text.layout("", TextSize.big, 60, 1, Align.left, Overflow.ellipsis),
+                new String[]{""}, new int[]{0});
+    }
+
+    @Test
+    void wrapsOnSpaces() {
+        assertLayout(K8101Text.layout("one two three", TextSize.big, 48, 3, Align.left, Overflow.clip),
+                new String[]{"one two", "three"}, new int[]{0, 0});
+    }
+
+    @Test
+    void longWordIsCut() {
+        assertLayout(K8101Text.layout("abcdefghij kl", TextSize.big, 24, 4, Align.left, Overflow.clip),
+                new String[]{"abcd", "efgh", "ij", "kl"}, new int[]{0, 0, 0, 0});
+    }
+
+    @Test
+    void overflowIsClippedOrEllipsized() {
+        assertLayout(K8101Text.layout("one two three four", TextSize.big, 42, 2, Align.left, Overflow.clip),
+                new String[]{"one two", "three"}, new int[]{0, 0});
+        assertLayout(K8101Text.layout("one two three four", TextSize.big, 42, 2, Align.left, Overflow.ellipsis),
+                new String[]{"one two", "thre..."}, new int[]{0, 0});
+        assertLayout(K8101Text.layout("a\nb", TextSize.big, 42, 1, Align.left, Overflow.ellipsis),
+                new String[]{"a..."}, new int[]{0});
+    }
+
+    @Test
+    void narrowBoxesKeepPartOfTheEllipsis() {
+        assertLayout(K8101Text.layout("abcdefgh", TextSize.big, 18, 1, Align.left, Overflow.ellipsis),
+                new String[]{"..."}, new int[]{0});
+        assertLayout(K8101Text.layout("abcdefgh", TextSize.big, 12, 1, Align.left, Overflow.ellipsis),
+                new String[]{".."}, new int[]{0});
+        assertLayout(K8101Text.layout("abcdefgh", TextSize.small, 4, 1, Align.left, Overflow.ellipsis),
+                new String[]{"."}, new int[]{0});
+        // not even one cell
+        assertLayout(K8101Text.layout("abcdefgh", TextSize.big, 5, 1, Align.left, Overflow.ellipsis),
+                new String[0], new int[0]);
+    }
+
+    @Test
+    void leadingSpacesBecomeAnOffset() {
+        assertLayout(K8101Text.layout("  ab", TextSize.big, 48, 1, Align.left, Overflow.clip),
+                new String[]{"ab"}, new int[]{12});
+        // the spaces still count in the width of the line
+        assertLayout(K8101Text.layout("  ab", TextSize.big, 48, 1, Align.right, Overflow.clip),
+                new String[]{"ab"}, new int[]{36});
+        assertLayout(K8101Text.layout(" ab", TextSize.small, 40, 1, Align.center, Overflow.clip),
+                new String[]{"ab"}, new int[]{14 + 4});
+        assertLayout(K8101Text.layout("ab", TextSize.big, 50, 1, Align.right, Overflow.clip),
+                new String[]{"ab"}, new int[]{38});
+    }
+
+    @Test
+    void cacheKeepsTheLastUsedLayouts() {
+        K8101Text.setCacheSize(2);
+        try {
+            K8101Text.Layout a = K8101Text.layout("cache a", TextSize.big, 60, 1, Align.left, Overflow.clip);
+            K8101Text.layout("cache b", TextSize.big, 60, 1, Align.left, Overflow.clip);
+            long misses = K8101Text.getCacheMisses();
+            long hits = K8101Text.getCacheHits();
+            // a is used again, b is then the eldest and goes
+            assertTrue(a == K8101Text.layout("cache a", TextSize.big, 60, 1, Align.left, Overflow.clip));
+            K8101Text.layout("cache c", TextSize.big, 60, 1, Align.left, Overflow.clip);
+            K8101Text.layout("cache a", TextSize.big, 60, 1, Align.left, Overflow.clip);
+            assertEquals(hits + 2, K8101Text.getCacheHits());
+            K8101Text.layout("cache b", TextSize.big, 60, 1, Align.left, Overflow.clip);
+            assertEquals(misses + 2, K8101Text.getCacheMisses());
+            // another box is another layout
+            assertFalse(a == K8101Text.layout("cache a", TextSize.big, 60, 1, Align.right, Overflow.clip));
+        } finally {
+            K8101Text.setCacheSize(256);
+        }
+    }
+
+    @Test
+    void commandsAndRasterDrawTheSame() {
+        String[] texts = {"", "Hello", "  indented", "one two three four five", "abcdefghijklmnopqrstuvwxyz",
+            "a\n\nb c", "12:34 °C"};
+        int n = 0;
+        for (String text : texts) {
+            for (TextSize size : TextSize.values()) {
+                for (Align align : Align.values()) {
+                    for (Overflow overflow : Overflow.values()) {
+                        for (int width : new int[]{13, 50, 128}) {
+                            int x = 128 - width;
+                            int lines = 1 + n++ % 3;
+                            EmulatorTransport emu = new EmulatorTransport();
+                            Frame frame = new K8101Display("text-test", emu).batch();
+                            frame.eraseRectangle(x, 8, width, lines * size.getHeight(), true);
+                            K8101Text.draw(frame, text, x, 8, width, lines, size, align, overflow);
+                            frame.commit().join();
+                            FrameBuffer fb = new FrameBuffer();
+                            K8101Text.draw(fb, text, x, 8, width, lines, size, align, overflow);
+                            assertArrayEquals(fb.toBitmap(), emu.snapshot(),
+                                    "\"" + text + "\" " + size + " " + align + " " + overflow + " " + width);
+                            assertEquals(0, emu.getErrors());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void labelIsRedrawnOnlyWhenItChanges() {
+        EmulatorTransport emu = new EmulatorTransport();
+        K8101Display display = new K8101Display("text-test", emu);
+        TextLabel label = new TextLabel(10, 20, 60, TextSize.big);
+        FrameBuffer fb = new FrameBuffer();
+        TextLabel raster = new TextLabel(10, 20, 60, TextSize.big);
+        for (String text : new String[]{"12.5 C", "12.5 C", "9 C", "a much longer text"}) {
+            Frame frame = display.batch();
+            boolean changed = label.update(frame, text);
+            assertEquals(changed, frame.size() > 0);
+            frame.commit().join();
+            assertEquals(changed, raster.update(fb, text));
+            assertArrayEquals(fb.toBitmap(), emu.snapshot(), text);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package fr.seki.dashboard.usb;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The background is uploaded once, then again only when the display may no
+ * longer hold it.
+ *
+ * @author seb
+ */
+class LayeredScreenTest {
+
+    private static final Consumer<Frame> OVERLAY = f -> f.drawLine(64, 34, 90, 10).drawPixel(3, 3);
+
+    private final LoopbackTransport transport = new LoopbackTransport();
+    private final K8101Display display = new K8101Display("layered-test", transport);
+    private final LayeredScreen screen = new LayeredScreen(display);
+
+    LayeredScreenTest() {
+        display.setOptimizing(false);
+        FrameBuffer dial = new FrameBuffer();
+        dial.drawRectangle(0, 0, 128, 64, false);
+        dial.drawLine(0, 0, 127, 63);
+        screen.setBackground(dial);
+    }
+
+    /* the bytes of a refresh */
+    private byte[] refresh() {
+        long before = transport.byteCount();
+        screen.refresh(OVERLAY).join();
+        byte[] recorded = transport.recorded();
+        return Arrays.copyOfRange(recorded, recorded.length - (int) (transport.byteCount() - before), recorded.length);
+    }
+
+    private static boolean uploads(byte[] refresh) {
+        return refresh[3] == K8101.Command.bitmap.getCode();
+    }
+
+    @Test
+    void refreshIsClearfgAndTheOverlay() {
+        assertFalse(screen.isBackgroundStored());
+        assertTrue(uploads(refresh()));
+        assertTrue(screen.isBackgroundStored());
+        Frame expected = display.batch().clearForeground();
+        OVERLAY.accept(expected);
+        byte[] bytes = new byte[expected.byteCount()];
+        expected.frames().get(bytes);
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(bytes, refresh());
+        }
+    }
+
+    @Test
+    void clearAllDropsTheBackground() {
+        refresh();
+        display.clearAll().join();
+        assertFalse(screen.isBackgroundStored());
+        assertTrue(uploads(refresh()));
+        assertFalse(uploads(refresh()));
+    }
+
+    @Test
+    void bitmapOfAFrameDropsTheBackground() {
+        refresh();
+        display.batch().drawBitmap(new byte[FrameBuffer.SIZE]).commit().join();
+        assertTrue(uploads(refresh()));
+        display.drawBitmap(new byte[FrameBuffer.SIZE]).join();
+        assertTrue(uploads(refresh()));
+        display.batch().clearAll().commit().join();
+        assertTrue(uploads(refresh()));
+        assertFalse(uploads(refresh()));
+    }
+
+    @Test
+    void closedLinkDropsTheBackground() {
+        refresh();
+        transport.close();
+        assertFalse(screen.isBackgroundStored());
+        assertTrue(uploads(refresh()));
+        assertFalse(uploads(refresh()));
+    }
+
+    @Test
+    void otherBackgroundIsUploaded() {
+        refresh();
+        LayeredScreen other = new LayeredScreen(display);
+        other.setBackground(new FrameBuffer());
+        other.refresh(OVERLAY).join();
+        assertTrue(uploads(refresh()));
+        // the same background again is not a change
+        FrameBuffer dial = new FrameBuffer();
+        dial.drawRectangle(0, 0, 128, 64, false);
+        dial.drawLine(0, 0, 127, 63);
+        screen.setBackground(dial);
+        assertFalse(uploads(refresh()));
+        screen.invalidate();
+        assertTrue(uploads(refresh()));
+    }
+
+    @Test
+    void firmwareRestoresTheBackground() {
+        EmulatorTransport emu = new EmulatorTransport();
+        K8101Display d = new K8101Display("layered-test", emu);
+        LayeredScreen s = new LayeredScreen(d);
+        FrameBuffer fb = new FrameBuffer();
+        fb.drawRectangle(10, 10, 20, 20, true);
+        s.setBackground(fb);
+        s.refresh(f -> f.drawLine(0, 63, 127, 0)).join();
+        s.refresh(OVERLAY).join();
+        EmulatorTransport expected = new EmulatorTransport();
+        Frame frame = new K8101Display("layered-test", expected).batch().drawBitmap(fb.toBitmap());
+        OVERLAY.accept(frame);
+        frame.commit().join();
+        assertArrayEquals(expected.snapshot(), emu.snapshot());
+        assertEquals(0, emu.getErrors());
+    }
+}
@@ -0,0 +1,142 @@
+package fr.seki.dashboard.usb;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The column by column updates of a chart must leave the screen a full
+ * drawing gives, through scrolls, gaps and rescales.
+ *
+ * @author seb
+ */
+class ScrollingChartTest {
+
+    private static final int X = 10;
+    private static final int Y = 5;
+    private static final int WIDTH = 40;
+    private static final int HEIGHT = 30;
+
+    /* a walk with gaps, a jump far out of scale and a flat end to shrink it */
+    private static double[] series(long seed) {
+        Random random = new Random(seed);
+        double[] s = new double[300];
+        double v = 20;
+        for (int i = 0; i < s.length; i++) {
+            if (i >= 100 && i < 105) {
+                s[i] = Double.NaN;
+                continue;
+            }
+            if (i == 150) {
+                v = 500;
+            } else if (i > 220) {
+                v = 42 + random.nextInt(3);
+            } else {
+                v += random.nextGaussian() * 3;
+            }
+            s[i] = random.nextInt(40) == 0 ? Double.NaN : v;
+        }
+        return s;
+    }
+
+    private static ScrollingChart chart(ScrollingChart.Style style, int perColumn, int step) {
+        ScrollingChart chart = new ScrollingChart(X, Y, WIDTH, HEIGHT, style, perColumn);
+        chart.setStep(step);
+        return chart;
+    }
+
+    private static void check(ScrollingChart.Style style, int perColumn, int step) {
+        EmulatorTransport emu = new EmulatorTransport();
+        K8101Display display = new K8101Display("chart-test", emu);
+        ScrollingChart chart = chart(style, perColumn, step);
+        // fed the same samples, only ever drawn in full
+        ScrollingChart full = chart(style, perColumn, step);
+        Frame frame = display.batch();
+        chart.draw(frame);
+        frame.commit().join();
+        double[] s = series(perColumn * 31 + step);
+        for (int i = 0; i < s.length; i++) {
+            chart.add(s[i]);
+            full.add(s[i]);
+            frame = display.batch();
+            chart.update(frame);
+            frame.commit().join();
+            EmulatorTransport fresh = new EmulatorTransport();
+            Frame all = new K8101Display("chart-test", fresh).batch();
+            full.draw(all);
+            all.commit().join();
+            assertArrayEquals(fresh.snapshot(), emu.snapshot(), style + " every " + step + ", sample " + i);
+        }
+        assertEquals(0, emu.getErrors());
+    }
+
+    @Test
+    void updatesMatchAFullDrawing() {
+        for (ScrollingChart.Style style : ScrollingChart.Style.values()) {
+            for (int perColumn : new int[]{1, 3}) {
+                check(style, perColumn, 1);
+                check(style, perColumn, WIDTH / 4);
+            }
+        }
+    }
+
+    @Test
+    void fixedBoundsClampTheSamples() {
+        EmulatorTransport emu = new EmulatorTransport();
+        K8101Display display = new K8101Display("chart-test", emu);
+        ScrollingChart chart = new ScrollingChart(X, Y, WIDTH, HEIGHT, ScrollingChart.Style.bar, 1, 0, 10);
+        chart.add(-5);
+        chart.add(50);
+        Frame frame = display.batch();
+        chart.update(frame);
+        frame.commit().join();
+        // nothing above the top row, a full bar in the second column
+        for (int y = Y; y < Y + HEIGHT; y++) {
+            assertEquals(y == Y + HEIGHT - 1, emu.isDark(X, y), "row " + y);
+            assertEquals(true, emu.isDark(X + 1, y), "row " + y);
+        }
+        assertFalse(emu.isDark(X + 1, Y - 1));
+    }
+
+    private static int commands(ScrollingChart chart, double value) {
+        Frame frame = new K8101Display("chart-test", new LoopbackTransport()).batch();
+        chart.add(value);
+        chart.update(frame);
+        return frame.size();
+    }
+
+    @Test
+    void scaleChangesOnlyOutOfItsHysteresis() {
+        ScrollingChart chart = chart(ScrollingChart.Style.bar, 1, 1);
+        commands(chart, 0);
+        commands(chart, 10);
+        for (int i = 0; i < 20; i++) {
+            assertEquals(1, commands(chart, 5), "sample " + i);
+        }
+        // within the margin of the scale
+        assertEquals(1, commands(chart, 11));
+        // out of it, every bar is drawn again
+        assertEquals(23, commands(chart, 20));
+    }
+
+    @Test
+    void steadySeriesSendsNothing() {
+        for (ScrollingChart.Style style : ScrollingChart.Style.values()) {
+            ScrollingChart chart = chart(style, 1, 1);
+            Frame frame = new K8101Display("chart-test", new LoopbackTransport()).batch();
+            for (int i = 0; i < WIDTH; i++) {
+                chart.add(7.5);
+            }
+            chart.update(frame);
+            for (int i = 0; i < 3 * WIDTH; i++) {
+                frame = new K8101Display("chart-test", new LoopbackTransport()).batch();
+                chart.add(7.5);
+                assertFalse(chart.update(frame), style + ", sample " + i);
+                assertEquals(0, frame.size());
+            }
+        }
+    }
+}